@@ -1,11 +1,18 @@
 package back_up_database;
 
+import compression.Codecs;
+import compression.CompressedBytes;
 import message_database.MessageManager;
 import doctor_database.ActiveDoctorData;
 import document_database.DocumentData;
 import doctor_database.DoctorData;
+import storage.DocumentDataCodec;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Map;
 
 /***
@@ -15,10 +22,17 @@ import java.util.Map;
 public class BackUpData implements Serializable {
     private static final long serialVersionUID = 1L;
     DocumentData documentDatabase;
+    // the document database in the binary format instead, read lazily by getDocumentDatabase
+    byte[] documentRecords;
     DoctorData doctorDatabase;
     ActiveDoctorData activeDoctorDatabase;
     MessageManager messageManager;
+    // only set in data written before the files were compressed
     Map<String, byte[]> fileStreamMap;
+    // path -> file content, compressed for the transfer
+    Map<String, CompressedBytes> compressedFiles;
+    // highest log slot of each consensus group included in this data
+    long[] appliedSlots;
 
     /**
      * Constructor
@@ -33,7 +47,7 @@ public class BackUpData implements Serializable {
         this.documentDatabase = documentDatabase;
         this.activeDoctorDatabase = activeDoctorDatabase;
         this.messageManager = messageManager;
-        this.fileStreamMap = fileStreamMap;
+        setFileStreamMap(fileStreamMap);
     }
 
     /**
@@ -41,9 +55,30 @@ public class BackUpData implements Serializable {
      * @return document database
      */
     public DocumentData getDocumentDatabase() {
+        if (documentDatabase == null && documentRecords != null) {
+            try {
+                documentDatabase = DocumentDataCodec.readLazily(ByteBuffer.wrap(documentRecords), "snapshot");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            documentRecords = null;
+        }
         return documentDatabase;
     }
 
+    /**
+     * Keep the document database in the binary format, so reading this data
+     * back only decodes the patient files that are used
+     *
+     * @throws IOException if the database cannot be encoded
+     */
+    public void encodeDocumentDatabase() throws IOException {
+        if (documentDatabase != null) {
+            documentRecords = DocumentDataCodec.toBytes(documentDatabase, false);
+            documentDatabase = null;
+        }
+    }
+
     /**
      * setter for document database
      * @param documentDatabase
@@ -102,17 +137,48 @@ public class BackUpData implements Serializable {
 
     /**
      * getter for fileStreamMap
-     * @return fileStreamMap
+     * @return fileStreamMap, a new map of the decompressed files
      */
     public Map<String, byte[]> getFileStreamMap() {
-        return fileStreamMap;
+        if (compressedFiles == null) {
+            return fileStreamMap;
+        }
+        Map<String, byte[]> files = new HashMap<>();
+        try {
+            for (Map.Entry<String, CompressedBytes> file : compressedFiles.entrySet()) {
+                files.put(file.getKey(), file.getValue().toBytes());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return files;
     }
 
     /**
-     * setter for fileStreamMap
+     * setter for fileStreamMap, compresses the files for the transfer
      * @param fileStreamMap
      */
     public void setFileStreamMap(Map<String, byte[]> fileStreamMap) {
-        this.fileStreamMap = fileStreamMap;
+        this.fileStreamMap = null;
+        this.compressedFiles = new HashMap<>();
+        for (Map.Entry<String, byte[]> file : fileStreamMap.entrySet()) {
+            compressedFiles.put(file.getKey(), Codecs.compress(file.getValue()));
+        }
+    }
+
+    /**
+     * getter for the highest log slot of each consensus group included in this data
+     * @return applied slots, indexed by group
+     */
+    public long[] getAppliedSlots() {
+        return appliedSlots;
+    }
+
+    /**
+     * setter for the highest log slot of each consensus group included in this data
+     * @param appliedSlots
+     */
+    public void setAppliedSlots(long[] appliedSlots) {
+        this.appliedSlots = appliedSlots;
     }
 }
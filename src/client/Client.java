@@ -6,7 +6,9 @@ import message_database.*;
 import model.*;
 import server.*;
 import com.healthmarketscience.rmiio.RemoteInputStreamServer;
+import com.healthmarketscience.rmiio.GZIPRemoteInputStream;
 import com.healthmarketscience.rmiio.SimpleRemoteInputStream;
+import compression.Codecs;
 
 import java.io.File;
 import java.io.IOException;
@@ -18,8 +20,6 @@ import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
@@ -103,6 +103,9 @@ public class Client {
                     "  news: to get all the news\n" +
                     "  unread: to retrieve all the unread chat messages\n" +
                     "  send TEXT: to send the TEXT message regarding the document being edited\n" +
+                    "  versions PATIENT_FILE SECTION: to show the newest saved version of the section\n" +
+                    "  show PATIENT_FILE SECTION VERSION: to show a saved version of the section\n" +
+                    "  diff PATIENT_FILE SECTION FROM TO: to compare two saved versions of the section\n" +
                     "  ";
     Log.info(message);
   }
@@ -197,6 +200,22 @@ public class Client {
                 sendMessage(text);
               } else throw new IllegalArgumentException();
               break;
+            case "versions":
+            case "show":
+            case "diff":
+              int expected = command.equals("versions") ? 3 : command.equals("show") ? 4 : 5;
+              if (args.length >= expected) {
+                try {
+                  String docName = args[1];
+                  int secNum = Integer.valueOf(args[2]);
+                  int from = expected == 5 ? Integer.valueOf(args[3]) : 0;
+                  int to = expected == 5 ? Integer.valueOf(args[4]) : expected == 4 ? Integer.valueOf(args[3]) : 0;
+                  sectionVersions(command, docName, secNum, from, to);
+                } catch (NumberFormatException ex) {
+                  throw new IllegalArgumentException();
+                }
+              } else throw new IllegalArgumentException();
+              break;
             case "help":
               printHelpMessage();
               break;
@@ -221,15 +240,13 @@ public class Client {
    */
   private ServerInterface getAvailableServer() {
     try {
-      Registry centralRegistry = LocateRegistry.getRegistry(CENTRAL_SERVER_HOST, CENTRAL_SERVER_RMI_PORT);
-      CentralServerInterface central = (CentralServerInterface) centralRegistry.lookup("CentralServer");
+      CentralServerInterface central = StubCache.central(CENTRAL_SERVER_HOST, CENTRAL_SERVER_RMI_PORT);
       int serverPort = central.assignAliveServerToClient();
       Log.info("Connected to server: " + serverPort);
 
-      Registry registry = LocateRegistry.getRegistry(serverPort);
-      ServerInterface serverInterface = (ServerInterface) registry.lookup(Server.class.getSimpleName() + serverPort);
-      return serverInterface;
+      return StubCache.server(serverPort);
     } catch (Exception e) {
+      StubCache.invalidate(CENTRAL_SERVER_HOST, CENTRAL_SERVER_RMI_PORT);
       e.printStackTrace();
       throw new RuntimeException("Unable to connect to a live server!");
     }
@@ -400,7 +417,9 @@ public class Client {
         if (session.isEditing()) {
           try (FileChannel fileChannel = FileChannel.open(Paths.get(session.getOccupiedFilePath()), StandardOpenOption.READ);
                InputStream stream = Channels.newInputStream(fileChannel)) {
-            RemoteInputStreamServer remoteFileData = new SimpleRemoteInputStream(stream);
+            // the section goes to the server compressed unless compression is off
+            RemoteInputStreamServer remoteFileData = Codecs.getConfigured() != null
+                    ? new GZIPRemoteInputStream(stream) : new SimpleRemoteInputStream(stream);
             Request request = new Request();
             request.setDocName(session.getOccupiedFileName());
             request.setSectionNum(session.getSectionIndex());
@@ -445,6 +464,45 @@ public class Client {
     }
   }
 
+  /**
+   * Show the newest version number, a saved version or the diff of two versions of a section.
+   *
+   * @param command   versions, show or diff
+   * @param docName   document name
+   * @param secNumber section index
+   * @param from      older version to compare
+   * @param to        version to show, or newer version to compare
+   */
+  private void sectionVersions(String command, String docName, int secNumber, int from, int to) throws Exception {
+    try {
+      if (session != null) {
+        Doctor user = new Doctor(session.getDoctor().getDoctorName());
+        Request request = new Request();
+        request.setToken(session.getSessionToken());
+        request.setDocName(docName);
+        request.setSectionNum(secNumber);
+        request.setFromVersion(from);
+        request.setToVersion(to);
+        Result result;
+        if (command.equals("versions")) {
+          result = serverInterface.getSectionVersion(user, request);
+        } else if (command.equals("show")) {
+          result = serverInterface.readSectionVersion(user, request);
+        } else {
+          result = serverInterface.diffSectionVersions(user, request);
+        }
+        if (result.getStatus() == 0) {
+          Log.error(result.getMessage());
+          return;
+        }
+        Log.info(result.getMessage());
+      } else Log.error("You're not logged in");
+    } catch (Exception e) {
+      Log.error(e.getMessage());
+      throw new RuntimeException(e);
+    }
+  }
+
   /**
    * Shares a document with another user. The shared user will also
    * receive a notification.
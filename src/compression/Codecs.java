@@ -0,0 +1,118 @@
+package compression;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registered compression codecs and the one section payloads are
+ * compressed with. Payloads smaller than the threshold, or that do not get
+ * smaller, are kept as they are and marked with the NONE id.
+ */
+public final class Codecs {
+
+    public static final byte NONE = 0;
+
+    // id -> codec, a codec plugged in later registers itself here
+    private static final Map<Byte, CompressionCodec> byId = new ConcurrentHashMap<>();
+    private static final Map<String, CompressionCodec> byName = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec((byte) 1, "deflate-fast", 1));
+        register(new DeflateCodec((byte) 2, "deflate", 6));
+        register(new DeflateCodec((byte) 3, "deflate-best", 9));
+    }
+
+    // codec section payloads are compressed with, none to store and send them as they are
+    private static final String CODEC = System.getProperty("emr.compression.codec", "deflate-fast");
+    // payloads smaller than this are not compressed
+    private static final int MIN_BYTES = Integer.getInteger("emr.compression.minBytes", 256);
+
+    private Codecs() {
+    }
+
+    /**
+     * Make a codec available for reading and, by its name, for writing
+     *
+     * @param codec the codec
+     */
+    public static void register(CompressionCodec codec) {
+        if (codec.getId() == NONE) {
+            throw new IllegalArgumentException("Codec id " + NONE + " means not compressed");
+        }
+        CompressionCodec previous = byId.putIfAbsent(codec.getId(), codec);
+        if (previous != null && previous != codec) {
+            throw new IllegalArgumentException("Codec id " + codec.getId() + " is taken by " + previous.getName());
+        }
+        byName.put(codec.getName(), codec);
+    }
+
+    /**
+     * @return the registered codecs
+     */
+    public static Collection<CompressionCodec> getCodecs() {
+        List<CompressionCodec> codecs = new ArrayList<>(byId.values());
+        codecs.sort((a, b) -> Byte.compare(a.getId(), b.getId()));
+        return codecs;
+    }
+
+    /**
+     * @return the configured codec, null if payloads are not compressed
+     */
+    public static CompressionCodec getConfigured() {
+        return byName.get(CODEC);
+    }
+
+    /**
+     * Compress a payload with the configured codec if it is large enough
+     *
+     * @param raw payload
+     * @return the payload, compressed or not
+     */
+    public static CompressedBytes compress(byte[] raw) {
+        return compress(raw, getConfigured(), MIN_BYTES);
+    }
+
+    /**
+     * Compress a payload with a codec if it is large enough and gets smaller
+     *
+     * @param raw      payload
+     * @param codec    codec, null to keep the payload as it is
+     * @param minBytes payloads smaller than this are kept as they are
+     * @return the payload, compressed or not
+     */
+    public static CompressedBytes compress(byte[] raw, CompressionCodec codec, int minBytes) {
+        if (codec != null && raw.length >= minBytes) {
+            try {
+                byte[] compressed = codec.compress(raw);
+                if (compressed.length < raw.length) {
+                    return new CompressedBytes(codec.getId(), raw.length, compressed);
+                }
+            } catch (IOException e) {
+                // kept as it is
+            }
+        }
+        return new CompressedBytes(NONE, raw.length, raw);
+    }
+
+    /**
+     * @param codecId   id of the codec the payload was compressed with, NONE if it was not
+     * @param data      stored payload
+     * @param rawLength length of the payload before compression
+     * @return the payload
+     * @throws IOException if the codec is unknown or the payload is damaged
+     */
+    public static byte[] decompress(byte codecId, byte[] data, int rawLength) throws IOException {
+        if (codecId == NONE) {
+            return data;
+        }
+        CompressionCodec codec = byId.get(codecId);
+        if (codec == null) {
+            throw new IOException("Unknown compression codec " + codecId);
+        }
+        return codec.decompress(data, rawLength);
+    }
+}
@@ -0,0 +1,51 @@
+package compression;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A payload as it is stored or sent: the id of the codec it was compressed
+ * with, its length before compression and the stored bytes.
+ */
+public final class CompressedBytes implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final byte codec;
+    private final int rawLength;
+    private final byte[] data;
+
+    public CompressedBytes(byte codec, int rawLength, byte[] data) {
+        this.codec = codec;
+        this.rawLength = rawLength;
+        this.data = data;
+    }
+
+    /**
+     * @return id of the codec, Codecs.NONE if the payload is not compressed
+     */
+    public byte getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return length of the payload before compression
+     */
+    public int getRawLength() {
+        return rawLength;
+    }
+
+    /**
+     * @return the stored bytes
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the payload
+     * @throws IOException if the codec is unknown or the payload is damaged
+     */
+    public byte[] toBytes() throws IOException {
+        return Codecs.decompress(codec, data, rawLength);
+    }
+}
@@ -0,0 +1,80 @@
+package compression;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the registered codecs on generated clinical notes: how small the
+ * notes get and how fast they are compressed and decompressed.
+ *
+ * Usage: CompressionBenchmark [notes] [noteBytes] [rounds]
+ */
+public class CompressionBenchmark {
+
+    public static Logger Log = LogManager.getLogger(CompressionBenchmark.class);
+
+    private static final String[] PHRASES = {
+            "Patient presents with", "no acute distress", "blood pressure 128/82 mmHg", "heart rate 76 bpm",
+            "afebrile", "lungs clear to auscultation bilaterally", "regular rate and rhythm, no murmurs",
+            "abdomen soft, non-tender, non-distended", "denies chest pain or shortness of breath",
+            "history of type 2 diabetes mellitus", "hypertension, well controlled", "continue metformin 500 mg twice daily",
+            "start lisinopril 10 mg daily", "follow up in 3 months", "HbA1c 7.2%", "labs ordered: CBC, BMP, lipid panel",
+            "allergies: penicillin (rash)", "tolerating medications without side effects", "plan discussed with patient",
+            "return precautions given", "mild edema of the lower extremities", "neurologically intact",
+            "Assessment:", "Plan:", "Subjective:", "Objective:"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int noteCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int noteBytes = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Random random = new Random(42);
+        List<byte[]> notes = new ArrayList<>(noteCount);
+        long rawBytes = 0;
+        for (int i = 0; i < noteCount; i++) {
+            StringBuilder note = new StringBuilder();
+            while (note.length() < noteBytes) {
+                note.append(PHRASES[random.nextInt(PHRASES.length)]);
+                note.append(random.nextInt(4) == 0 ? ".\n" : ", ");
+            }
+            byte[] bytes = note.toString().getBytes(StandardCharsets.UTF_8);
+            notes.add(bytes);
+            rawBytes += bytes.length;
+        }
+
+        Log.info(noteCount + " notes of about " + noteBytes + " bytes, " + rawBytes + " bytes in all");
+        for (CompressionCodec codec : Codecs.getCodecs()) {
+            long bestCompress = Long.MAX_VALUE;
+            long bestDecompress = Long.MAX_VALUE;
+            long compressedBytes = 0;
+            for (int round = 0; round < rounds; round++) {
+                List<byte[]> compressed = new ArrayList<>(noteCount);
+                long start = System.nanoTime();
+                for (byte[] note : notes) {
+                    compressed.add(codec.compress(note));
+                }
+                bestCompress = Math.min(bestCompress, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < noteCount; i++) {
+                    codec.decompress(compressed.get(i), notes.get(i).length);
+                }
+                bestDecompress = Math.min(bestDecompress, System.nanoTime() - start);
+
+                compressedBytes = 0;
+                for (byte[] bytes : compressed) {
+                    compressedBytes += bytes.length;
+                }
+            }
+            Log.info(String.format("%-13s ratio %5.2f, compress %,8.1f MB/s, decompress %,8.1f MB/s",
+                    codec.getName(), (double) rawBytes / compressedBytes,
+                    rawBytes / 1e6 / (bestCompress / 1e9), rawBytes / 1e6 / (bestDecompress / 1e9)));
+        }
+    }
+}
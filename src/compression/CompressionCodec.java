@@ -0,0 +1,34 @@
+package compression;
+
+import java.io.IOException;
+
+/**
+ * A way to compress section payloads. The id is stored with every compressed
+ * payload, so it must never change once payloads were written with it.
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return id stored with the payloads, unique among the registered codecs
+     */
+    byte getId();
+
+    /**
+     * @return name used to select the codec in the configuration
+     */
+    String getName();
+
+    /**
+     * @param raw payload
+     * @return compressed payload
+     */
+    byte[] compress(byte[] raw) throws IOException;
+
+    /**
+     * @param compressed compressed payload
+     * @param rawLength  length of the payload before compression
+     * @return the payload
+     * @throws IOException if the compressed payload is damaged
+     */
+    byte[] decompress(byte[] compressed, int rawLength) throws IOException;
+}
@@ -0,0 +1,79 @@
+package compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate at a given level, from the JDK
+ */
+public class DeflateCodec implements CompressionCodec {
+
+    private final byte id;
+    private final String name;
+    private final int level;
+
+    /**
+     * Constructor
+     *
+     * @param id    id stored with the payloads
+     * @param name  name in the configuration
+     * @param level deflate level, 1 (fastest) to 9 (smallest)
+     */
+    public DeflateCodec(byte id, String name, int level) {
+        this.id = id;
+        this.name = name;
+        this.level = level;
+    }
+
+    @Override
+    public byte getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public byte[] compress(byte[] raw) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] compressed, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength) {
+                int inflated = inflater.inflate(raw, length, rawLength - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Compressed payload is cut short");
+                }
+                length += inflated;
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed payload is damaged", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package doctor_database;
 
 import java.io.Serializable;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -34,6 +35,30 @@ public class ActiveDoctorData implements Serializable {
         return info.getToken();
     }
 
+    /***
+     * Update the activeUserData with a login whose token was already generated, so
+     * every replica keeps the same token.
+     * @param doctor a doctor who is logging in
+     * @param token the token of this login
+     */
+    public void login(Doctor doctor, String token) {
+        if (doctor == null) return;
+        rwlock.writeLock().lock();
+        activeDoctors.put(doctor.getDoctorName(), new ActiveDoctorInfo(doctor, token));
+        rwlock.writeLock().unlock();
+    }
+
+    /***
+     * Update the activeUserData when a client has logged out by clearing its token.
+     * @param doctorName the doctorName of the doctor who is logging out
+     */
+    public void logout(String doctorName) {
+        ActiveDoctorInfo info = activeDoctors.get(doctorName);
+        if (info != null) {
+            info.setToken(null);
+        }
+    }
+
     /***
      * Get the Doctor object with token
      * @param token the known token of an active doctor
@@ -75,4 +100,19 @@ public class ActiveDoctorData implements Serializable {
     public ActiveDoctorInfo getActiveDoctorInfo(String username) {
         return activeDoctors.get(username);
     }
+
+    /**
+     * Copy the active doctors for a point-in-time view
+     *
+     * @param copies original -> copy of the doctors copied so far
+     * @return the copy
+     */
+    public ActiveDoctorData copy(Map<Doctor, Doctor> copies) {
+        ActiveDoctorData copy = new ActiveDoctorData();
+        for (Map.Entry<String, ActiveDoctorInfo> entry : activeDoctors.entrySet()) {
+            ActiveDoctorInfo info = entry.getValue();
+            copy.activeDoctors.put(entry.getKey(), new ActiveDoctorInfo(info.getDoctor().copy(copies), info.getToken()));
+        }
+        return copy;
+    }
 }
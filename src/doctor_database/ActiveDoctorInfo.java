@@ -22,6 +22,16 @@ public class ActiveDoctorInfo implements Serializable {
         }
     }
 
+    /***
+     * Constructor
+     * @param doc the active doc
+     * @param token the token already generated for this login
+     */
+    ActiveDoctorInfo(Doctor doc, String token) {
+        this.doctor = doc;
+        this.token = token;
+    }
+
     /***
      * getter
      * @return active doctor
@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /***
@@ -16,6 +17,9 @@ public class Doctor implements Serializable {
     private String doctorName;
     private String password;
     private List<String> notifications = new ArrayList<>();
+    // notifications pushed so far; the unread ones are the newest of them, so the
+    // number of a notification is the same on every replica
+    private long pushedNotifications;
 
     /**
      * Constructor
@@ -89,6 +93,36 @@ public class Doctor implements Serializable {
         }
     }
 
+    /**
+     * Copy the unread notifications without removing them.
+     *
+     * @param unread receives the unread notifications, oldest first
+     * @return number of the newest of them
+     */
+    public long peekNotifications(List<String> unread) {
+        if (notifications == null) return pushedNotifications;
+        synchronized (notifications) {
+            unread.addAll(notifications);
+            return pushedNotifications;
+        }
+    }
+
+    /**
+     * Removes the notifications that the doctor has already read, up to the
+     * newest one read. Notifications another read removed already are not
+     * counted again, so two reads of the same notifications remove them once.
+     *
+     * @param newestRead number of the newest notification read
+     */
+    public void removeReadNotifications(long newestRead) {
+        if (notifications == null) return;
+        synchronized (notifications) {
+            long oldestUnread = pushedNotifications - notifications.size() + 1;
+            long read = Math.max(0, Math.min(newestRead - oldestUnread + 1, notifications.size()));
+            notifications.subList(0, (int) read).clear();
+        }
+    }
+
     /**
      * Add a new notification value to the unread ones.
      *
@@ -100,9 +134,35 @@ public class Doctor implements Serializable {
         }
         synchronized (notifications) {
             notifications.add(doc);
+            pushedNotifications++;
         }
     }
 
+    /**
+     * Copy this doctor for a point-in-time view of the databases. A doctor
+     * referenced from several places is copied once, so the copies share it
+     * the way the originals do.
+     *
+     * @param copies original -> copy of the doctors copied so far
+     * @return the copy
+     */
+    public Doctor copy(Map<Doctor, Doctor> copies) {
+        Doctor copy = copies.get(this);
+        if (copy != null) {
+            return copy;
+        }
+        copy = new Doctor(doctorName);
+        copy.password = password;
+        if (notifications != null) {
+            synchronized (notifications) {
+                copy.notifications = new ArrayList<>(notifications);
+                copy.pushedNotifications = pushedNotifications;
+            }
+        }
+        copies.put(this, copy);
+        return copy;
+    }
+
     /**
      * Check if two Doctor object is equal to each other
      * @param  o an object
@@ -148,4 +208,12 @@ public class Doctor implements Serializable {
     public void setNotifications(List<String> notifications) {
         this.notifications = notifications;
     }
+
+    public long getPushedNotifications() {
+        return this.pushedNotifications;
+    }
+
+    public void setPushedNotifications(long pushedNotifications) {
+        this.pushedNotifications = pushedNotifications;
+    }
 }
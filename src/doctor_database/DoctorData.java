@@ -3,6 +3,7 @@ package doctor_database;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -60,6 +61,24 @@ public class DoctorData implements Serializable {
         return newDoctor;
     }
 
+    /**
+     * Registers a doctor whose stored password hash was already computed, so every
+     * replica stores exactly the same doctor.
+     *
+     * @param doctorName doctor's name
+     * @param passwordHash stored password hash, as computed by addNewDoctor
+     * @return new doctor reference or null if that doctorName is not available
+     */
+    public Doctor addRegisteredDoctor(String doctorName, String passwordHash) {
+        if (!isDoctorNameAvailable(doctorName)) return null;
+        Doctor newDoctor = new Doctor(doctorName);
+        newDoctor.setPassword(passwordHash);
+        rwlock.writeLock().lock();
+        doctors.add(newDoctor);
+        rwlock.writeLock().unlock();
+        return newDoctor;
+    }
+
     /**
      * Checks if the input doctorName is available or not.
      *
@@ -88,4 +107,30 @@ public class DoctorData implements Serializable {
         return null;
     }
 
+    /**
+     * Copy the doctor database for a point-in-time view
+     *
+     * @param copies original -> copy of the doctors copied so far
+     * @return the copy
+     */
+    public DoctorData copy(Map<Doctor, Doctor> copies) {
+        DoctorData copy = new DoctorData();
+        rwlock.readLock().lock();
+        try {
+            for (Doctor doctor : doctors) {
+                copy.doctors.add(doctor.copy(copies));
+            }
+        } finally {
+            rwlock.readLock().unlock();
+        }
+        return copy;
+    }
+
+    public List<Doctor> getDoctors() {
+        return this.doctors;
+    }
+
+    public void setDoctors(List<Doctor> doctors) {
+        this.doctors = doctors;
+    }
 }
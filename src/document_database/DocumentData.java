@@ -1,11 +1,17 @@
 package document_database;
 
 import doctor_database.Doctor;
+import storage.SectionStore;
 
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class is to store all patient files
@@ -14,6 +20,20 @@ import java.util.List;
 public class DocumentData implements Serializable {
     private static final long serialVersionUID = 1L;
     private List<PatientFile> patientFiles;
+    // patient name -> encoded patient file not decoded yet, in database order
+    private transient Map<String, ByteBuffer> unloaded;
+    private transient PatientFileLoader loader;
+
+    /**
+     * Decodes a patient file the first time it is used
+     */
+    public interface PatientFileLoader {
+        /**
+         * @param record encoded patient file
+         * @return the patient file
+         */
+        PatientFile load(ByteBuffer record) throws IOException;
+    }
 
     /**
      * Initializes the internal document's ArrayList.
@@ -28,13 +48,15 @@ public class DocumentData implements Serializable {
      * @param path           new document file path
      * @param name           new document's name which is usually a patient's name
      * @param creator        new document's owner which is a doctor object
+     * @param sectionStore   where the sections are created
      * @throws IOException if an I/O error occurs
      */
-    public void createNewPatientFile(String path, int sectionsNumber, String name, Doctor creator) {
+    public void createNewPatientFile(String path, int sectionsNumber, String name, Doctor creator,
+                                     SectionStore sectionStore) {
         try {
             PatientFile patientFile;
             if (alreadyExists(name)) throw new IOException("Document already exists");
-            else patientFile = PatientFile.create(creator, path, sectionsNumber, name);
+            else patientFile = PatientFile.create(creator, path, sectionsNumber, name, sectionStore);
             synchronized (patientFiles) {
                 patientFiles.add(patientFile);
             }
@@ -62,7 +84,7 @@ public class DocumentData implements Serializable {
         synchronized (patientFiles) {
             for (PatientFile d : patientFiles)
                 if (d.getPatientName().compareTo(documentName) == 0) return d;
-            return null;
+            return unloaded != null && unloaded.containsKey(documentName) ? load(documentName) : null;
         }
     }
 
@@ -75,6 +97,7 @@ public class DocumentData implements Serializable {
     public String[] getAllDocumentsNames(Doctor doctor) {
         List<String> nameList = new ArrayList<>();
         synchronized (patientFiles) {
+            loadAll();
             for (PatientFile d : patientFiles)
                 if (d.hasPermit(doctor))
                     nameList.add(d.getPatientName());
@@ -82,10 +105,94 @@ public class DocumentData implements Serializable {
         return nameList.toArray(new String[0]);
     }
 
+    /**
+     * Copy the document database for a point-in-time view
+     *
+     * @param copies original -> copy of the doctors copied so far
+     * @return the copy
+     */
+    public DocumentData copy(Map<Doctor, Doctor> copies) {
+        DocumentData copy = new DocumentData();
+        synchronized (patientFiles) {
+            for (PatientFile patientFile : patientFiles) {
+                copy.patientFiles.add(patientFile.copy(copies));
+            }
+            // records are never changed, the copy decodes its own files from them
+            if (unloaded != null && !unloaded.isEmpty()) {
+                copy.setUnloaded(new LinkedHashMap<>(unloaded), loader);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Keep patient files encoded until they are first used. Lookups by name
+     * decode one file, anything that walks all the files decodes them all.
+     *
+     * @param records patient name -> encoded patient file, in database order
+     * @param loader  decodes a record
+     */
+    public void setUnloaded(Map<String, ByteBuffer> records, PatientFileLoader loader) {
+        synchronized (patientFiles) {
+            this.unloaded = records;
+            this.loader = loader;
+        }
+    }
+
+    /**
+     * @return patient name -> encoded patient file of the files not decoded yet
+     */
+    public Map<String, ByteBuffer> getUnloaded() {
+        synchronized (patientFiles) {
+            return unloaded == null ? Collections.emptyMap() : new LinkedHashMap<>(unloaded);
+        }
+    }
+
+    /**
+     * @return the patient files decoded so far, also the lock of the database
+     */
+    public List<PatientFile> getLoadedDocuments() {
+        return this.patientFiles;
+    }
+
+    /**
+     * @return all patient files, decoding the ones not used yet
+     */
     public List<PatientFile> getDocuments() {
+        synchronized (patientFiles) {
+            loadAll();
+        }
         return this.patientFiles;
     }
 
+    private PatientFile load(String name) {
+        try {
+            PatientFile patientFile = loader.load(unloaded.get(name).duplicate());
+            unloaded.remove(name);
+            patientFiles.add(patientFile);
+            return patientFile;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            throw new IllegalStateException("Patient file " + name + " cannot be read", e);
+        }
+    }
+
+    private void loadAll() {
+        if (unloaded == null) return;
+        for (String name : new ArrayList<>(unloaded.keySet())) {
+            load(name);
+        }
+        unloaded = null;
+        loader = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        synchronized (patientFiles) {
+            loadAll();
+            out.defaultWriteObject();
+        }
+    }
+
     public void setDocuments(List<PatientFile> patientFiles) {
         this.patientFiles = patientFiles;
     }
@@ -1,12 +1,13 @@
 package document_database;
 
 import doctor_database.Doctor;
+import storage.SectionStore;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class PatientFile implements Serializable {
     private static final long serialVersionUID = -5250135537941945156L;
@@ -32,25 +33,40 @@ public class PatientFile implements Serializable {
     }
 
     /**
-     * Creates a new document with path.
+     * Creates a new document with path, and its empty sections in the section store.
      */
-    public static PatientFile create(Doctor creator, String directory, int sectionsNumber, String name) throws IOException {
+    public static PatientFile create(Doctor creator, String directory, int sectionsNumber, String name,
+                                     SectionStore sectionStore) throws IOException {
         String path = directory + name;
-        File document = new File(path);
-        if (!document.exists() || !document.isDirectory()) {
-            boolean mkdir = document.mkdir();
-            if (!mkdir) throw new RuntimeException("Unable to create document.");
-        }
         List<Section> sections = new ArrayList<>();
         for (int i = 0; i < sectionsNumber; i++) {
             Section sec = new Section(path, String.valueOf(i));
             sections.add(sec);
-            File sectionFile = new File(sec.getPath());
-            sectionFile.createNewFile();
+            sectionStore.create(sec.getPath());
         }
         return new PatientFile(name, creator, sections);
     }
 
+    /**
+     * Copy this patient file for a point-in-time view
+     *
+     * @param copies original -> copy of the doctors copied so far
+     * @return the copy
+     */
+    public PatientFile copy(Map<Doctor, Doctor> copies) {
+        List<Section> sectionCopies = new ArrayList<>(sections.size());
+        for (Section section : sections) {
+            sectionCopies.add(section.copy(copies));
+        }
+        PatientFile copy = new PatientFile(patientName, creator == null ? null : creator.copy(copies), sectionCopies);
+        synchronized (authors) {
+            for (Doctor author : authors) {
+                copy.authors.add(author.copy(copies));
+            }
+        }
+        return copy;
+    }
+
     public Section getSectionByIndex(int index) {
         if (index < 0 || index >= sections.size()) return null;
         return sections.get(index);
@@ -1,15 +1,13 @@
 package document_database;
 
 import doctor_database.Doctor;
+import storage.SectionHistory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Section implements Serializable {
@@ -18,6 +16,8 @@ public class Section implements Serializable {
     private String path;
     private Doctor occupant;
     private ReentrantLock lock;
+    // newest version of the content, 0 until the section is first saved
+    private int version;
 
     public Section(String directory, String name) {
         this.path = directory + "/" + "section" + name;
@@ -49,6 +49,21 @@ public class Section implements Serializable {
         return ocp;
     }
 
+    /**
+     * Copy this section for a point-in-time view
+     *
+     * @param copies original -> copy of the doctors copied so far
+     * @return the copy
+     */
+    public Section copy(Map<Doctor, Doctor> copies) {
+        Section copy = new Section("", "");
+        copy.path = path;
+        Doctor ocp = getOccupant();
+        copy.occupant = ocp == null ? null : ocp.copy(copies);
+        copy.version = getVersion();
+        return copy;
+    }
+
     public String getPath() {
         return path;
     }
@@ -68,22 +83,32 @@ public class Section implements Serializable {
         this.path = path;
     }
 
-    /**
-     * get the inputStream to read the section content
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    public synchronized void setVersion(int version) {
+        this.version = version;
+    }
 
+    /**
+     * get the inputStream to read the newest section content
+     *
+     * @param history versions of the sections
      */
-    public InputStream getFileInputStream() throws IOException {
-        FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
-        return Channels.newInputStream(fileChannel);
+    public InputStream getFileInputStream(SectionHistory history) throws IOException {
+        return new ByteArrayInputStream(history.read(path, getVersion()));
     }
 
     /**
-     * get the outputStream to fill the section with a new content
+     * save a new content as the next version of the section
      *
+     * @param history versions of the sections
+     * @param content new content
      */
-    public OutputStream getWriteStream() throws IOException {
-        FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-        return Channels.newOutputStream(fileChannel);
+    public synchronized void write(SectionHistory history, byte[] content) throws IOException {
+        history.write(path, version + 1, content);
+        version++;
     }
 
 
@@ -68,6 +68,17 @@ public class MessageManager implements Serializable {
         messageDatabase.remove(patientFile);
     }
 
+    /**
+     * Copy the message database for a point-in-time view
+     *
+     * @return the copy
+     */
+    public MessageManager copy() {
+        MessageManager copy = new MessageManager();
+        copy.messageDatabase.putAll(messageDatabase);
+        return copy;
+    }
+
     public ConcurrentHashMap<String, Long> getMessageDatabase() {
         return messageDatabase;
     }
@@ -1,43 +1,71 @@
 package model;
 
-import doctor_database.ActiveDoctorData;
+import compression.Codecs;
+import compression.CompressedBytes;
 import doctor_database.Doctor;
-import doctor_database.DoctorData;
-import document_database.DocumentData;
 import com.healthmarketscience.rmiio.RemoteInputStream;
-import message_database.MessageManager;
 
+import java.io.IOException;
 import java.io.Serializable;
 
+/**
+ * A self-describing operation decided by paxos, e.g. "add doctor X with password
+ * hash H" or "set occupant of doc D section S". Everything that is not
+ * deterministic (tokens, hashes, addresses) is computed once by the proposing
+ * server and carried here, so every replica applies the same change and the
+ * payload only grows with the change, not with the databases.
+ */
 public class CommitParams implements Serializable {
+    // the class had no declared id; this is the one it was given, so older command logs still read
+    private static final long serialVersionUID = 8285551619380420749L;
 
     private Doctor doctor;
     private CommitEnum commitEnum;
     private RemoteInputStream inputStream;
+    // section content as sent to the learners and logged, compressed with bytesCodec
     private byte[] bytes;
+    private byte bytesCodec = Codecs.NONE;
+    private int bytesLength;
 
     private String docName;
     private int sectionNum;
     private String targetUser;
     private long multicastAddress;
-
-    // in memory database
-    private DocumentData documentDatabase;
-    private ActiveDoctorData activeDoctorDatabase;
-    private MessageManager messageManager;
-    private DoctorData doctorDatabase;
+    // login token generated by the proposing server
+    private String token;
+    // stored password hash of a new doctor
+    private String passwordHash;
+    // number of the newest notification read by the doctor
+    private long newestReadNotification;
+    // slots the origin server had applied in each consensus group when it
+    // proposed this operation; every replica applies those first
+    private long[] dependencies;
 
     private String proposalMsg;
 
     public CommitParams() {
     }
 
-    public byte[] getBytes() {
-        return bytes;
+    /**
+     * @return the section content, decompressed
+     */
+    public byte[] getBytes() throws IOException {
+        return bytes == null ? null : Codecs.decompress(bytesCodec, bytes, bytesLength);
     }
 
+    /**
+     * @param bytes section content, compressed here if it is large enough
+     */
     public void setBytes(byte[] bytes) {
-        this.bytes = bytes;
+        if (bytes == null) {
+            this.bytes = null;
+            this.bytesCodec = Codecs.NONE;
+            return;
+        }
+        CompressedBytes compressed = Codecs.compress(bytes);
+        this.bytes = compressed.getData();
+        this.bytesCodec = compressed.getCodec();
+        this.bytesLength = compressed.getRawLength();
     }
 
     public Doctor getDoctor() {
@@ -80,36 +108,36 @@ public class CommitParams implements Serializable {
         this.sectionNum = sectionNum;
     }
 
-    public DocumentData getDocumentDatabase() {
-        return this.documentDatabase;
+    public String getToken() {
+        return this.token;
     }
 
-    public void setDocumentDatabase(DocumentData documentDatabase) {
-        this.documentDatabase = documentDatabase;
+    public void setToken(String token) {
+        this.token = token;
     }
 
-    public ActiveDoctorData getActiveDoctorDatabase() {
-        return this.activeDoctorDatabase;
+    public String getPasswordHash() {
+        return this.passwordHash;
     }
 
-    public void setActiveDoctorDatabase(ActiveDoctorData activeDoctorDatabase) {
-        this.activeDoctorDatabase = activeDoctorDatabase;
+    public void setPasswordHash(String passwordHash) {
+        this.passwordHash = passwordHash;
     }
 
-    public MessageManager getMessageManager() {
-        return this.messageManager;
+    public long getNewestReadNotification() {
+        return this.newestReadNotification;
     }
 
-    public void setMessageManager(MessageManager messageManager) {
-        this.messageManager = messageManager;
+    public void setNewestReadNotification(long newestReadNotification) {
+        this.newestReadNotification = newestReadNotification;
     }
 
-    public DoctorData getDoctorDatabase() {
-        return this.doctorDatabase;
+    public long[] getDependencies() {
+        return this.dependencies;
     }
 
-    public void setDoctorDatabase(DoctorData doctorDatabase) {
-        this.doctorDatabase = doctorDatabase;
+    public void setDependencies(long[] dependencies) {
+        this.dependencies = dependencies;
     }
 
     public String getTargetUser() {
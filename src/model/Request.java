@@ -11,6 +11,9 @@ public class Request implements Serializable{
     private String token;
     private Doctor targetUser;
     private RemoteInputStream remoteInputStream;
+    // versions of a section to read or compare
+    private int fromVersion;
+    private int toVersion;
 
     public String getDocName() {
         return this.docName;
@@ -51,4 +54,20 @@ public class Request implements Serializable{
     public void setRemoteInputStream(RemoteInputStream remoteInputStream) {
         this.remoteInputStream = remoteInputStream;
     }
+
+    public int getFromVersion() {
+        return this.fromVersion;
+    }
+
+    public void setFromVersion(int fromVersion) {
+        this.fromVersion = fromVersion;
+    }
+
+    public int getToVersion() {
+        return this.toVersion;
+    }
+
+    public void setToVersion(int toVersion) {
+        this.toVersion = toVersion;
+    }
 }
@@ -1,12 +1,45 @@
 package server;
 
+import java.io.IOException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
-public class Acceptor {
-    // the last proposal
-    public Proposal last = new Proposal();
+/**
+ * Paxos acceptor of one server in one consensus group.
+ * Proposers call it concurrently, so the promise and the last accepted proposal
+ * are kept together in one immutable state that every transition replaces with
+ * a compare-and-set; no lock is held while deciding. The proposal of each log
+ * slot is merged into the per-slot map before that compare-and-set, keeping the
+ * higher ballot, so the map never goes back to a lower ballot and a promise
+ * made after an accept reports it.
+ */
+public class Acceptor implements AcceptorInterface {
+
+    /**
+     * Promised ballot and last accepted proposal, replaced as a whole
+     */
+    private static final class State {
+        final long promised;
+        final Proposal accepted;
+
+        State(long promised, Proposal accepted) {
+            this.promised = promised;
+            this.accepted = accepted;
+        }
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(new State(0, null));
+    // proposals accepted for log slots that this server has not forgotten yet
+    private final ConcurrentSkipListMap<Long, Proposal> accepted = new ConcurrentSkipListMap<>();
+    // highest slot forgotten so far
+    private volatile long forgottenSlot = 0;
     public int port;
+    // durable copy of the promise and the last accepted proposal, null if in memory only
+    private AcceptorStore store;
 
     public static Logger Log = LogManager.getLogger(Acceptor.class);
 
@@ -15,77 +48,182 @@ public class Acceptor {
         this.port = port;
     }
 
+    /**
+     * Constructor of a durable acceptor. The promise, the last accepted
+     * proposal and the proposals accepted for the slots not forgotten are
+     * loaded from the store if it exists, so a restarted acceptor keeps its
+     * promises and reports what it accepted.
+     *
+     * @param port      server port
+     * @param storePath path of the store file
+     */
+    public Acceptor(int port, String storePath) {
+        this.port = port;
+        try {
+            store = new AcceptorStore(storePath);
+            Proposal accepted = store.getAccepted();
+            this.accepted.putAll(store.getAcceptedSlots());
+            forgottenSlot = store.getForgottenSlot();
+            state.set(new State(store.getPromisedVoteNo(), accepted));
+            if (store.getPromisedVoteNo() > 0) {
+                Log.info("Server " + port + " acceptor restored with ballot " + Ballot.toString(store.getPromisedVoteNo()));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Server " + port + " acceptor state is not durable: " + e.getMessage());
+            store = null;
+        }
+    }
+
+    /**
+     * Write the current state into a new store file at the same path, e.g. after
+     * the data directory of the server was replaced.
+     */
+    public void reopenStore() {
+        if (store == null) {
+            return;
+        }
+        try {
+            State current = state.get();
+            store.reopen(current.promised, accepted.isEmpty() ? current.accepted : accepted.lastEntry().getValue(),
+                    new TreeMap<>(accepted), forgottenSlot);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Server " + port + " acceptor state is not durable: " + e.getMessage());
+        }
+    }
+
     /**
      * Phase 1: PREPARE-PROMISE
      * This function is that when acceptor receive a prepare msg from proposer , to
      * decide if should respond with a promise of success or fails message.
-     * Is this ID bigger than any round I have previously received?
+     * Is this ballot bigger than any round I have previously received?
      * If yes
-     * store the ID number, max_id = ID
-     * respond with a PROMISE message with true
+     * store the ballot, max_id = ballot
+     * respond with a PROMISE message with true, the last accepted proposal and
+     * the proposals accepted for the log slots it still keeps
      * If no
      * respond with a PROMISE message with false
      *
      * @param p proposal recieved
      * @return a promise
      */
+    @Override
     public Promise onPrepare(Proposal p) {
 
-//        // kill off the thread at random time
-//        if (Math.random() < 0.2) {
-//            Log.debug("Server " + port + " NO response: PREPARE REJECTED");
-//            return null;
-//        }
-
         if (p == null) {
             Log.debug("null proposal!");
             throw new IllegalArgumentException("null proposal!");
 
         }
 
-        // If this proposal number bigger than last round I have previously received
-        // return a promise with true
-        // assign the last proposal as this proposal
-        if (p.getVoteNo() > last.getVoteNo()) {
-            Promise response = new Promise(true, last);
-            last = p;
-            Log.info("Server " + port + " is successfully PREPARED");
-            return response;
-
-        } else {
-            Log.info("Server " + port + " is REJECTED to PREPARE");
-            return new Promise(false, null);
-
+        while (true) {
+            State current = state.get();
+            if (p.getVoteNo() <= current.promised) {
+                Log.info("Server " + port + " is REJECTED to PREPARE");
+                return new Promise(false, null);
+            }
+
+            if (state.compareAndSet(current, new State(p.getVoteNo(), current.accepted))) {
+                // the promise must be on disk before the proposer can count on it
+                if (store != null) {
+                    store.savePromise(p.getVoteNo());
+                }
+                Log.info("Server " + port + " is successfully PREPARED");
+                return new Promise(true, current.accepted, new TreeMap<>(accepted), forgottenSlot);
+            }
+            // another proposer changed the state in the meantime, decide again
         }
 
     }
 
     /**
      * Phase 2: PROPOSE-ACCEPT
-     * This function is to return true if the argument is the same proposal as the
-     * last one
+     * This function is to return true if the proposal's ballot is not lower
+     * than the last one this acceptor promised, and remember it as the last
+     * accepted proposal. A leader holding a promised ballot can therefore get
+     * several commands accepted under the same ballot without a new prepare.
      * Otherwise return false
      *
      * @param p
      * @return
      */
+    @Override
     public boolean onAccept(Proposal p) {
-        // kill off the thread at random time
         String failmsg = "Server " + port + " NO response: ACCEPT REJECTED";
         String sucmsg = "Server " + port + " ACCEPT";
-//        if (Math.random() < 0.2) {
-//            Log.debug(failmsg);
-//            return false;
-//        }
 
-        if (last.equals(p)) {
-            Log.info(sucmsg);
-            return true;
+        if (p == null) {
+            Log.debug(failmsg);
+            return false;
+        }
 
+        while (true) {
+            State current = state.get();
+            if (p.getVoteNo() < current.promised) {
+                Log.debug(failmsg);
+                return false;
+            }
+
+            if (p.getSlot() > forgottenSlot) {
+                // recorded before the transition is published, so a prepare that follows it
+                // reports the proposal. If the transition then fails, the proposal was still
+                // proposed under its ballot, and a new leader may safely carry it over
+                accepted.merge(p.getSlot(), p, Acceptor::higherBallot);
+            }
+            if (state.compareAndSet(current, new State(p.getVoteNo(), p))) {
+                if (store != null) {
+                    store.saveAccepted(p);
+                }
+                Log.info(sucmsg);
+                return true;
+            }
         }
 
-        Log.debug(failmsg);
-        return false;
+    }
+
+    private static Proposal higherBallot(Proposal known, Proposal offered) {
+        return offered.getVoteNo() > known.getVoteNo() ? offered : known;
+    }
+
+    /**
+     * @return ballot of the last promise
+     */
+    public long getPromisedVoteNo() {
+        return state.get().promised;
+    }
+
+    /**
+     * Get the proposal accepted for a log slot
+     *
+     * @param slot log slot
+     * @return the accepted proposal, or null if none was accepted or it was already forgotten
+     */
+    public Proposal getAccepted(long slot) {
+        return accepted.get(slot);
+    }
+
+    /**
+     * Forget the accepted proposals up to a slot, e.g. slots this server has already applied
+     *
+     * @param slot highest slot to forget
+     */
+    public void forgetUpTo(long slot) {
+        if (slot > forgottenSlot) {
+            forgottenSlot = slot;
+        }
+        accepted.headMap(slot, true).clear();
+        if (store != null) {
+            store.forgetUpTo(slot);
+        }
+    }
 
+    /**
+     * Close the store, e.g. when the server shuts down
+     */
+    public void close() {
+        if (store != null) {
+            store.close();
+        }
     }
 }
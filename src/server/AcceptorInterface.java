@@ -0,0 +1,25 @@
+package server;
+
+/**
+ * The two paxos phases an acceptor answers. Implemented by the local Acceptor
+ * of a server and by PeerAcceptor, which reaches the acceptor of another
+ * server over RMI, so a proposer can use both the same way.
+ */
+public interface AcceptorInterface {
+
+    /**
+     * Phase 1: PREPARE-PROMISE
+     *
+     * @param p proposal with the new ballot
+     * @return a promise, not acked if the acceptor promised a higher ballot
+     */
+    Promise onPrepare(Proposal p);
+
+    /**
+     * Phase 2: PROPOSE-ACCEPT
+     *
+     * @param p proposal to accept
+     * @return true if the proposal was accepted
+     */
+    boolean onAccept(Proposal p);
+}
@@ -0,0 +1,402 @@
+package server;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the state of an acceptor in a small memory-mapped file, so a restarted
+ * acceptor still knows what it promised and accepted.
+ * Every write is forced to disk before the acceptor answers the proposer.
+ *
+ * Writes may arrive from several proposer threads at once, so the file only
+ * ever moves forward: a promise or accepted proposal with a lower ballot than the
+ * one already stored is not written.
+ *
+ * Layout: format marker (int), promised ballot (long), accepted ballot (long),
+ * accepted slot (long), accepted content length (int), accepted content (UTF-8,
+ * truncated to fit).
+ *
+ * The proposal accepted for each log slot, with its commands, is appended to a
+ * slot log next to the file, so a restarted acceptor reports every slot it has
+ * not forgotten to a new leader. Slot log layout: magic "EMRA" (int), forgotten
+ * slot (long), then entries of slot (long), length (int), CRC32C of slot and
+ * proposal (int), serialized proposal. Reading stops at the first damaged
+ * entry, and the log is truncated there. Once it holds many more entries than
+ * slots kept, it is rewritten with the kept slots only.
+ */
+public class AcceptorStore {
+
+    private static final int SIZE = 4096;
+    private static final int FORMAT = 0;
+    private static final int PROMISED = 8;
+    private static final int ACCEPTED_VOTE_NO = 16;
+    private static final int ACCEPTED_SLOT = 24;
+    private static final int CONTENT_LENGTH = 32;
+    private static final int CONTENT = 36;
+    // marks the layout with long ballots
+    private static final int FORMAT_MARKER = 0x454d5232;
+
+    private static final int SLOTS_MAGIC = 0x454D5241;
+    private static final int SLOTS_HEADER_SIZE = 12;
+    // the slot log is rewritten once it holds this many entries per kept slot
+    private static final int SLOTS_REWRITE_RATIO = 4;
+    private static final int SLOTS_REWRITE_MIN = 1024;
+
+    private final String path;
+    private MappedByteBuffer buffer;
+    private final File slotsFile;
+    // proposal with the highest ballot accepted for each slot not forgotten yet
+    private final TreeMap<Long, Proposal> slots = new TreeMap<>();
+    // highest slot forgotten, its entries are dropped when the slot log is rewritten
+    private long forgottenSlot = 0;
+    private long slotEntries = 0;
+    private DataOutputStream slotsOut;
+    private FileChannel slotsChannel;
+
+    public static Logger Log = LogManager.getLogger(AcceptorStore.class);
+
+    /**
+     * Open the store file, creating it if it does not exist
+     *
+     * @param path file path
+     * @throws IOException if the file cannot be mapped
+     */
+    public AcceptorStore(String path) throws IOException {
+        this.path = path;
+        this.slotsFile = new File(path.endsWith(".dat") ? path.substring(0, path.length() - 4) + ".slots" : path + ".slots");
+        map();
+        openSlots();
+    }
+
+    private void map() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw");
+             FileChannel channel = file.getChannel()) {
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        }
+        if (buffer.getInt(FORMAT) != FORMAT_MARKER) {
+            migrate();
+        }
+    }
+
+    /**
+     * Convert a new file or a file of the old layout with int vote numbers
+     * (promised @0, accepted @4, slot @8, length @16, content @20). The old
+     * vote numbers were plain counters of the coordinator, which is proposer 0.
+     */
+    private void migrate() {
+        int promised = buffer.getInt(0);
+        int acceptedVoteNo = buffer.getInt(4);
+        long acceptedSlot = buffer.getLong(8);
+        byte[] content = new byte[Math.max(0, Math.min(buffer.getInt(16), SIZE - CONTENT))];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = buffer.get(20 + i);
+        }
+
+        for (int i = 0; i < SIZE; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.putInt(FORMAT, FORMAT_MARKER);
+        buffer.putLong(PROMISED, promised == 0 ? 0 : Ballot.of(promised, 0));
+        if (acceptedVoteNo != 0) {
+            putAccepted(new Proposal(Ballot.of(acceptedVoteNo, 0),
+                    new String(content, StandardCharsets.UTF_8), acceptedSlot));
+            Log.info(path + ": converted acceptor state to ballot format");
+        }
+        buffer.force();
+    }
+
+    /**
+     * Map the file again, e.g. after the data directory was replaced, and write
+     * the given state into it.
+     *
+     * @param promised      last promised ballot
+     * @param accepted      last accepted proposal, may be null
+     * @param acceptedSlots proposal accepted for each slot not forgotten
+     * @param forgotten     highest slot forgotten
+     */
+    public synchronized void reopen(long promised, Proposal accepted, SortedMap<Long, Proposal> acceptedSlots,
+                                    long forgotten) throws IOException {
+        map();
+        buffer.putLong(PROMISED, promised);
+        if (accepted != null) {
+            putAccepted(accepted);
+        }
+        buffer.force();
+        closeSlots();
+        slots.clear();
+        slots.putAll(acceptedSlots);
+        forgottenSlot = forgotten;
+        rewriteSlots();
+    }
+
+    /**
+     * @return ballot of the last promise, 0 if none was made
+     */
+    public synchronized long getPromisedVoteNo() {
+        return buffer.getLong(PROMISED);
+    }
+
+    /**
+     * @return the last accepted proposal, or null if none was accepted
+     */
+    public synchronized Proposal getAccepted() {
+        long voteNo = buffer.getLong(ACCEPTED_VOTE_NO);
+        if (voteNo == 0) {
+            return null;
+        }
+        byte[] content = new byte[buffer.getInt(CONTENT_LENGTH)];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = buffer.get(CONTENT + i);
+        }
+        return new Proposal(voteNo, new String(content, StandardCharsets.UTF_8), buffer.getLong(ACCEPTED_SLOT));
+    }
+
+    /**
+     * @return proposal accepted for each slot not forgotten, in slot order
+     */
+    public synchronized SortedMap<Long, Proposal> getAcceptedSlots() {
+        return new TreeMap<>(slots);
+    }
+
+    /**
+     * @return highest slot forgotten, as known when the slot log was last rewritten or later
+     */
+    public synchronized long getForgottenSlot() {
+        return forgottenSlot;
+    }
+
+    /**
+     * Durably record a promise. Returns once it, or a higher promise, is on disk.
+     *
+     * @param voteNo promised ballot
+     */
+    public synchronized void savePromise(long voteNo) {
+        if (voteNo <= buffer.getLong(PROMISED)) {
+            return;
+        }
+        buffer.putLong(PROMISED, voteNo);
+        buffer.force();
+    }
+
+    /**
+     * Durably record an accepted proposal, and the proposal of its slot unless a
+     * higher ballot was accepted for the slot already. Returns once it is on disk.
+     *
+     * @param p accepted proposal
+     */
+    public synchronized void saveAccepted(Proposal p) {
+        if (p.getSlot() > forgottenSlot) {
+            Proposal stored = slots.get(p.getSlot());
+            if (stored == null || stored.getVoteNo() < p.getVoteNo()) {
+                appendSlot(p);
+                slots.put(p.getSlot(), p);
+            }
+        }
+        long storedVoteNo = buffer.getLong(ACCEPTED_VOTE_NO);
+        if (p.getVoteNo() < storedVoteNo
+                || (p.getVoteNo() == storedVoteNo && p.getSlot() < buffer.getLong(ACCEPTED_SLOT))) {
+            return;
+        }
+        if (p.getVoteNo() > buffer.getLong(PROMISED)) {
+            buffer.putLong(PROMISED, p.getVoteNo());
+        }
+        putAccepted(p);
+        buffer.force();
+    }
+
+    /**
+     * Forget the slots up to the given one; the slot log drops them when it is rewritten
+     *
+     * @param slot highest slot to forget
+     */
+    public synchronized void forgetUpTo(long slot) {
+        if (slot <= forgottenSlot) {
+            return;
+        }
+        forgottenSlot = slot;
+        slots.headMap(slot, true).clear();
+        if (slotEntries > Math.max(SLOTS_REWRITE_MIN, (long) SLOTS_REWRITE_RATIO * slots.size())) {
+            closeSlots();
+            rewriteSlots();
+        }
+    }
+
+    /**
+     * Close the slot log
+     */
+    public synchronized void close() {
+        closeSlots();
+    }
+
+    private void appendSlot(Proposal p) {
+        if (slotsOut == null) {
+            return;
+        }
+        try {
+            byte[] payload = serialize(p);
+            slotsOut.writeLong(p.getSlot());
+            slotsOut.writeInt(payload.length);
+            slotsOut.writeInt(checksum(p.getSlot(), payload));
+            slotsOut.write(payload);
+            slotsOut.flush();
+            slotsChannel.force(false);
+            slotEntries++;
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug(slotsFile + ": slot " + p.getSlot() + " not stored: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the slot log up to its first damaged entry, truncate it there and
+     * append to it
+     */
+    private void openSlots() throws IOException {
+        long valid = 0;
+        if (slotsFile.length() >= SLOTS_HEADER_SIZE) {
+            valid = readSlots();
+        }
+        if (valid < SLOTS_HEADER_SIZE) {
+            rewriteSlots();
+            return;
+        }
+        if (slotsFile.length() > valid) {
+            Log.info(slotsFile + " has a damaged tail of " + (slotsFile.length() - valid) + " bytes, truncated");
+            try (FileChannel truncate = FileChannel.open(slotsFile.toPath(), StandardOpenOption.WRITE)) {
+                truncate.truncate(valid);
+            }
+        }
+        appendSlots();
+    }
+
+    /**
+     * @return length of the slot log up to the end of its last valid entry, 0 if its header is wrong
+     */
+    private long readSlots() {
+        long valid = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(slotsFile)))) {
+            if (input.readInt() != SLOTS_MAGIC) {
+                return 0;
+            }
+            forgottenSlot = input.readLong();
+            valid = SLOTS_HEADER_SIZE;
+            while (true) {
+                long slot = input.readLong();
+                int length = input.readInt();
+                int crc = input.readInt();
+                if (length < 0 || length > slotsFile.length()) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                if (checksum(slot, bytes) != crc) {
+                    break;
+                }
+                try (ObjectInputStream proposal = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    Proposal p = (Proposal) proposal.readObject();
+                    Proposal known = slots.get(slot);
+                    if (slot > forgottenSlot && (known == null || known.getVoteNo() < p.getVoteNo())) {
+                        slots.put(slot, p);
+                    }
+                }
+                slotEntries++;
+                valid += 16 + length;
+            }
+        } catch (EOFException e) {
+            // end of the log, or an entry cut off by a crash
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            Log.debug(slotsFile + " is damaged: " + e.getMessage());
+        }
+        return valid;
+    }
+
+    /**
+     * Write the kept slots into a new slot log that replaces the old one
+     */
+    private void rewriteSlots() {
+        File temp = new File(slotsFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream file = new FileOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                out.writeInt(SLOTS_MAGIC);
+                out.writeLong(forgottenSlot);
+                for (Proposal p : slots.values()) {
+                    byte[] payload = serialize(p);
+                    out.writeLong(p.getSlot());
+                    out.writeInt(payload.length);
+                    out.writeInt(checksum(p.getSlot(), payload));
+                    out.write(payload);
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(temp.toPath(), slotsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            slotEntries = slots.size();
+            appendSlots();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug(slotsFile + " not rewritten: " + e.getMessage());
+        }
+    }
+
+    private void appendSlots() throws IOException {
+        FileOutputStream file = new FileOutputStream(slotsFile, true);
+        slotsChannel = file.getChannel();
+        slotsOut = new DataOutputStream(new BufferedOutputStream(file));
+    }
+
+    private void closeSlots() {
+        if (slotsOut == null) {
+            return;
+        }
+        try {
+            slotsOut.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        slotsOut = null;
+        slotsChannel = null;
+    }
+
+    private static byte[] serialize(Proposal p) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(p);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int checksum(long slot, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (slot >>> shift));
+        }
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private void putAccepted(Proposal p) {
+        byte[] content = p.getContent() == null ? new byte[0] : p.getContent().getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(content.length, SIZE - CONTENT);
+        buffer.putLong(ACCEPTED_VOTE_NO, p.getVoteNo());
+        buffer.putLong(ACCEPTED_SLOT, p.getSlot());
+        buffer.putInt(CONTENT_LENGTH, length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(CONTENT + i, content[i]);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package server;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Compares the durable write of an acceptor's state through the memory-mapped
+ * AcceptorStore and its slot log with writing the state as a serialized
+ * Proposal and syncing the file, and the time to read the state back on a
+ * restart. The store forgets the slots older than the retained ones, as a
+ * server does with the slots it applied.
+ *
+ * Usage: AcceptorStoreBenchmark [writes] [contentBytes] [retainedSlots]
+ */
+public class AcceptorStoreBenchmark {
+
+    public static Logger Log = LogManager.getLogger(AcceptorStoreBenchmark.class);
+
+    private interface Write {
+        void write(int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int writes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int contentBytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int retainedSlots = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        char[] chars = new char[contentBytes];
+        Arrays.fill(chars, 'x');
+        String content = new String(chars);
+        File dir = Files.createTempDirectory("emr-acceptor-benchmark").toFile();
+        File mapped = new File(dir, "Acceptor.dat");
+        File serialized = new File(dir, "Acceptor.ser");
+
+        Log.info(writes + " durable writes, every other one a promise, proposals of " + contentBytes
+                + " bytes, " + retainedSlots + " slots retained");
+        AcceptorStore store = new AcceptorStore(mapped.getPath());
+        report("memory-mapped", writes, i -> {
+            long ballot = Ballot.of(i + 1, 1);
+            if (i % 2 == 0) {
+                store.savePromise(ballot);
+            } else {
+                store.saveAccepted(new Proposal(ballot, content, i));
+                store.forgetUpTo(i - retainedSlots);
+            }
+        });
+        report("serialized", writes, i -> {
+            try (FileOutputStream file = new FileOutputStream(serialized);
+                 ObjectOutputStream output = new ObjectOutputStream(file)) {
+                output.writeObject(new Proposal(Ballot.of(i + 1, 1), content, i));
+                output.flush();
+                file.getFD().sync();
+            }
+        });
+
+        long start = System.nanoTime();
+        store.close();
+        AcceptorStore reopened = new AcceptorStore(mapped.getPath());
+        reopened.getPromisedVoteNo();
+        reopened.getAccepted();
+        reopened.getAcceptedSlots();
+        long mappedRestart = System.nanoTime() - start;
+        start = System.nanoTime();
+        try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(serialized))) {
+            input.readObject();
+        }
+        long serializedRestart = System.nanoTime() - start;
+        Log.info(String.format("restore: memory-mapped %,.3f ms, serialized %,.3f ms",
+                mappedRestart / 1e6, serializedRestart / 1e6));
+
+        reopened.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Time every write and log the average and the 99th percentile
+     */
+    private static void report(String name, int writes, Write write) throws Exception {
+        long[] micros = new long[writes];
+        long start = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            long before = System.nanoTime();
+            write.write(i);
+            micros[i] = (System.nanoTime() - before) / 1000;
+        }
+        long total = System.nanoTime() - start;
+        Arrays.sort(micros);
+        Log.info(String.format("%-14s average %,8.1f us, p99 %,8d us, %,8.0f writes/s", name,
+                total / 1e3 / writes, micros[(int) (writes * 0.99)], writes / (total / 1e9)));
+    }
+}
@@ -1,9 +1,11 @@
 package server;
 
 
+import java.util.Map;
 import java.util.Scanner;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
@@ -17,6 +19,16 @@ public class Admin {
 
     public static Logger Log = LogManager.getLogger(Admin.class);
 
+    /**
+     * Prints every membership change the central server reports
+     */
+    private static class MembershipWatcher implements MembershipListener {
+        @Override
+        public void membershipChanged(MembershipView view) {
+            Log.info("Membership changed: " + view);
+        }
+    }
+
     public static void main(String[] args) {
         try {
 
@@ -31,8 +43,15 @@ public class Admin {
             System.out.println(" Please enter your command: ");
             System.out.println("\nEnter: kill <port> to kill a server");
             System.out.println("\nEnter: restart <port> to restart a server");
+            System.out.println("\nEnter: lag to show how many slots each server is behind");
+            System.out.println("\nEnter: health to show the failure detector suspicion levels");
+            System.out.println("\nEnter: add <port> to add a server to the cluster");
+            System.out.println("\nEnter: remove <port> to remove a server from the cluster");
+            System.out.println("\nEnter: watch to start or stop printing membership changes");
             System.out.println("-----------------------------------");
 
+            MembershipWatcher watcher = null;
+            MembershipListener watcherStub = null;
             boolean flag = true;
             while (flag) {
                 System.out.print("admin@127.0.0.1# ");
@@ -64,6 +83,52 @@ public class Admin {
                             } catch (NumberFormatException ex) {
                                 throw new IllegalArgumentException();
                             }
+                        } else if (arguments.length >= 2 && arguments[0].equalsIgnoreCase("add")) {
+                            try {
+                                int port = Integer.parseInt(arguments[1]);
+                                if (centralServer.addServer(port)) {
+                                    Log.info("Server " + port + " is added to the cluster.");
+                                } else {
+                                    Log.info("Server " + port + " could not be added.");
+                                }
+                            } catch (NumberFormatException ex) {
+                                throw new IllegalArgumentException();
+                            }
+                        } else if (arguments.length >= 2 && arguments[0].equalsIgnoreCase("remove")) {
+                            try {
+                                int port = Integer.parseInt(arguments[1]);
+                                if (centralServer.removeServer(port)) {
+                                    Log.info("Server " + port + " is removed from the cluster.");
+                                } else {
+                                    Log.info("Server " + port + " could not be removed.");
+                                }
+                            } catch (NumberFormatException ex) {
+                                throw new IllegalArgumentException();
+                            }
+                        } else if (arguments[0].equalsIgnoreCase("lag")) {
+                            Map<Integer, Long> lag = centralServer.getReplicationLag();
+                            for (Map.Entry<Integer, Long> entry : lag.entrySet()) {
+                                Log.info("Server " + entry.getKey() + " is " + entry.getValue() + " slots behind.");
+                            }
+                        } else if (arguments[0].equalsIgnoreCase("health")) {
+                            MembershipView view = centralServer.getMembershipView();
+                            Map<Integer, Double> levels = centralServer.getSuspicionLevels();
+                            for (Map.Entry<Integer, Double> entry : levels.entrySet()) {
+                                Log.info("Server " + entry.getKey() + " status " + view.getStatus(entry.getKey())
+                                        + ", phi " + String.format("%.2f", entry.getValue()));
+                            }
+                            Log.info("Failure detector: " + centralServer.getFailureDetectorMetrics());
+                        } else if (arguments[0].equalsIgnoreCase("watch")) {
+                            if (watcher == null) {
+                                watcher = new MembershipWatcher();
+                                watcherStub = (MembershipListener) UnicastRemoteObject.exportObject(watcher, 0);
+                                Log.info("Watching membership changes, now " + centralServer.subscribeMembership(watcherStub));
+                            } else {
+                                centralServer.unsubscribeMembership(watcherStub);
+                                UnicastRemoteObject.unexportObject(watcher, true);
+                                watcher = null;
+                                Log.info("Stopped watching membership changes.");
+                            }
                         }
                     } catch (IllegalArgumentException ex) {
                         ex.printStackTrace();
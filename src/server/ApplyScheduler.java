@@ -0,0 +1,165 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import model.CommitParams;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Applies the commands of decided slots on a worker pool.
+ * Every command has conflict keys, the patient file and the doctors it
+ * changes. A command waits only for the earlier commands sharing one of its
+ * keys, so commands on different files or doctors run at the same time while
+ * the commands on one file or doctor keep their log order. A command without
+ * known keys waits for every earlier command and every later one waits for it.
+ * A call returns once all of its commands are applied. If a command fails, the
+ * commands waiting for it are not applied and the call throws.
+ */
+public class ApplyScheduler {
+
+    private final ExecutorService workers;
+    private final Consumer<CommitParams> executor;
+
+    // commands applied and how many of them could start without waiting
+    private long applied = 0;
+    private long independent = 0;
+
+    public static Logger Log = LogManager.getLogger(ApplyScheduler.class);
+
+    /**
+     * Constructor
+     *
+     * @param name     name prefix of the worker threads
+     * @param threads  number of worker threads
+     * @param executor applies one command
+     */
+    public ApplyScheduler(String name, int threads, Consumer<CommitParams> executor) {
+        this.executor = executor;
+        AtomicInteger count = new AtomicInteger(0);
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Apply commands in log order per conflict key
+     *
+     * @param commands commands in log order
+     */
+    public void apply(List<CommitParams> commands) {
+        if (commands.size() == 1) {
+            execute(commands.get(0));
+            record(1, 1);
+            return;
+        }
+
+        // conflict key -> last scheduled command with that key
+        Map<String, CompletableFuture<Void>> last = new HashMap<>();
+        List<CompletableFuture<Void>> all = new ArrayList<>();
+        CompletableFuture<Void> barrier = null;
+        int ready = 0;
+        for (CommitParams c : commands) {
+            List<String> keys = conflictKeys(c);
+            List<CompletableFuture<Void>> before = new ArrayList<>();
+            if (keys == null) {
+                before.addAll(all);
+            } else {
+                if (barrier != null) {
+                    before.add(barrier);
+                }
+                for (String key : keys) {
+                    CompletableFuture<Void> previous = last.get(key);
+                    if (previous != null) {
+                        before.add(previous);
+                    }
+                }
+            }
+
+            CompletableFuture<Void> done;
+            if (before.isEmpty()) {
+                ready++;
+                done = CompletableFuture.runAsync(() -> execute(c), workers);
+            } else {
+                done = CompletableFuture.allOf(before.toArray(new CompletableFuture<?>[0]))
+                        .thenRunAsync(() -> execute(c), workers);
+            }
+            all.add(done);
+            if (keys == null) {
+                barrier = done;
+            } else {
+                for (String key : keys) {
+                    last.put(key, done);
+                }
+            }
+        }
+        CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).join();
+        record(commands.size(), ready);
+    }
+
+    private void execute(CommitParams c) {
+        try {
+            executor.accept(c);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            Log.error("Failed to apply " + c.getProposalMsg() + ": " + e.getMessage());
+            throw e;
+        }
+    }
+
+    private synchronized void record(int count, int ready) {
+        long before = applied;
+        applied += count;
+        independent += ready;
+        if (applied / 10000 != before / 10000) {
+            Log.info(applied + " commands applied, " + (independent * 100 / applied)
+                    + "% started without waiting for a conflicting one");
+        }
+    }
+
+    /**
+     * Get the keys of the data a command changes
+     *
+     * @param c commit parameters
+     * @return conflict keys, or null if the command may conflict with any other
+     */
+    static List<String> conflictKeys(CommitParams c) {
+        List<String> keys = new ArrayList<>(2);
+        switch (c.getCommitEnum()) {
+            case CREATE_USER:
+            case LOGIN:
+            case LOGOUT:
+            case GET_NOTIFICATIONS:
+                keys.add("doctor:" + c.getDoctor().getDoctorName());
+                return keys;
+            case CREATE_DOCUMENT:
+            case EDIT:
+            case EDIT_END:
+                keys.add("doc:" + c.getDocName());
+                return keys;
+            case SHARE:
+                keys.add("doc:" + c.getDocName());
+                keys.add("doctor:" + c.getTargetUser());
+                return keys;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ballot numbers made of a round and the id of the proposer that owns them,
+ * packed into one long: the round in the high bits and the proposer id in the
+ * low 16 bits. Two proposers never produce the same ballot, and a higher round
+ * always wins over a lower one whoever proposed it.
+ * An instance hands out increasing ballots of one proposer without locking.
+ */
+public class Ballot {
+
+    private static final int PROPOSER_BITS = 16;
+    private static final long PROPOSER_MASK = (1L << PROPOSER_BITS) - 1;
+
+    private final int proposerId;
+    // highest round used or seen by this proposer
+    private final AtomicLong round = new AtomicLong(0);
+
+    /**
+     * Constructor
+     *
+     * @param proposerId id of the proposer, unique among the proposers of a group
+     */
+    public Ballot(int proposerId) {
+        if (proposerId < 0 || proposerId > PROPOSER_MASK) {
+            throw new IllegalArgumentException("proposer id out of range: " + proposerId);
+        }
+        this.proposerId = proposerId;
+    }
+
+    /**
+     * Get a new ballot, higher than every ballot handed out or observed before
+     *
+     * @return ballot
+     */
+    public long next() {
+        return of(round.incrementAndGet(), proposerId);
+    }
+
+    /**
+     * Remember a ballot seen elsewhere, e.g. promised by an acceptor, so the
+     * next ballot is higher than it
+     *
+     * @param ballot observed ballot
+     */
+    public void observe(long ballot) {
+        round.accumulateAndGet(roundOf(ballot), Math::max);
+    }
+
+    /**
+     * @return id of the proposer owning these ballots
+     */
+    public int getProposerId() {
+        return proposerId;
+    }
+
+    /**
+     * Pack a round and a proposer id into a ballot
+     *
+     * @param round      round number
+     * @param proposerId proposer id
+     * @return ballot
+     */
+    public static long of(long round, int proposerId) {
+        return (round << PROPOSER_BITS) | proposerId;
+    }
+
+    /**
+     * @param ballot ballot
+     * @return round of the ballot
+     */
+    public static long roundOf(long ballot) {
+        return ballot >>> PROPOSER_BITS;
+    }
+
+    /**
+     * @param ballot ballot
+     * @return id of the proposer of the ballot
+     */
+    public static int proposerOf(long ballot) {
+        return (int) (ballot & PROPOSER_MASK);
+    }
+
+    /**
+     * @param ballot ballot
+     * @return readable form "round.proposerId"
+     */
+    public static String toString(long ballot) {
+        return roundOf(ballot) + "." + proposerOf(ballot);
+    }
+}
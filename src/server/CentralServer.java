@@ -1,9 +1,16 @@
 package server;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
 import java.rmi.server.UnicastRemoteObject;
 
 
@@ -22,13 +29,63 @@ import org.apache.log4j.Logger;
 
 public class CentralServer extends UnicastRemoteObject implements CentralServerInterface {
     private static String host;
-    private static int voteNo = 0;
-    private static final Server[] SERVERS = new Server[5];
-
-    // server status: 0 -> empty and live, 1 -> busy, 2 -> down
-    private static Map<Integer, Integer> statusMap;
+    // current members; the array is replaced as a whole on every change, so a
+    // loop over it always sees one configuration
+    private static volatile Server[] SERVERS = new Server[0];
+    // held while the members change
+    private static final Object MEMBERSHIP = new Object();
+
+    // status of every member, server status: 0 -> empty and live, 1 -> busy, 2 -> down
+    private static final Membership membership = new Membership();
     private static int coordinatorPort;
 
+    // Multi-Paxos mode: a stable leader keeps its ballot across commands and skips phase 1
+    private static final boolean MULTI_PAXOS = Boolean.parseBoolean(System.getProperty("emr.paxos.multi", "true"));
+
+    // group commit: commands arriving close together share one paxos round
+    private static final boolean BATCHING = Boolean.parseBoolean(System.getProperty("emr.batch.enabled", "true"));
+    private static final int BATCH_MAX_SIZE = Integer.getInteger("emr.batch.maxSize", 64);
+    private static final long BATCH_WINDOW_MS = Long.getLong("emr.batch.windowMs", 1);
+    private static final long BATCH_MAX_DELAY_MS = Long.getLong("emr.batch.maxDelayMs", 5);
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("emr.paxos.maxInFlight", 4);
+    private static final int RETAINED_SLOTS = Integer.getInteger("emr.log.retainedSlots", 10000);
+
+    // decentralized proposers: each group is led by one of the servers instead of
+    // this coordinator, which only keeps track of the servers
+    private static final boolean DECENTRALIZED = Boolean.parseBoolean(System.getProperty("emr.paxos.decentralized", "false"));
+
+    // independent consensus groups: group 0 orders the doctor and account
+    // operations, the others order the patient file operations by document name
+    private static final ConsensusGroup[] GROUPS = createGroups(Math.max(1, Integer.getInteger("emr.paxos.groups", 4)));
+
+    // read leases let servers answer reads from their local state
+    private static final boolean READ_LEASES = Boolean.parseBoolean(System.getProperty("emr.lease.enabled", "true"));
+    private static final ReadLeaseManager leases = new ReadLeaseManager(Long.getLong("emr.lease.ms", 2000));
+
+    // clients are placed by the load the servers report
+    private static final LoadBalancer balancer = new LoadBalancer(
+            Long.getLong("emr.load.busyAbove", 64),
+            Long.getLong("emr.load.busyBelow", 32),
+            5 * Server.LOAD_REPORT_MS);
+
+    // the load reports double as heartbeats; a server whose heartbeats stop is
+    // marked down, and live again once they resume
+    private static final boolean FAILURE_DETECTION = Boolean.parseBoolean(System.getProperty("emr.failure.enabled", "true"));
+    private static final FailureDetector detector = new FailureDetector(
+            Double.parseDouble(System.getProperty("emr.failure.phiThreshold", "8")),
+            Server.LOAD_REPORT_MS,
+            Long.getLong("emr.failure.minStdDevMs", 200));
+    // servers marked down by the failure detector rather than by an operator
+    private static final Set<Integer> suspected = ConcurrentHashMap.newKeySet();
+    private static ScheduledExecutorService monitor;
+    // recovers servers whose heartbeats resumed or that failed to apply a command,
+    // off the failure detector thread and the load reports
+    private static final ExecutorService recovery = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "server-recovery");
+        t.setDaemon(true);
+        return t;
+    });
+
     public static Logger Log = LogManager.getLogger(CentralServer.class);
 
     /**
@@ -42,23 +99,249 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
         super();
         this.host = host;
         this.coordinatorPort = coordinatorPort;
-        statusMap = new HashMap<>();
         bindRMI(coordinatorPort);
         for (int i = 0; i < serverPorts.length; i++) {
 
-            SERVERS[i] = new Server(serverPorts[i], coordinatorPort);
-            ServerInterface stub = (ServerInterface) UnicastRemoteObject.exportObject(SERVERS[i], 0);
-            Registry registry = LocateRegistry.createRegistry(serverPorts[i]);
-            registry.rebind(Server.class.getSimpleName() + serverPorts[i], stub);
-            Log.debug("Server " + " at port " + serverPorts[i] + " is running...");
+            Server server = startServer(serverPorts[i]);
+            SERVERS = withServer(SERVERS, server);
 
             // initialize the server to be live and empty
             // server status: 0 -> empty and live, 1 -> busy, 2 -> down
-            statusMap.put(serverPorts[i], 0);
+            membership.add(serverPorts[i], MembershipView.LIVE);
+
+            // durable acceptors remember promises from earlier runs, so new
+            // ballots have to start above them
+            for (ConsensusGroup group : GROUPS) {
+                group.seedVoteNo(server.gAcceptor(group.getId()).getPromisedVoteNo());
+            }
+        }
+
+        alignRestoredServers();
+
+        if (FAILURE_DETECTION) {
+            monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "failure-detector");
+                t.setDaemon(true);
+                return t;
+            });
+            long checkMs = Math.max(10, Server.LOAD_REPORT_MS / 5);
+            monitor.scheduleWithFixedDelay(CentralServer::checkServers, checkMs, checkMs, TimeUnit.MILLISECONDS);
+        }
+
+
+
+    }
+
+    /**
+     * Create a server and bind it in the RMI registry on its port
+     *
+     * @param port port# of the server
+     * @return the server
+     */
+    private static Server startServer(int port) throws RemoteException {
+        Server server = new Server(port, coordinatorPort);
+        ServerInterface stub = (ServerInterface) UnicastRemoteObject.exportObject(server, 0);
+        Registry registry;
+        try {
+            registry = LocateRegistry.createRegistry(port);
+        } catch (ExportException e) {
+            // a server was on this port before
+            registry = LocateRegistry.getRegistry(port);
         }
+        registry.rebind(Server.class.getSimpleName() + port, stub);
+        Log.debug("Server " + " at port " + port + " is running...");
+        return server;
+    }
 
+    private static Server[] withServer(Server[] servers, Server server) {
+        Server[] next = Arrays.copyOf(servers, servers.length + 1);
+        next[servers.length] = server;
+        return next;
+    }
 
+    /**
+     * Add a server to the cluster. Members change one server at a time, so
+     * every majority of the old members and every majority of the new members
+     * share a server, and nothing decided before the change is lost after it.
+     * The new server is seeded from the latest snapshot of a live server and
+     * takes the slots decided after it from the retained decisions.
+     *
+     * @param port port# of the new server
+     * @return true if the server joined
+     */
+    @Override
+    public boolean addServer(int port) throws RemoteException {
+        synchronized (MEMBERSHIP) {
+            if (findServer(port) != null) {
+                Log.info("Server " + port + " is already a member.");
+                return false;
+            }
+            Server server = startServer(port);
+            membership.add(port, MembershipView.DOWN);
+
+            boolean seeded = SERVERS.length == 0;
+            for (Server s : SERVERS) {
+                if (isLive(s.port)) {
+                    seeded = s.seedFromSnapshot(port) || s.helpRecoverData(port);
+                    break;
+                }
+            }
+            if (!seeded) {
+                Log.info("Server " + port + " could not be seeded, not added.");
+                membership.remove(port);
+                stopServer(server);
+                return false;
+            }
 
+            SERVERS = withServer(SERVERS, server);
+            for (ConsensusGroup group : GROUPS) {
+                group.seedVoteNo(server.gAcceptor(group.getId()).getPromisedVoteNo());
+            }
+            // decisions made while it was seeded are taken now that it is a learner
+            boolean joined = rejoin(server);
+            Log.info("Server " + port + " added, " + SERVERS.length + " members, quorum " + getQuorum()
+                    + (joined ? "" : ", but it is not up to date yet and stays down"));
+            return true;
+        }
+    }
+
+    /**
+     * Remove a server from the cluster, one server at a time
+     *
+     * @param port port# of the server
+     * @return true if the server was removed
+     */
+    @Override
+    public boolean removeServer(int port) throws RemoteException {
+        synchronized (MEMBERSHIP) {
+            Server server = findServer(port);
+            if (server == null || SERVERS.length <= 1) {
+                Log.info("Server " + port + " cannot be removed.");
+                return false;
+            }
+            List<Server> remaining = new ArrayList<>(Arrays.asList(SERVERS));
+            remaining.remove(server);
+            SERVERS = remaining.toArray(new Server[0]);
+
+            membership.remove(port);
+            suspected.remove(port);
+            detector.reset(port);
+            StubCache.invalidate(port);
+            // its undelivered slots would be retried forever and handed to a server re-added on the port
+            for (ConsensusGroup group : GROUPS) {
+                group.getDispatcher().remove(port);
+            }
+            for (Server s : SERVERS) {
+                s.removeLearner(port);
+            }
+            stopServer(server);
+            Log.info("Server " + port + " removed, " + SERVERS.length + " members, quorum " + getQuorum());
+            return true;
+        }
+    }
+
+    private static void stopServer(Server server) {
+        server.shutdown();
+        try {
+            UnicastRemoteObject.unexportObject(server, true);
+        } catch (NoSuchObjectException e) {
+            Log.debug("Server " + server.port + " was not exported.");
+        }
+    }
+
+    /**
+     * @return number of member servers, down ones included
+     */
+    static int getMemberCount() {
+        return SERVERS.length;
+    }
+
+    /**
+     * @return number of acceptors that make a majority of the members
+     */
+    static int getQuorum() {
+        return SERVERS.length / 2 + 1;
+    }
+
+    /**
+     * The servers restored their state from their snapshots and command logs.
+     * The slot numbers of every group continue after the server most advanced
+     * in that group, and this coordinator keeps the slots that server logged
+     * as decisions, so the servers behind it take them like slots they missed.
+     * A server that cannot, because the slots are no longer logged or the
+     * servers run their own consensus groups, copies the state of a server at
+     * or above it in every group and then takes the rest.
+     */
+    private static void alignRestoredServers() {
+        if (SERVERS.length == 0) {
+            return;
+        }
+        long[] highest = new long[GROUPS.length];
+        for (ConsensusGroup group : GROUPS) {
+            int id = group.getId();
+            Server ahead = SERVERS[0];
+            long lowest = Long.MAX_VALUE;
+            for (Server s : SERVERS) {
+                if (s.getAppliedSlot(id) > ahead.getAppliedSlot(id)) {
+                    ahead = s;
+                }
+                lowest = Math.min(lowest, s.getAppliedSlot(id));
+            }
+            highest[id] = ahead.getAppliedSlot(id);
+            group.seedLastSlot(highest[id]);
+            for (Map.Entry<Long, List<CommitParams>> slot : ahead.getLoggedSlots(id, lowest).entrySet()) {
+                group.keep(slot.getKey(), slot.getValue());
+            }
+        }
+
+        for (Server s : SERVERS) {
+            boolean behind = false;
+            for (ConsensusGroup group : GROUPS) {
+                behind |= s.getAppliedSlot(group.getId()) < highest[group.getId()];
+            }
+            if (!behind || !isDecentralized() && s.catchUp()) {
+                continue;
+            }
+            Server source = findCovering(s);
+            if (source == null) {
+                Log.info("Server " + s.port + " cannot be aligned, no server is at or above it in every group.");
+                membership.setStatus(s.port, MembershipView.DOWN);
+                continue;
+            }
+            Log.info("Server " + s.port + " copies the state of server " + source.port);
+            if (!source.helpRecoverData(s.port) || !s.catchUp()) {
+                membership.setStatus(s.port, MembershipView.DOWN);
+            }
+        }
+    }
+
+    /**
+     * Find the server most advanced in every group among those at or above a
+     * given server in every group, so copying its state moves no group back
+     *
+     * @param server the server behind
+     * @return the covering server, or null if there is none
+     */
+    private static Server findCovering(Server server) {
+        Server covering = null;
+        for (Server s : SERVERS) {
+            if (s != server && isAtOrAbove(s, server) && (covering == null || isAtOrAbove(s, covering))) {
+                covering = s;
+            }
+        }
+        return covering;
+    }
+
+    /**
+     * @return true if the first server applied at least the slots of the second one in every group
+     */
+    private static boolean isAtOrAbove(Server s, Server other) {
+        for (ConsensusGroup group : GROUPS) {
+            if (s.getAppliedSlot(group.getId()) < other.getAppliedSlot(group.getId())) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public static void main(String[] args) throws RemoteException {
@@ -73,10 +356,10 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
 
             System.out.println("Please enter the host: ");
             String host = sc.nextLine();
-            System.out.println("Please enter the coordinator port and five server port, seperate by space: ");
+            System.out.println("Please enter the coordinator port and the server ports, seperate by space: ");
             input = sc.nextLine().split(" ");
 
-            if (input.length != 6) {
+            if (input.length < 2) {
                 Log.info("Invalid Input!");
                 continue;
             }
@@ -92,9 +375,9 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
 
         }
         // coordinator port is the first input port input[0]
-        // the last five input port is server port input[1:]
+        // the other input ports are server ports input[1:]
         coordinatorPort = Integer.parseInt(input[0]);
-        int[] serverPorts = new int[5];
+        int[] serverPorts = new int[input.length - 1];
 
         for (int i = 0; i < serverPorts.length; i++) {
             serverPorts[i] = Integer.parseInt(input[i + 1]);
@@ -118,23 +401,128 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
         }
     }
 
-     /**
-       * assign an alive server to client, loop through the servers until we found a live server
-      */
+    /**
+     * assign an alive server to client: the less loaded of two random servers
+     * that are not busy, or of two busy ones if every live server is busy
+     */
     @Override
     public int assignAliveServerToClient() throws RemoteException {
-        for(Server s: SERVERS){
-            // server status: 0 -> empty and live, 1 -> busy, 2 -> down
-            if(statusMap.get(s.port) == 0){
+        List<Integer> idle = new ArrayList<>();
+        List<Integer> busy = new ArrayList<>();
+        membership.current().getStatuses().forEach((port, status) -> {
+            if (status == MembershipView.LIVE) {
+                idle.add(port);
+            } else if (status == MembershipView.BUSY) {
+                busy.add(port);
+            }
+        });
+        List<Integer> candidates = idle.isEmpty() ? busy : idle;
+        if (candidates.isEmpty()) {
+            Log.debug("NO alive server");
+            return -1;
+        }
+        int port = balancer.choose(candidates);
+        Log.debug("Server port: " + port + " is assigned to client, load " + balancer.scoreOf(port));
+        return port;
+    }
 
-                Log.debug("Server port: " + s.port + "is assigned to client.");
-                return s.port;
-            }else{
-                continue;
+    /**
+     * Record the load of a server and mark it busy or idle
+     *
+     * @param port port# of the server
+     * @param load current load of the server
+     */
+    @Override
+    public void reportLoad(int port, ServerLoad load) throws RemoteException {
+        detector.heartbeat(port);
+        balancer.report(port, load);
+        int status = membership.current().getStatus(port);
+        if (status == MembershipView.NOT_FOUND || status == MembershipView.DOWN) {
+            return;
+        }
+        if (load.needsRecovery()) {
+            // its state may hold part of a failed command, so only a copy repairs it
+            if (membership.compareAndSetStatus(port, status, MembershipView.DOWN)) {
+                Log.info("Server " + port + " failed to apply a command, marked down for recovery.");
+                recovery.execute(() -> {
+                    Server s = findServer(port);
+                    if (s == null || !copyFromLiveServer(s)) {
+                        Log.info("Server " + port + " could not be recovered and stays down.");
+                    }
+                });
+            }
+            return;
+        }
+        int next = balancer.isBusy(port, status == MembershipView.BUSY) ? MembershipView.BUSY : MembershipView.LIVE;
+        if (next != status && membership.compareAndSetStatus(port, status, next)) {
+            Log.info("Server " + port + (next == 1 ? " is busy: " : " is no longer busy: ") + load);
+        }
+    }
+
+    /**
+     * Mark the servers whose heartbeats stopped as down, and bring back the
+     * ones marked down by the detector whose heartbeats resumed, recovering
+     * their data on the recovery thread. Servers killed by an operator stay
+     * down until they are restarted.
+     */
+    private static void checkServers() {
+        MembershipView view = membership.current();
+        for (int port : view.getPorts()) {
+            int status = view.getStatus(port);
+            boolean silent = detector.isSuspected(port);
+            if (status != MembershipView.DOWN && silent) {
+                if (membership.compareAndSetStatus(port, status, MembershipView.DOWN)) {
+                    suspected.add(port);
+                    detector.recordSuspicion(port);
+                    // it may come back as a new object, look it up again then
+                    StubCache.invalidate(port);
+                    Log.info("Server " + port + " stopped sending heartbeats (phi "
+                            + String.format("%.1f", detector.phi(port)) + "), marked down.");
+                }
+            } else if (status == MembershipView.DOWN && !silent && suspected.remove(port)) {
+                detector.recordFalsePositive();
+                // the silent gap is not part of its heartbeat history
+                detector.reset(port);
+                Log.info("Server " + port + " sends heartbeats again, rejoining.");
+                // a data recovery would hold up the checks of every other server
+                recovery.execute(() -> {
+                    Server s = findServer(port);
+                    if (s == null || !rejoin(s)) {
+                        Log.info("Server " + port + " could not rejoin and stays down.");
+                    }
+                });
             }
         }
-        Log.debug("NO alive server");
-        return -1;
+    }
+
+    /**
+     * Get the suspicion level of every server
+     *
+     * @return port# -> phi
+     */
+    @Override
+    public Map<Integer, Double> getSuspicionLevels() throws RemoteException {
+        Map<Integer, Double> levels = new TreeMap<>();
+        for (Server s : SERVERS) {
+            levels.put(s.port, detector.phi(s.port));
+        }
+        return levels;
+    }
+
+    /**
+     * @return detection metrics of the failure detector
+     */
+    @Override
+    public Map<String, Long> getFailureDetectorMetrics() throws RemoteException {
+        return detector.getMetrics();
+    }
+
+    /**
+     * @param port port# of a server
+     * @return true if the server is up, whether busy or not
+     */
+    static boolean isLive(int port) {
+        return membership.current().isLive(port);
     }
 
     /**
@@ -145,7 +533,9 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
     public void killSlaveServer(int port) throws RemoteException {
 
         try {
-            statusMap.put(port, 2);
+            membership.setStatus(port, MembershipView.DOWN);
+            // an operator kill is not undone by resumed heartbeats
+            suspected.remove(port);
             Log.debug("Server " + port + " is killed.");
 
         } catch (Exception e) {
@@ -163,28 +553,72 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
      */
     @Override
     public boolean restartSlaveServer(int slaveServerPort) throws RemoteException {
-        if (statusMap.get(slaveServerPort) != 2) {
+        if (membership.current().getStatus(slaveServerPort) != MembershipView.DOWN) {
             return false;
         }
-        // start a new server
-        Server server = new Server(slaveServerPort, coordinatorPort);
-        ServerInterface stub = (ServerInterface) UnicastRemoteObject.exportObject(server, 0);
-        Registry registry = LocateRegistry.getRegistry(slaveServerPort);
-        registry.rebind(Server.class.getSimpleName() + slaveServerPort, stub);
+        // stop the old server object, then start a new server that restores
+        // its snapshot and command log
+        Server server;
+        synchronized (MEMBERSHIP) {
+            Server old = findServer(slaveServerPort);
+            if (old == null) {
+                return false;
+            }
+            stopServer(old);
+            suspected.remove(slaveServerPort);
+            detector.reset(slaveServerPort);
+            server = startServer(slaveServerPort);
+            Server[] next = SERVERS.clone();
+            next[Arrays.asList(next).indexOf(old)] = server;
+            SERVERS = next;
+        }
+        StubCache.invalidate(slaveServerPort);
+
+        return rejoin(server);
+    }
+
+    /**
+     * Bring a server that was down up to date and mark it live
+     *
+     * @param server the server
+     * @return true if its data is recovered
+     */
+    private static boolean rejoin(Server server) {
+        int slaveServerPort = server.port;
+        // the slots missed while it was down are still kept here, no copy needed,
+        // unless it failed to apply one of them
+        if (!server.getLoad().needsRecovery() && server.catchUp()) {
+            Log.info("Server " + slaveServerPort + " caught up from its command log.");
+            membership.setStatus(slaveServerPort, MembershipView.LIVE);
+            return true;
+        }
+        return copyFromLiveServer(server);
+    }
 
+    /**
+     * Replace the state of a server by a copy from a live server and mark it live
+     *
+     * @param server the server
+     * @return true if its data is recovered
+     */
+    private static boolean copyFromLiveServer(Server server) {
+        int slaveServerPort = server.port;
         // loop through current servers until we found a live server to help recover
         // data
         for (Server s : SERVERS) {
             if (s.port == slaveServerPort)
                 continue;
-            if (statusMap.get(s.port) == 0) {
+            if (isLive(s.port)) {
                 try {
                     Log.info("Assign server " + s.port + " to help server " +
                             slaveServerPort + " to recover data.");
-                    registry = LocateRegistry.getRegistry(s.port);
-                    ServerInterface aliveServer = (ServerInterface) registry.lookup("Server" + s.port);
-                    s.helpRecoverData(slaveServerPort);
-                    statusMap.put(slaveServerPort, 0);
+                    if (!s.helpRecoverData(slaveServerPort)) {
+                        return false;
+                    }
+                    // the copy may be older than what the server had applied, so its
+                    // log went back and takes the slots in between again
+                    server.catchUp();
+                    membership.setStatus(slaveServerPort, MembershipView.LIVE);
                     return true;
 
                 } catch (Exception e) {
@@ -209,10 +643,7 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
 
     @Override
     public int getServerStatus(int port) throws RemoteException {
-        if (statusMap.get(port) == null)
-            return -1;
-        return statusMap.get(port);
-
+        return membership.current().getStatus(port);
     }
 
     /**
@@ -224,8 +655,37 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
      */
     @Override
     public void setServerStatus(int port, int status) throws RemoteException {
-        statusMap.put(port, status);
+        membership.setStatus(port, status);
+    }
+
+    /**
+     * @return the current membership view
+     */
+    @Override
+    public MembershipView getMembershipView() throws RemoteException {
+        return membership.current();
+    }
+
+    /**
+     * Be told about every later membership change instead of polling the
+     * server status
+     *
+     * @param listener subscriber
+     * @return the current membership view
+     */
+    @Override
+    public MembershipView subscribeMembership(MembershipListener listener) throws RemoteException {
+        return membership.subscribe(listener);
+    }
 
+    /**
+     * Stop being told about membership changes
+     *
+     * @param listener subscriber
+     */
+    @Override
+    public void unsubscribeMembership(MembershipListener listener) throws RemoteException {
+        membership.unsubscribe(listener);
     }
 
     // SF note: 暂不需要， 可删除
@@ -246,21 +706,33 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
      * check if the server is
      * live or not , if it is live, add to acceptors.
      * And then call Proposer.prepare() method to prepare the request.
+     * The request is ordered by the group of doctor and account operations.
      * 
      * @param msg
      * @return true if it is successfully prepared
      */
 
     public static boolean paxosPrepare(String msg) throws RemoteException {
-        List<Acceptor> acceptors = new ArrayList<>();
+        return GROUPS[0].propose(msg, 0);
+    }
 
-        // loop through each server to add to acceptors
+    /**
+     * Get the acceptors of a consensus group on the live servers
+     *
+     * @param group group id
+     * @return live acceptors
+     */
+    static List<AcceptorInterface> getLiveAcceptors(int group) {
+        List<AcceptorInterface> acceptors = new ArrayList<>();
+
+        // loop through each server to add to acceptors, all judged by one view
+        MembershipView view = membership.current();
         for (Server s : SERVERS) {
             try {
 
                 // s.prepareServer();
-                if (statusMap.get(s.port) == 0) {
-                    acceptors.add(s.gAcceptor());
+                if (view.isLive(s.port)) {
+                    acceptors.add(s.gAcceptor(group));
 
                 }
 
@@ -270,41 +742,268 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
             }
 
         }
+        return acceptors;
+    }
 
-        boolean result = Proposer.prepare(new Proposal(++voteNo, msg), acceptors);
-        return result;
+    /**
+     * @return port numbers of all the servers
+     */
+    static int[] getServerPorts() {
+        int[] ports = new int[SERVERS.length];
+        for (int i = 0; i < SERVERS.length; i++) {
+            ports[i] = SERVERS[i].port;
+        }
+        return ports;
+    }
 
+    /**
+     * @return port numbers of the live servers, in server order
+     */
+    static List<Integer> getLivePorts() {
+        return membership.current().getLivePorts();
+    }
+
+    private static ConsensusGroup[] createGroups(int count) {
+        ConsensusGroup[] groups = new ConsensusGroup[count];
+        for (int i = 0; i < count; i++) {
+            groups[i] = new ConsensusGroup(i, ConsensusGroup.COORDINATOR_PROPOSER_ID, BATCH_MAX_SIZE,
+                    BATCH_WINDOW_MS, BATCH_MAX_DELAY_MS, MAX_IN_FLIGHT, RETAINED_SLOTS);
+        }
+        return groups;
     }
 
     /**
-     * All the other replicas need to learn to update its store
-     * 
-     * @param
-     * @param port
+     * Create the groups a server proposes for while it leads them
+     *
+     * @param owner the server
+     * @return one group per consensus group
      */
+    static PeerConsensusGroup[] createPeerGroups(Server owner) {
+        PeerConsensusGroup[] groups = new PeerConsensusGroup[GROUPS.length];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new PeerConsensusGroup(i, owner, BATCH_MAX_SIZE,
+                    BATCH_WINDOW_MS, BATCH_MAX_DELAY_MS, MAX_IN_FLIGHT, RETAINED_SLOTS);
+        }
+        return groups;
+    }
 
+    /**
+     * @return number of recent decisions kept for servers filling a gap
+     */
+    static int getRetainedSlots() {
+        return RETAINED_SLOTS;
+    }
 
-    public static void learn(CommitParams c, int port) throws RemoteException {
-        for (Server server : SERVERS) {
-            // argument server already updated, so ignore here
-            if (server.port == port)
-                continue;
+    /**
+     * @return true if the servers lead the consensus groups
+     */
+    public static boolean isDecentralized() {
+        return DECENTRALIZED;
+    }
 
+    /**
+     * Get the server leading a consensus group. The groups are spread over the
+     * live servers, so a group moves to another server when its leader is down.
+     *
+     * @param group group id
+     * @return port# of the leading server, or -1 if no server is live
+     */
+    public static int leaderOf(int group) {
+        List<Integer> live = getLivePorts();
+        return live.isEmpty() ? -1 : live.get(group % live.size());
+    }
 
-            try {
+    /**
+     * @param port port# of a server
+     * @return the server object, or null if there is none on the port
+     */
+    static Server findServer(int port) {
+        for (Server s : SERVERS) {
+            if (s != null && s.port == port) {
+                return s;
+            }
+        }
+        return null;
+    }
 
-           // learn
-                Registry registry = LocateRegistry.getRegistry(server.port);
-                ServerInterface stub = (ServerInterface) registry.lookup(Server.class.getSimpleName() + server.port);
-                stub.executeCommit(c);
+    /**
+     * @return number of consensus groups
+     */
+    public static int getGroupCount() {
+        return GROUPS.length;
+    }
 
-            } catch (Exception e) {
-                e.printStackTrace();
-                Log.debug("Server " + server.port + " is down.");
+    /**
+     * Get the consensus group that orders a command. Operations on a patient
+     * file go to the group of the document name, all the others to group 0.
+     *
+     * @param c commit parameters
+     * @return group id
+     */
+    public static int groupOf(CommitParams c) {
+        if (GROUPS.length == 1) {
+            return 0;
+        }
+        switch (c.getCommitEnum()) {
+            case CREATE_DOCUMENT:
+            case EDIT:
+            case EDIT_END:
+            case SHARE:
+                return 1 + Math.floorMod(c.getDocName().hashCode(), GROUPS.length - 1);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return true if multi-paxos leaders are used
+     */
+    static boolean isMultiPaxos() {
+        return MULTI_PAXOS;
+    }
+
+    /**
+     * @return true if commands should be submitted to the group commit stage
+     */
+    public static boolean isBatching() {
+        return BATCHING;
+    }
+
+    /**
+     * Submit a command to the group commit stage of its group. It is decided
+     * together with the other commands of its batch in one log slot.
+     *
+     * @param group group id
+     * @param c     commit parameters
+     * @return the slot of the batch containing the command, or -1 if it was aborted
+     */
+    public static long submit(int group, CommitParams c) {
+        return GROUPS[group].submit(c);
+    }
+
+    /**
+     * Decide a batch of commands in a new log slot of a group and let every
+     * server learn it. Several slots can be decided at the same time; each
+     * server applies them in slot order.
+     *
+     * @param group group id
+     * @param batch commands in commit order
+     * @return the slot of the batch, or -1 if it was aborted
+     */
+    public static long decide(int group, List<CommitParams> batch) {
+        return GROUPS[group].decide(batch);
+    }
+
+    /**
+     * @param group group id
+     * @return last log slot handed out in the group
+     */
+    public static long getLastSlot(int group) {
+        return GROUPS[group].getLastSlot();
+    }
+
+    /**
+     * @param group group id
+     * @return oldest slot of the group whose decision is still kept
+     */
+    public static long getOldestRetainedSlot(int group) {
+        return GROUPS[group].getOldestRetainedSlot();
+    }
+
+    /**
+     * Get the commands decided for a recent slot
+     *
+     * @param group group id
+     * @param slot  log slot
+     * @return decided commands, or null if the slot is not decided yet or too old
+     */
+    public static List<CommitParams> getDecision(int group, long slot) {
+        return GROUPS[group].getDecision(slot);
+    }
+
+    /**
+     * Order a read through a paxos round with no commands in every group. Once
+     * a server applied the returned slots, it has every write acknowledged
+     * before the read started.
+     *
+     * @return the slot of the round in each group, or null if one was aborted
+     */
+    public static long[] readBarrier() {
+        long[] slots = new long[GROUPS.length];
+        for (ConsensusGroup group : GROUPS) {
+            slots[group.getId()] = group.decide(Collections.emptyList());
+            if (slots[group.getId()] < 0) {
+                return null;
             }
+        }
+        return slots;
+    }
 
+    /**
+     * @return true if servers may serve reads locally under a read lease
+     */
+    public static boolean isReadLeaseEnabled() {
+        return READ_LEASES;
+    }
+
+    /**
+     * Grant a read lease to a server. The server may serve reads locally once
+     * it applied every slot up to the read index, until the lease expires.
+     *
+     * @param port port# of the server
+     * @return the lease
+     */
+    public static ReadLeaseManager.Lease grantReadLease(int port) {
+        long expiry = leases.register(port);
+        long[] readIndex = new long[GROUPS.length];
+        for (ConsensusGroup group : GROUPS) {
+            if (DECENTRALIZED) {
+                Server leader = findServer(leaderOf(group.getId()));
+                readIndex[group.getId()] = leader == null ? 0 : leader.getLastSlot(group.getId());
+            } else {
+                readIndex[group.getId()] = group.getLastSlot();
+            }
         }
+        return new ReadLeaseManager.Lease(expiry, readIndex);
+    }
 
+    /**
+     * Wait until every other lease holder applied a committed slot, or until its
+     * lease expired, so the write is visible to all reads served under a lease.
+     *
+     * @param group group of the slot
+     * @param slot  committed slot
+     * @param port  port# of the server that committed it
+     */
+    public static void awaitReadLeaseHolders(int group, long slot, int port) {
+        for (Map.Entry<Integer, Long> holder : leases.getActiveHolders().entrySet()) {
+            if (holder.getKey() == port) {
+                continue;
+            }
+            for (Server server : SERVERS) {
+                long remaining = holder.getValue() - System.currentTimeMillis();
+                if (server.port == holder.getKey() && remaining > 0) {
+                    server.awaitApplied(group, slot, remaining);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get how many decided slots each replica has not received yet
+     *
+     * @return port# -> lag in slots
+     */
+    @Override
+    public Map<Integer, Long> getReplicationLag() throws RemoteException {
+        Map<Integer, Long> lag = new TreeMap<>();
+        for (ConsensusGroup group : GROUPS) {
+            group.getDispatcher().getLag().forEach((port, behind) -> lag.merge(port, behind, Long::sum));
+        }
+        for (Server s : SERVERS) {
+            s.getLearnerLag().forEach((port, behind) -> lag.merge(port, behind, Long::sum));
+        }
+        return lag;
     }
 
 //    // function to check if a string is numeric or not
@@ -2,6 +2,7 @@ package server;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Map;
 
 /**
  * CentralServerInterface.java
@@ -20,8 +21,26 @@ public interface CentralServerInterface extends Remote {
 
     public void setServerStatus(int port, int status) throws RemoteException;
 
+    public MembershipView getMembershipView() throws RemoteException;
+
+    public MembershipView subscribeMembership(MembershipListener listener) throws RemoteException;
+
+    public void unsubscribeMembership(MembershipListener listener) throws RemoteException;
+
     public void receiveNotification(String message) throws RemoteException;
 
+    public Map<Integer, Long> getReplicationLag() throws RemoteException;
+
+    public void reportLoad(int port, ServerLoad load) throws RemoteException;
+
+    public Map<Integer, Double> getSuspicionLevels() throws RemoteException;
+
+    public Map<String, Long> getFailureDetectorMetrics() throws RemoteException;
+
+    public boolean addServer(int port) throws RemoteException;
+
+    public boolean removeServer(int port) throws RemoteException;
+
     // public int[] getPeers(int toPort) throws RemoteException;
 
 
@@ -0,0 +1,394 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import model.CommitParams;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of the slots a server applied in one consensus group, the
+ * write-ahead log of its databases. Every applied slot is appended before its
+ * commands change the databases, so the server can rebuild its state from the
+ * latest snapshot and the slots logged after it. The log is split into
+ * segments that start at a snapshot: a segment file is named after the first
+ * slot it may hold, and once a newer snapshot is on disk the segments before
+ * it are deleted.
+ *
+ * Segment layout: magic "EMRL" (int), version (int), then entries of
+ * slot (long), length (int), CRC32C of slot and commands (int), serialized
+ * command list. Reading stops at the first entry that is cut short or fails
+ * its checksum, which is where a crash interrupted a write; the newest
+ * segment is truncated there before new entries are appended. Segments
+ * written before the checksums have no header and are read as
+ * slot, length, commands.
+ *
+ * When an entry reaches the disk depends on the fsync policy: COMMIT forces
+ * every entry, BATCH forces once per run of slots applied together, and
+ * INTERVAL forces in the background every few milliseconds, so a crash may
+ * lose the slots of the last interval. Slots lost that way are taken again
+ * from the other servers when the server rejoins.
+ */
+public class CommandLog {
+
+    /**
+     * When appended entries are forced to the disk
+     */
+    public enum FsyncPolicy {
+        COMMIT, BATCH, INTERVAL
+    }
+
+    private static final int MAGIC = 0x454D524C;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+
+    // forces the logs with the INTERVAL policy
+    private static final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "command-log-sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final File dir;
+    private final int group;
+    private final FsyncPolicy policy;
+    private final ScheduledFuture<?> intervalSync;
+    // highest slot in the log, appends at or below it are ignored
+    private long lastSlot = 0;
+    private DataOutputStream out;
+    private FileChannel channel;
+    // true if entries were written since the last force
+    private boolean dirty = false;
+    private long syncs = 0;
+
+    public static Logger Log = LogManager.getLogger(CommandLog.class);
+
+    /**
+     * Open the log of a group, appending to its newest segment
+     *
+     * @param dir             directory of the segment files
+     * @param group           consensus group
+     * @param policy          when appended entries are forced to the disk
+     * @param fsyncIntervalMs how often the INTERVAL policy forces the log
+     */
+    public CommandLog(String dir, int group, FsyncPolicy policy, long fsyncIntervalMs) throws IOException {
+        this.dir = new File(dir);
+        this.group = group;
+        this.policy = policy;
+        this.dir.mkdirs();
+        List<File> segments = getSegments();
+        TreeMap<Long, List<CommitParams>> slots = new TreeMap<>();
+        long validLength = 0;
+        boolean legacy = false;
+        for (File segment : segments) {
+            validLength = read(segment, slots);
+            legacy = isLegacy(segment);
+        }
+        if (!slots.isEmpty()) {
+            lastSlot = slots.lastKey();
+        }
+
+        File newest = segments.isEmpty() ? segmentFile(1) : segments.get(segments.size() - 1);
+        if (newest.exists() && newest.length() < HEADER_SIZE) {
+            // the header itself was cut off, nothing was logged in it
+            try (FileChannel truncate = FileChannel.open(newest.toPath(), StandardOpenOption.WRITE)) {
+                truncate.truncate(0);
+            }
+        } else if (legacy && newest.length() > 0) {
+            // do not mix entries with and without checksums in one segment
+            newest = segmentFile(lastSlot + 1);
+        } else if (newest.exists() && newest.length() > validLength) {
+            Log.info("Group " + group + " log segment " + newest.getName() + " has a damaged tail of "
+                    + (newest.length() - validLength) + " bytes, truncated");
+            try (FileChannel truncate = FileChannel.open(newest.toPath(), StandardOpenOption.WRITE)) {
+                truncate.truncate(validLength);
+            }
+        }
+        open(newest);
+
+        intervalSync = policy == FsyncPolicy.INTERVAL
+                ? syncer.scheduleWithFixedDelay(this::sync, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    /**
+     * Append the commands of an applied slot. Slots that are already in the log,
+     * e.g. while the log itself is replayed, are not appended again. With the
+     * COMMIT policy the entry is on the disk when this returns.
+     *
+     * @param slot     applied slot
+     * @param commands commands of the slot
+     */
+    public synchronized void append(long slot, List<CommitParams> commands) {
+        if (slot <= lastSlot || out == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                output.writeObject(new ArrayList<>(commands));
+            }
+            byte[] payload = bytes.toByteArray();
+            out.writeLong(slot);
+            out.writeInt(payload.length);
+            out.writeInt(checksum(slot, payload));
+            out.write(payload);
+            out.flush();
+            lastSlot = slot;
+            dirty = true;
+            if (policy == FsyncPolicy.COMMIT) {
+                force();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Group " + group + " slot " + slot + " not logged: " + e.getMessage());
+        }
+    }
+
+    /**
+     * End of a run of appended slots: with the BATCH policy the run is forced
+     * to the disk with one fsync before its slots are applied
+     */
+    public synchronized void commit() {
+        if (policy == FsyncPolicy.BATCH) {
+            sync();
+        }
+    }
+
+    /**
+     * Force the entries written since the last force to the disk
+     */
+    public synchronized void sync() {
+        if (!dirty || out == null) {
+            return;
+        }
+        try {
+            force();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Group " + group + " log not synced: " + e.getMessage());
+        }
+    }
+
+    private void force() throws IOException {
+        channel.force(false);
+        dirty = false;
+        syncs++;
+    }
+
+    /**
+     * @return number of times the log was forced to the disk
+     */
+    public synchronized long getSyncCount() {
+        return syncs;
+    }
+
+    /**
+     * Read every logged slot after a given one
+     *
+     * @param afterSlot slot included in the snapshot the log is replayed on
+     * @return slot -> commands, in slot order
+     */
+    public synchronized SortedMap<Long, List<CommitParams>> readAfter(long afterSlot) {
+        TreeMap<Long, List<CommitParams>> slots = new TreeMap<>();
+        for (File segment : getSegments()) {
+            read(segment, slots);
+        }
+        return slots.tailMap(afterSlot + 1);
+    }
+
+    /**
+     * Start a new segment for the slots after a snapshot. Called while no slot
+     * is being applied, so the older segments hold exactly the slots up to it.
+     *
+     * @param nextSlot first slot not included in the snapshot
+     */
+    public synchronized void roll(long nextSlot) {
+        try {
+            closeSegment();
+            dir.mkdirs();
+            lastSlot = Math.max(lastSlot, nextSlot - 1);
+            open(segmentFile(nextSlot));
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Group " + group + " log segment not started: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drop the whole log and start again after a given slot, e.g. after the
+     * state of the server was replaced by a copy
+     *
+     * @param nextSlot first slot not included in the new state
+     */
+    public synchronized void reset(long nextSlot) {
+        closeSegment();
+        for (File segment : getSegments()) {
+            if (!segment.delete()) {
+                Log.debug("Failed to delete log segment " + segment);
+            }
+        }
+        lastSlot = 0;
+        roll(nextSlot);
+    }
+
+    /**
+     * Delete the segments that only hold slots before a snapshot on disk
+     *
+     * @param nextSlot first slot not included in the snapshot
+     */
+    public synchronized void truncateBefore(long nextSlot) {
+        for (File segment : getSegments()) {
+            if (firstSlotOf(segment) < nextSlot && !segment.delete()) {
+                Log.debug("Failed to delete log segment " + segment);
+            }
+        }
+    }
+
+    /**
+     * Force and close the current segment and stop syncing the log
+     */
+    public synchronized void close() {
+        if (intervalSync != null) {
+            intervalSync.cancel(false);
+        }
+        closeSegment();
+    }
+
+    private void closeSegment() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+            if (dirty) {
+                force();
+            }
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+        channel = null;
+    }
+
+    /**
+     * @return true if no slot was logged yet
+     */
+    public synchronized boolean isEmpty() {
+        return lastSlot == 0;
+    }
+
+    private void open(File segment) throws IOException {
+        boolean fresh = !segment.exists() || segment.length() == 0;
+        FileOutputStream file = new FileOutputStream(segment, true);
+        channel = file.getChannel();
+        out = new DataOutputStream(new BufferedOutputStream(file));
+        if (fresh) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+            dirty = true;
+        }
+    }
+
+    private static int checksum(long slot, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (slot >>> shift));
+        }
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private File segmentFile(long firstSlot) {
+        return new File(dir, "group" + group + "-" + firstSlot + ".log");
+    }
+
+    private long firstSlotOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(name.indexOf('-') + 1, name.length() - ".log".length()));
+    }
+
+    /**
+     * @return segment files of this group, oldest first
+     */
+    private List<File> getSegments() {
+        List<File> segments = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith("group" + group + "-") && name.endsWith(".log"));
+        if (files != null) {
+            for (File file : files) {
+                segments.add(file);
+            }
+        }
+        segments.sort((a, b) -> Long.compare(firstSlotOf(a), firstSlotOf(b)));
+        return segments;
+    }
+
+    /**
+     * @param segment a segment file
+     * @return true if the segment was written before the checksums
+     */
+    private static boolean isLegacy(File segment) {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(segment))) {
+            return input.readInt() != MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the entries of a segment up to the first damaged one
+     *
+     * @param segment segment file
+     * @param slots   slot -> commands, filled with the entries read
+     * @return length of the segment up to the end of its last valid entry
+     */
+    @SuppressWarnings("unchecked")
+    private long read(File segment, TreeMap<Long, List<CommitParams>> slots) {
+        long valid = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            boolean checksums = !isLegacy(segment);
+            if (checksums) {
+                input.skipBytes(HEADER_SIZE);
+                valid = HEADER_SIZE;
+            }
+            while (true) {
+                long slot = input.readLong();
+                int length = input.readInt();
+                int crc = checksums ? input.readInt() : 0;
+                if (length < 0 || length > segment.length()) {
+                    Log.info("Log segment " + segment + " has a damaged entry after slot " + (slot - 1));
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                if (checksums && checksum(slot, bytes) != crc) {
+                    Log.info("Log segment " + segment + " entry of slot " + slot + " fails its checksum");
+                    break;
+                }
+                try (ObjectInputStream commands = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    slots.put(slot, (List<CommitParams>) commands.readObject());
+                }
+                valid += (checksums ? 16 : 12) + length;
+            }
+        } catch (EOFException e) {
+            // end of the segment, or an entry cut off by a crash
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            Log.debug("Log segment " + segment + " is damaged: " + e.getMessage());
+        }
+        return valid;
+    }
+}
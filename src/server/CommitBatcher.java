@@ -0,0 +1,182 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import model.CommitParams;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Group commit stage in front of paxos.
+ * Commands submitted by the servers are queued and a single batching thread
+ * groups them: a batch is closed when it reaches the max batch size, when no new
+ * command arrived within the window, or when its first command waited for the
+ * max delay. The whole batch is then agreed on in one paxos round and applied
+ * and learned together, so the number of rounds grows with the number of
+ * batches instead of the number of commands. Up to maxInFlight batches are
+ * committed at the same time, each in its own log slot.
+ */
+public class CommitBatcher {
+
+    private final int maxBatchSize;
+    private final long windowMs;
+    private final long maxDelayMs;
+    // agrees on and learns one ordered batch; returns its slot, or -1 if it was aborted
+    private final ToLongFunction<List<CommitParams>> committer;
+
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight;
+    private final ExecutorService rounds;
+    private Thread worker;
+
+    public static Logger Log = LogManager.getLogger(CommitBatcher.class);
+
+    /**
+     * A queued command and the future the submitting server waits on
+     */
+    private static class Pending {
+        final CommitParams commitParams;
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        Pending(CommitParams commitParams) {
+            this.commitParams = commitParams;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxBatchSize max number of commands in one batch
+     * @param windowMs     close the batch if no new command arrives within this time
+     * @param maxDelayMs   close the batch when its first command waited this long
+     * @param maxInFlight  max number of batches being committed at the same time
+     * @param committer    runs paxos for a batch in a new slot and learns it
+     */
+    public CommitBatcher(int maxBatchSize, long windowMs, long maxDelayMs, int maxInFlight,
+                         ToLongFunction<List<CommitParams>> committer) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.windowMs = windowMs;
+        this.maxDelayMs = maxDelayMs;
+        this.committer = committer;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.rounds = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "commit-round");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queue a command and wait until the batch containing it is committed or aborted.
+     *
+     * @param commitParams command to commit
+     * @return the log slot of the batch containing the command, or -1 if it was aborted
+     */
+    public long submit(CommitParams commitParams) {
+        startIfNeeded();
+        Pending pending = new Pending(commitParams);
+        queue.add(pending);
+        try {
+            return pending.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private synchronized void startIfNeeded() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(this::run, "commit-batcher");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Batching loop: collect one batch and hand it to a round thread as soon as
+     * fewer than maxInFlight batches are being committed.
+     */
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Pending> batch;
+            try {
+                batch = nextBatch();
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            rounds.execute(() -> {
+                try {
+                    commit(batch);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Commit one batch and complete the futures of its commands.
+     */
+    private void commit(List<Pending> batch) {
+        List<CommitParams> commands = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            commands.add(p.commitParams);
+        }
+
+        long slot;
+        try {
+            slot = committer.applyAsLong(commands);
+        } catch (Exception e) {
+            e.printStackTrace();
+            slot = -1;
+        }
+        Log.debug("Batch of " + batch.size() + (slot > 0 ? " committed in slot " + slot : " aborted"));
+
+        for (Pending p : batch) {
+            p.result.complete(slot);
+        }
+    }
+
+    /**
+     * Block for the first command, then keep collecting until the batch is full,
+     * the window passes without a new command, or the max delay is reached.
+     */
+    private List<Pending> nextBatch() throws InterruptedException {
+        List<Pending> batch = new ArrayList<>();
+        batch.add(queue.take());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+
+        while (batch.size() < maxBatchSize) {
+            // take whatever is already queued without waiting
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            if (batch.size() >= maxBatchSize) {
+                break;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            long wait = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(windowMs));
+            Pending next = queue.poll(wait, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,252 @@
+package server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import model.CommitParams;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * One independent paxos instance of the coordinator.
+ * Commands are routed to a group by their key: group 0 orders the doctor and
+ * account operations and the other groups order the operations on patient
+ * files, spread by document name. Every group has its own ballots, leader,
+ * group commit stage, log slots and learners, so commands of different groups
+ * never wait for each other and the groups are decided in parallel.
+ * By default the coordinator proposes for the group and every server learns
+ * from it; PeerConsensusGroup lets a server lead the group instead.
+ */
+public class ConsensusGroup {
+
+    private final int id;
+    // ballots of the coordinator in this group; a durable acceptor may have
+    // promised higher ones in an earlier run
+    private final Ballot ballots;
+    private final MultiPaxosLeader leader;
+    private final CommitBatcher batcher;
+
+    // last log slot handed out, each decided batch takes the next one
+    private final AtomicLong lastSlot = new AtomicLong(0);
+    // recently decided slots, so a server that missed a learn can fill its gap
+    private final ConcurrentSkipListMap<Long, List<CommitParams>> decisions = new ConcurrentSkipListMap<>();
+    private final int retainedDecisions;
+    // pushes decided slots to every replica over its own queue
+    private final LearnerDispatcher dispatcher;
+
+    // proposer id of the coordinator in every group; servers use their port
+    static final int COORDINATOR_PROPOSER_ID = 0;
+
+    public static Logger Log = LogManager.getLogger(ConsensusGroup.class);
+
+    /**
+     * Constructor
+     *
+     * @param id                group id, 0 for doctor and account operations
+     * @param proposerId        id of the proposer in its ballots
+     * @param maxBatchSize      max number of commands in one batch
+     * @param windowMs          close a batch if no new command arrives within this time
+     * @param maxDelayMs        close a batch when its first command waited this long
+     * @param maxInFlight       max number of batches being committed at the same time
+     * @param retainedDecisions number of recent decisions kept for servers filling a gap
+     */
+    public ConsensusGroup(int id, int proposerId, int maxBatchSize, long windowMs, long maxDelayMs, int maxInFlight,
+                          int retainedDecisions) {
+        this.id = id;
+        this.ballots = new Ballot(proposerId);
+        this.leader = new MultiPaxosLeader(this::nextVoteNo, this::recover);
+        this.batcher = new CommitBatcher(maxBatchSize, windowMs, maxDelayMs, maxInFlight, this::decide);
+        this.retainedDecisions = retainedDecisions;
+        this.dispatcher = new LearnerDispatcher(id);
+    }
+
+    /**
+     * @return group id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the next ballot of the coordinator in this group
+     *
+     * @return ballot
+     */
+    long nextVoteNo() {
+        return ballots.next();
+    }
+
+    /**
+     * Make sure new ballots start above a ballot already promised by an acceptor
+     *
+     * @param promised promised ballot
+     */
+    void seedVoteNo(long promised) {
+        ballots.observe(promised);
+    }
+
+    /**
+     * Submit a command to the group commit stage of this group.
+     *
+     * @param c commit parameters
+     * @return the slot of the batch containing the command, or -1 if it was aborted
+     */
+    public long submit(CommitParams c) {
+        return batcher.submit(c);
+    }
+
+    /**
+     * Decide a batch of commands in a new log slot of this group and let every
+     * server learn it. An aborted slot is learned as empty so that it does not
+     * leave a gap in the logs.
+     *
+     * @param batch commands in commit order
+     * @return the slot of the batch, or -1 if it was aborted
+     */
+    public long decide(List<CommitParams> batch) {
+        long slot = nextSlot();
+        boolean chosen = propose(describe(slot, batch), slot, batch);
+        List<CommitParams> decided = chosen ? batch : Collections.emptyList();
+        record(slot, decided);
+        return chosen ? slot : -1;
+    }
+
+    /**
+     * Run paxos in this group among the live acceptors.
+     *
+     * @param msg  proposal content
+     * @param slot log slot, 0 if the proposal is not for a log slot
+     * @return true if it is successfully prepared and accepted
+     */
+    public boolean propose(String msg, long slot) {
+        return propose(msg, slot, null);
+    }
+
+    /**
+     * Run paxos for the commands of a slot among the live acceptors.
+     *
+     * @param msg      proposal content
+     * @param slot     log slot, 0 if the proposal is not for a log slot
+     * @param commands commands proposed for the slot, may be null
+     * @return true if it is successfully prepared and accepted
+     */
+    protected boolean propose(String msg, long slot, List<CommitParams> commands) {
+        List<AcceptorInterface> acceptors = getAcceptors();
+        if (CentralServer.isMultiPaxos()) {
+            return leader.propose(msg, slot, commands, acceptors);
+        }
+        return Proposer.prepare(new Proposal(nextVoteNo(), msg, slot, commands), acceptors);
+    }
+
+    /**
+     * @return the acceptors of this group on the live servers
+     */
+    protected List<AcceptorInterface> getAcceptors() {
+        return CentralServer.getLiveAcceptors(id);
+    }
+
+    /**
+     * Called by the leader after it won phase 1 with a new ballot. The
+     * coordinator never fails, so there is nothing an earlier leader left behind.
+     *
+     * @param ballot   the new ballot
+     * @param promises promises of the majority
+     * @return true if the leader may start proposing
+     */
+    protected boolean recover(long ballot, List<Promise> promises) {
+        return true;
+    }
+
+    /**
+     * @return the next log slot of this group
+     */
+    protected long nextSlot() {
+        return lastSlot.incrementAndGet();
+    }
+
+    /**
+     * Keep the decision of a slot and let every server learn it
+     *
+     * @param slot    decided slot
+     * @param decided decided commands
+     */
+    protected void record(long slot, List<CommitParams> decided) {
+        keep(slot, decided);
+        for (int port : CentralServer.getServerPorts()) {
+            dispatcher.learn(port, slot, decided);
+        }
+    }
+
+    /**
+     * Keep the decision of a slot for servers filling a gap
+     *
+     * @param slot    decided slot
+     * @param decided decided commands
+     */
+    protected void keep(long slot, List<CommitParams> decided) {
+        decisions.put(slot, decided);
+        decisions.headMap(slot - retainedDecisions).clear();
+    }
+
+    /**
+     * @return proposal content describing the commands of a slot
+     */
+    protected String describe(long slot, List<CommitParams> batch) {
+        StringBuilder msg = new StringBuilder("Group " + id + " slot " + slot + " [" + batch.size() + "]:");
+        for (CommitParams c : batch) {
+            msg.append(" ").append(c.getProposalMsg()).append(";");
+        }
+        return msg.toString();
+    }
+
+    /**
+     * @return the multi-paxos leader of this group
+     */
+    protected MultiPaxosLeader getLeader() {
+        return leader;
+    }
+
+    /**
+     * Get the commands decided for a recent slot
+     *
+     * @param slot log slot
+     * @return decided commands, or null if the slot is not decided yet or too old
+     */
+    public List<CommitParams> getDecision(long slot) {
+        return decisions.get(slot);
+    }
+
+    /**
+     * @return last log slot handed out
+     */
+    public long getLastSlot() {
+        return lastSlot.get();
+    }
+
+    /**
+     * Continue the slot numbers after the slots a server already applied, e.g.
+     * when the coordinator restarts and the servers restored their logs
+     *
+     * @param slot applied slot
+     */
+    void seedLastSlot(long slot) {
+        lastSlot.accumulateAndGet(slot, Math::max);
+    }
+
+    /**
+     * @return oldest slot whose decision is still kept
+     */
+    public long getOldestRetainedSlot() {
+        Long oldest = decisions.isEmpty() ? null : decisions.firstKey();
+        return oldest == null ? lastSlot.get() + 1 : oldest;
+    }
+
+    /**
+     * @return the learners of this group
+     */
+    public LearnerDispatcher getDispatcher() {
+        return dispatcher;
+    }
+}
@@ -0,0 +1,267 @@
+package server;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs hundreds of proposer threads against the lock-free Ballot and Acceptor
+ * and checks the safety of the protocol: no ballot is handed out twice and at
+ * most one value is chosen for every log slot.
+ * The threads are spread over a few servers; the threads of one server share
+ * its Ballot the way the request threads of a consensus group do. All threads
+ * start on the same slot together, each after a random offset, and keep
+ * proposing for it until a majority accepted one of their own rounds, or the
+ * slot has a chosen value and they tried a few rounds, so most rounds must
+ * carry over a value accepted before. A proposer yields between the calls to
+ * the acceptors, so the rounds interleave even on few cores.
+ * The values are checked from the acceptors' side as well: a promise must
+ * report a proposal for the slot at least as high as every accept the
+ * acceptor acknowledged before the prepare, a value is chosen when a
+ * majority accepted it under the same ballot, and the proposal each
+ * acceptor keeps for a slot must not be older than the highest ballot it
+ * accepted, and carry the value proposed under its ballot.
+ *
+ * Usage: ConsensusStressTest [proposers] [slots] [acceptors] [servers] [maxOffsetMicros]
+ */
+public class ConsensusStressTest {
+
+    // rounds a proposer tries for a slot that has a chosen value before it moves on
+    private static final int ROUNDS_PER_SLOT = 3;
+
+    public static Logger Log = LogManager.getLogger(ConsensusStressTest.class);
+
+    // every accept an acceptor acknowledged, and the value proposed under every ballot
+    private static final Queue<Accept> accepts = new ConcurrentLinkedQueue<>();
+    private static final Map<Long, String> proposals = new ConcurrentHashMap<>();
+    // acceptor -> slot -> highest ballot it acknowledged an accept for
+    private static final List<Map<Long, Long>> acknowledged = new ArrayList<>();
+    // promises that missed an accept acknowledged before their prepare
+    private static final AtomicLong stalePromises = new AtomicLong();
+
+    /**
+     * A proposal an acceptor accepted
+     */
+    private static final class Accept {
+        final int acceptor;
+        final long slot;
+        final long voteNo;
+        final String value;
+
+        Accept(int acceptor, long slot, long voteNo, String value) {
+            this.acceptor = acceptor;
+            this.slot = slot;
+            this.voteNo = voteNo;
+            this.value = value;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int proposers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int slots = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int acceptorCount = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int servers = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        long maxOffsetMicros = args.length > 4 ? Long.parseLong(args[4]) : 200;
+
+        // every prepare and accept is logged, which would measure the logger instead
+        Acceptor.Log.setLevel(Level.WARN);
+
+        Acceptor[] acceptors = new Acceptor[acceptorCount];
+        for (int i = 0; i < acceptorCount; i++) {
+            acceptors[i] = new Acceptor(19001 + i);
+            acknowledged.add(new ConcurrentHashMap<>());
+        }
+        Ballot[] ballots = new Ballot[servers];
+        for (int i = 0; i < servers; i++) {
+            ballots[i] = new Ballot(i + 1);
+        }
+
+        Map<Long, String> chosen = new ConcurrentHashMap<>();
+        Set<Long> handedOut = ConcurrentHashMap.newKeySet();
+        AtomicLong rounds = new AtomicLong();
+        AtomicLong preempted = new AtomicLong();
+        AtomicLong duplicateBallots = new AtomicLong();
+        AtomicLong conflicts = new AtomicLong();
+        CyclicBarrier nextSlot = new CyclicBarrier(proposers);
+        Thread[] threads = new Thread[proposers];
+        for (int t = 0; t < proposers; t++) {
+            String name = "proposer-" + t;
+            Ballot ballot = ballots[t % servers];
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (long slot = 1; slot <= slots; slot++) {
+                    try {
+                        nextSlot.await();
+                    } catch (Exception e) {
+                        return;
+                    }
+                    LockSupport.parkNanos(random.nextLong(maxOffsetMicros * 1000 + 1));
+                    int attempts = 0;
+                    for (int round = 1; ; round++) {
+                        rounds.incrementAndGet();
+                        long voteNo = ballot.next();
+                        if (!handedOut.add(voteNo)) {
+                            duplicateBallots.incrementAndGet();
+                        }
+                        String value = propose(acceptors, ballot, voteNo, slot, name + "@" + slot);
+                        if (value != null) {
+                            String previous = chosen.putIfAbsent(slot, value);
+                            if (previous != null && !previous.equals(value)) {
+                                conflicts.incrementAndGet();
+                                Log.error("slot " + slot + " chose " + value + " after " + previous);
+                            }
+                            break;
+                        }
+                        preempted.incrementAndGet();
+                        if (round >= ROUNDS_PER_SLOT && chosen.containsKey(slot)) {
+                            break;
+                        }
+                        // back off a little longer every time another proposer got in between
+                        attempts = Math.min(attempts + 1, 16);
+                        LockSupport.parkNanos(random.nextLong(1000L << attempts));
+                    }
+                }
+            }, name);
+            threads[t].start();
+        }
+
+        Log.info(proposers + " proposers on " + servers + " servers, " + acceptorCount + " acceptors, "
+                + slots + " slots, start offsets up to " + maxOffsetMicros + " us");
+        long begin = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        Log.info(String.format("%,d rounds in %,.1f ms, %,.0f rounds/s, %.1f rounds per slot, %.0f%% preempted",
+                rounds.get(), elapsed / 1e6, rounds.get() / (elapsed / 1e9), (double) rounds.get() / slots,
+                preempted.get() * 100.0 / rounds.get()));
+        long acceptorConflicts = checkAccepts(acceptors, chosen);
+        Log.info("duplicate ballots: " + duplicateBallots.get() + ", slots with conflicting values: " + conflicts.get()
+                + ", conflicts seen by the acceptors: " + acceptorConflicts + ", stale promises: " + stalePromises.get()
+                + ", slots chosen: " + chosen.size() + " of " + slots);
+        if (duplicateBallots.get() > 0 || conflicts.get() > 0 || acceptorConflicts > 0 || stalePromises.get() > 0
+                || chosen.size() != slots) {
+            Log.error("consensus safety violated");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * One round of Paxos for a slot: prepare with the ballot, carry over the
+     * value with the highest ballot accepted by the promising majority, and ask
+     * all acceptors to accept it
+     *
+     * @return the value accepted by a majority, or null if the round was preempted
+     */
+    private static String propose(Acceptor[] acceptors, Ballot ballot, long voteNo, long slot, String value) {
+        int majority = acceptors.length / 2 + 1;
+        int promised = 0;
+        Proposal highest = null;
+        for (int i = 0; i < acceptors.length; i++) {
+            long acknowledgedBefore = acknowledged.get(i).getOrDefault(slot, 0L);
+            Promise promise = acceptors[i].onPrepare(new Proposal(voteNo, value, slot));
+            Thread.yield();
+            if (!promise.isAck()) {
+                ballot.observe(acceptors[i].getPromisedVoteNo());
+                continue;
+            }
+            promised++;
+            Proposal accepted = promise.getAcceptedSlots() == null ? null : promise.getAcceptedSlots().get(slot);
+            long reported = accepted == null ? 0 : accepted.getVoteNo();
+            if (reported < acknowledgedBefore) {
+                stalePromises.incrementAndGet();
+                Log.error("acceptor " + i + " promised " + Ballot.toString(voteNo) + " reporting "
+                        + Ballot.toString(reported) + " for slot " + slot + " after accepting "
+                        + Ballot.toString(acknowledgedBefore));
+            }
+            if (accepted != null && (highest == null || accepted.getVoteNo() > highest.getVoteNo())) {
+                highest = accepted;
+            }
+        }
+        if (promised < majority) {
+            return null;
+        }
+
+        String proposed = highest == null ? value : highest.getContent();
+        proposals.put(voteNo, proposed);
+        int acks = 0;
+        for (int i = 0; i < acceptors.length; i++) {
+            if (acceptors[i].onAccept(new Proposal(voteNo, proposed, slot))) {
+                accepts.add(new Accept(i, slot, voteNo, proposed));
+                acknowledged.get(i).merge(slot, voteNo, Math::max);
+                acks++;
+            } else {
+                ballot.observe(acceptors[i].getPromisedVoteNo());
+            }
+            Thread.yield();
+        }
+        return acks >= majority ? proposed : null;
+    }
+
+    /**
+     * Check the accepts from the acceptors' side: the values a majority accepted
+     * under one ballot must be one per slot and the one the proposers chose,
+     * and each acceptor must keep a proposal for a slot at least as high as the
+     * highest ballot it accepted, with the value proposed under its ballot
+     *
+     * @return number of violations
+     */
+    private static long checkAccepts(Acceptor[] acceptors, Map<Long, String> chosen) {
+        int majority = acceptors.length / 2 + 1;
+        // slot -> ballot -> acceptors that accepted it, and the value
+        Map<Long, Map<Long, Set<Integer>>> acceptedBy = new HashMap<>();
+        Map<Long, String> values = new HashMap<>();
+        // acceptor -> slot -> highest accept
+        Map<Integer, Map<Long, Accept>> highest = new HashMap<>();
+        for (Accept accept : accepts) {
+            acceptedBy.computeIfAbsent(accept.slot, s -> new HashMap<>())
+                    .computeIfAbsent(accept.voteNo, b -> new HashSet<>()).add(accept.acceptor);
+            values.put(accept.voteNo, accept.value);
+            highest.computeIfAbsent(accept.acceptor, a -> new HashMap<>())
+                    .merge(accept.slot, accept, (known, offered) -> offered.voteNo > known.voteNo ? offered : known);
+        }
+
+        long violations = 0;
+        for (Map.Entry<Long, Map<Long, Set<Integer>>> slot : acceptedBy.entrySet()) {
+            Set<String> chosenValues = new HashSet<>();
+            for (Map.Entry<Long, Set<Integer>> ballot : slot.getValue().entrySet()) {
+                if (ballot.getValue().size() >= majority) {
+                    chosenValues.add(values.get(ballot.getKey()));
+                }
+            }
+            if (chosenValues.size() > 1 || !chosenValues.contains(chosen.get(slot.getKey()))) {
+                violations++;
+                Log.error("slot " + slot.getKey() + " chosen by the acceptors: " + chosenValues
+                        + ", by the proposers: " + chosen.get(slot.getKey()));
+            }
+        }
+        for (Map.Entry<Integer, Map<Long, Accept>> acceptor : highest.entrySet()) {
+            for (Accept accept : acceptor.getValue().values()) {
+                Proposal kept = acceptors[acceptor.getKey()].getAccepted(accept.slot);
+                if (kept == null || kept.getVoteNo() < accept.voteNo
+                        || !kept.getContent().equals(proposals.get(kept.getVoteNo()))) {
+                    violations++;
+                    Log.error("acceptor " + acceptor.getKey() + " keeps " + (kept == null ? null
+                            : Ballot.toString(kept.getVoteNo()) + " " + kept.getContent()) + " for slot "
+                            + accept.slot + ", its highest accept was " + Ballot.toString(accept.voteNo));
+                }
+            }
+        }
+        return violations;
+    }
+}
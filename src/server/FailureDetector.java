@@ -0,0 +1,177 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi accrual failure detector fed by the heartbeats of the servers.
+ * Instead of a fixed timeout it keeps the recent intervals between the
+ * heartbeats of each server and turns the time since the last heartbeat into a
+ * suspicion level phi: the higher phi, the less likely the server is still up
+ * given how regularly it used to report. A server is suspected once phi
+ * reaches the threshold, so a server on a jittery link gets more slack than
+ * one that always reports on time.
+ */
+public class FailureDetector {
+
+    private static final int WINDOW_SIZE = 100;
+
+    private final double threshold;
+    private final long expectedIntervalMs;
+    private final long minStdDevMs;
+    // port# -> recent heartbeats of the server
+    private final Map<Integer, History> histories = new ConcurrentHashMap<>();
+
+    // detection metrics
+    private long suspicions = 0;
+    private long falsePositives = 0;
+    private long detectionMsTotal = 0;
+    private long detectionMsMax = 0;
+
+    /**
+     * Intervals between the recent heartbeats of one server
+     */
+    private static class History {
+        private final ArrayDeque<Long> intervals = new ArrayDeque<>();
+        private long sum = 0;
+        private long sumOfSquares = 0;
+        private long last;
+
+        History(long now, long expectedIntervalMs) {
+            last = now;
+            // start from the expected interval until real ones arrive
+            add(expectedIntervalMs);
+            add(expectedIntervalMs);
+        }
+
+        void add(long interval) {
+            intervals.addLast(interval);
+            sum += interval;
+            sumOfSquares += interval * interval;
+            if (intervals.size() > WINDOW_SIZE) {
+                long dropped = intervals.removeFirst();
+                sum -= dropped;
+                sumOfSquares -= dropped * dropped;
+            }
+        }
+
+        double mean() {
+            return (double) sum / intervals.size();
+        }
+
+        double stdDev() {
+            double mean = mean();
+            return Math.sqrt(Math.max(0, (double) sumOfSquares / intervals.size() - mean * mean));
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threshold          phi at which a server is suspected
+     * @param expectedIntervalMs interval the servers send heartbeats at
+     * @param minStdDevMs        lower bound of the interval deviation, so perfectly
+     *                           regular heartbeats do not make phi jump on small delays
+     */
+    public FailureDetector(double threshold, long expectedIntervalMs, long minStdDevMs) {
+        this.threshold = threshold;
+        this.expectedIntervalMs = expectedIntervalMs;
+        this.minStdDevMs = minStdDevMs;
+    }
+
+    /**
+     * Record a heartbeat of a server
+     *
+     * @param port port# of the server
+     */
+    public void heartbeat(int port) {
+        long now = System.currentTimeMillis();
+        History history = histories.computeIfAbsent(port, p -> new History(now, expectedIntervalMs));
+        synchronized (history) {
+            if (now > history.last) {
+                history.add(now - history.last);
+                history.last = now;
+            }
+        }
+    }
+
+    /**
+     * Forget the heartbeats of a server, e.g. after it was replaced by a new one
+     *
+     * @param port port# of the server
+     */
+    public void reset(int port) {
+        histories.remove(port);
+    }
+
+    /**
+     * Get the suspicion level of a server
+     *
+     * @param port port# of the server
+     * @return phi, 0 if the server never sent a heartbeat
+     */
+    public double phi(int port) {
+        History history = histories.get(port);
+        if (history == null) {
+            return 0;
+        }
+        double elapsed;
+        double mean;
+        double stdDev;
+        synchronized (history) {
+            elapsed = System.currentTimeMillis() - history.last;
+            mean = history.mean();
+            stdDev = Math.max(history.stdDev(), minStdDevMs);
+        }
+        // logistic approximation of the normal distribution
+        double y = (elapsed - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    /**
+     * @param port port# of the server
+     * @return true if the suspicion level of the server reached the threshold
+     */
+    public boolean isSuspected(int port) {
+        return phi(port) >= threshold;
+    }
+
+    /**
+     * Record that a server was suspected
+     *
+     * @param port port# of the server
+     */
+    public synchronized void recordSuspicion(int port) {
+        History history = histories.get(port);
+        long detectionMs = history == null ? 0 : System.currentTimeMillis() - history.last;
+        suspicions++;
+        detectionMsTotal += detectionMs;
+        detectionMsMax = Math.max(detectionMsMax, detectionMs);
+    }
+
+    /**
+     * Record that a suspected server sent heartbeats again, so it was not down
+     */
+    public synchronized void recordFalsePositive() {
+        falsePositives++;
+    }
+
+    /**
+     * @return suspicions, falsePositives, falsePositiveRatePct, avgDetectionMs, maxDetectionMs
+     */
+    public synchronized Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new TreeMap<>();
+        metrics.put("suspicions", suspicions);
+        metrics.put("falsePositives", falsePositives);
+        metrics.put("falsePositiveRatePct", suspicions == 0 ? 0 : falsePositives * 100 / suspicions);
+        metrics.put("avgDetectionMs", suspicions == 0 ? 0 : detectionMsTotal / suspicions);
+        metrics.put("maxDetectionMs", detectionMsMax);
+        return metrics;
+    }
+}
@@ -0,0 +1,54 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent requests to report percentiles.
+ */
+public class LatencyRecorder {
+
+    private final long[] samples;
+    private int next = 0;
+    private int size = 0;
+
+    /**
+     * Constructor
+     *
+     * @param capacity number of recent samples kept
+     */
+    public LatencyRecorder(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    /**
+     * Record the latency of one request
+     *
+     * @param micros latency in microseconds
+     */
+    public synchronized void record(long micros) {
+        samples[next] = micros;
+        next = (next + 1) % samples.length;
+        size = Math.min(size + 1, samples.length);
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return latency in microseconds at the percentile of the recent samples, 0 without samples
+     */
+    public synchronized long percentile(double percentile) {
+        if (size == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+
+    /**
+     * @return number of samples kept
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
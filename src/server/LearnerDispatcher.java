@@ -0,0 +1,167 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import model.CommitParams;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Pushes the decided slots of one consensus group to the replicas in the background.
+ * Every replica has its own queue and delivery thread, so all replicas learn in
+ * parallel and a slow or dead replica only delays its own queue. Slots that
+ * queued up while the previous delivery was running are sent together in one
+ * call. The RMI stubs of the replicas come from the {@link StubCache} and are
+ * dropped when a delivery fails; the slots of a failed delivery are kept and
+ * sent again after a pause, together with the slots queued meanwhile.
+ * A replica removed from the cluster is dropped with its queue and its
+ * delivery thread, so a server added later on the same port starts afresh.
+ */
+public class LearnerDispatcher {
+
+    // consensus group whose slots are delivered
+    private final int group;
+    private final Map<Integer, Replica> replicas = new ConcurrentHashMap<>();
+    // highest slot handed to the dispatcher
+    private final AtomicLong learnedSlot = new AtomicLong(0);
+    // pause before a failed delivery is tried again
+    private static final long RETRY_MS = Long.getLong("emr.learner.retryMs", 200);
+    // older slots are left to the recovery of the replica, see emr.log.retainedSlots
+    private static final int MAX_UNDELIVERED = Integer.getInteger("emr.log.retainedSlots", 10000);
+
+    public static Logger Log = LogManager.getLogger(LearnerDispatcher.class);
+
+    /**
+     * Constructor
+     *
+     * @param group consensus group whose slots are delivered
+     */
+    public LearnerDispatcher(int group) {
+        this.group = group;
+    }
+
+    /**
+     * A decided slot waiting to be delivered
+     */
+    private static class Decision {
+        final long slot;
+        final List<CommitParams> batch;
+
+        Decision(long slot, List<CommitParams> batch) {
+            this.slot = slot;
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * Delivery queue and state of one replica
+     */
+    private class Replica {
+        final int port;
+        final LinkedBlockingQueue<Decision> queue = new LinkedBlockingQueue<>();
+        final AtomicLong deliveredSlot = new AtomicLong(0);
+        // slots taken from the queue and not delivered yet, only changed by the delivery thread
+        final ConcurrentSkipListMap<Long, List<CommitParams>> undelivered = new ConcurrentSkipListMap<>();
+        final Thread thread;
+
+        Replica(int port) {
+            this.port = port;
+            thread = new Thread(this::run, "learner-" + group + "-" + port);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Delivery loop: wait for a slot, or a while after a failed delivery,
+         * then send the undelivered slots with every slot queued behind them.
+         */
+        void run() {
+            List<Decision> drained = new ArrayList<>();
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    if (undelivered.isEmpty()) {
+                        drained.add(queue.take());
+                    } else {
+                        Thread.sleep(RETRY_MS);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                queue.drainTo(drained);
+                for (Decision d : drained) {
+                    undelivered.put(d.slot, d.batch);
+                }
+                drained.clear();
+                deliver(this);
+            }
+        }
+    }
+
+    /**
+     * Queue a decided slot for a replica and return immediately.
+     *
+     * @param port  port# of the replica
+     * @param slot  decided slot
+     * @param batch commands decided for the slot
+     */
+    public void learn(int port, long slot, List<CommitParams> batch) {
+        learnedSlot.accumulateAndGet(slot, Math::max);
+        Replica replica = replicas.computeIfAbsent(port, Replica::new);
+        replica.queue.add(new Decision(slot, batch));
+    }
+
+    /**
+     * Stop delivering to a replica that left the cluster and drop the slots
+     * still queued for it
+     *
+     * @param port port# of the replica
+     */
+    public void remove(int port) {
+        Replica replica = replicas.remove(port);
+        if (replica != null) {
+            replica.thread.interrupt();
+            Log.debug("Group " + group + " stops delivering to server " + port + ", "
+                    + (replica.undelivered.size() + replica.queue.size()) + " slots dropped");
+        }
+    }
+
+    private void deliver(Replica replica) {
+        TreeMap<Long, List<CommitParams>> decisions = new TreeMap<>(replica.undelivered);
+        try {
+            StubCache.server(replica.port).learn(group, decisions);
+            replica.deliveredSlot.accumulateAndGet(decisions.lastKey(), Math::max);
+            replica.undelivered.headMap(decisions.lastKey(), true).clear();
+        } catch (Exception e) {
+            // look the stub up again next time and keep the slots for the next try
+            StubCache.invalidate(replica.port);
+            Log.debug("Server " + replica.port + " is down. Group " + group + " slots " + decisions.firstKey() + "-"
+                    + decisions.lastKey() + " not delivered: " + e.getMessage());
+            while (replica.undelivered.size() > MAX_UNDELIVERED) {
+                replica.undelivered.pollFirstEntry();
+            }
+        }
+    }
+
+    /**
+     * Get how many slots each replica is behind the highest decided slot,
+     * counting the slots below its highest delivered slot that failed.
+     *
+     * @return port# -> number of slots not delivered yet
+     */
+    public Map<Integer, Long> getLag() {
+        Map<Integer, Long> lag = new TreeMap<>();
+        long learned = learnedSlot.get();
+        for (Replica replica : replicas.values()) {
+            long delivered = replica.deliveredSlot.get();
+            lag.put(replica.port, learned - delivered + replica.undelivered.headMap(delivered).size());
+        }
+        return lag;
+    }
+}
@@ -0,0 +1,120 @@
+package server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Places clients on servers by the load the servers report.
+ * A client goes to the less loaded of two randomly picked servers (power of
+ * two choices), which spreads clients evenly without every assignment going
+ * to the single least loaded server between two reports. Clients assigned
+ * since a server's last report count towards its load.
+ * A server is marked busy when its load reaches the upper threshold and only
+ * marked idle again once it dropped to the lower one, so it does not flap.
+ */
+public class LoadBalancer {
+
+    private final long busyAbove;
+    private final long busyBelow;
+    // loads older than this are not trusted any more
+    private final long staleMs;
+
+    // port# -> last reported load
+    private final Map<Integer, ServerLoad> loads = new ConcurrentHashMap<>();
+    // port# -> clients assigned since the last report
+    private final Map<Integer, AtomicInteger> assigned = new ConcurrentHashMap<>();
+
+    public static Logger Log = LogManager.getLogger(LoadBalancer.class);
+
+    /**
+     * Constructor
+     *
+     * @param busyAbove mark a server busy once its load reaches this
+     * @param busyBelow mark a busy server idle again once its load dropped to this
+     * @param staleMs   ignore reports older than this
+     */
+    public LoadBalancer(long busyAbove, long busyBelow, long staleMs) {
+        this.busyAbove = busyAbove;
+        this.busyBelow = Math.min(busyBelow, busyAbove);
+        this.staleMs = staleMs;
+    }
+
+    /**
+     * Record the load reported by a server
+     *
+     * @param port port# of the server
+     * @param load reported load
+     */
+    public void report(int port, ServerLoad load) {
+        loads.put(port, load);
+        assigned.computeIfAbsent(port, p -> new AtomicInteger()).set(0);
+    }
+
+    /**
+     * Decide if a server is busy, with hysteresis between the two thresholds
+     *
+     * @param port    port# of the server
+     * @param wasBusy true if the server is currently marked busy
+     * @return true if the server should be marked busy
+     */
+    public boolean isBusy(int port, boolean wasBusy) {
+        long score = scoreOf(port);
+        if (score >= busyAbove) {
+            return true;
+        }
+        if (score <= busyBelow) {
+            return false;
+        }
+        return wasBusy;
+    }
+
+    /**
+     * Pick a server for a new client
+     *
+     * @param candidates port numbers to choose from, not empty
+     * @return port# of the chosen server
+     */
+    public int choose(List<Integer> candidates) {
+        int port = candidates.get(0);
+        if (candidates.size() > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(candidates.size());
+            int second = random.nextInt(candidates.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            port = scoreOf(candidates.get(second)) < scoreOf(candidates.get(first))
+                    ? candidates.get(second) : candidates.get(first);
+        }
+        assigned.computeIfAbsent(port, p -> new AtomicInteger()).incrementAndGet();
+        return port;
+    }
+
+    /**
+     * @param port port# of a server
+     * @return current load estimate of the server
+     */
+    public long scoreOf(int port) {
+        ServerLoad load = loads.get(port);
+        AtomicInteger recent = assigned.get(port);
+        long score = recent == null ? 0 : recent.get();
+        if (load != null && System.currentTimeMillis() - load.getReportedAt() <= staleMs) {
+            score += load.getScore();
+        }
+        return score;
+    }
+
+    /**
+     * @param port port# of a server
+     * @return last reported load, or null if the server did not report yet
+     */
+    public ServerLoad getLoad(int port) {
+        return loads.get(port);
+    }
+}
@@ -0,0 +1,76 @@
+package server;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+import doctor_database.Doctor;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Measures what looking up an RMI stub on every call costs a commit.
+ * Starts a cluster in this JVM and commits new users through a server, once
+ * looking up the server and every replica in the registry before each commit,
+ * as the coordinator used to when it pushed a decision, and once through the
+ * {@link StubCache}.
+ *
+ * Usage: LookupBenchmark [coordinatorPort] [servers] [commits]
+ */
+public class LookupBenchmark {
+
+    public static Logger Log = LogManager.getLogger(LookupBenchmark.class);
+
+    public static void main(String[] args) throws Exception {
+        int coordinatorPort = args.length > 0 ? Integer.parseInt(args[0]) : 19000;
+        int servers = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int commits = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+        int[] ports = new int[servers];
+        for (int i = 0; i < servers; i++) {
+            ports[i] = coordinatorPort + i + 1;
+        }
+        new CentralServer("localhost", coordinatorPort, ports);
+
+        // warm up both paths
+        run("warmup", ports, commits / 5, false);
+        run("warmup-cached", ports, commits / 5, true);
+
+        long lookup = run("lookup", ports, commits, false);
+        long cached = run("cached", ports, commits, true);
+        Log.info(String.format("%d servers, %d commits: %.1f us per commit with lookups, %.1f us cached, "
+                        + "%.1f us saved", servers, commits, lookup / 1000.0 / commits, cached / 1000.0 / commits,
+                (lookup - cached) / 1000.0 / commits));
+        Log.info("Stub cache: " + StubCache.getHits() + " hits, " + StubCache.getLookups() + " lookups");
+        System.exit(0);
+    }
+
+    /**
+     * Commit new users and time them
+     *
+     * @param name    prefix of the user names
+     * @param ports   port numbers of the servers
+     * @param commits number of commits
+     * @param cached  true to take the stubs from the cache, false to look them up every time
+     * @return total time in nanoseconds
+     */
+    private static long run(String name, int[] ports, int commits, boolean cached) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < commits; i++) {
+            ServerInterface server = null;
+            for (int port : ports) {
+                ServerInterface stub;
+                if (cached) {
+                    stub = StubCache.server(port);
+                } else {
+                    Registry registry = LocateRegistry.getRegistry(port);
+                    stub = (ServerInterface) registry.lookup(Server.class.getSimpleName() + port);
+                }
+                if (server == null) {
+                    server = stub;
+                }
+            }
+            server.createUser(new Doctor(name + i, "bench"));
+        }
+        return System.nanoTime() - start;
+    }
+}
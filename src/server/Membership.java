@@ -0,0 +1,158 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * The current membership view of the cluster. Readers take the current view
+ * without locking; writers replace it with compare-and-set, so concurrent
+ * status changes from RMI threads, the failure detector and the admin never
+ * overwrite each other. Subscribers are told about the changes on one
+ * notification thread, newest view first, so a slow subscriber delays only
+ * the notifications and not the writers.
+ */
+public class Membership {
+
+    private final AtomicReference<MembershipView> view = new AtomicReference<>(MembershipView.EMPTY);
+    private final List<MembershipListener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "membership-notifier");
+        t.setDaemon(true);
+        return t;
+    });
+    // last view handed to the subscribers, only touched on the notification thread
+    private long notifiedVersion = 0;
+
+    public static Logger Log = LogManager.getLogger(Membership.class);
+
+    /**
+     * @return the current view
+     */
+    public MembershipView current() {
+        return view.get();
+    }
+
+    /**
+     * Add a server to the members
+     *
+     * @param port   port# of the server
+     * @param status status of the server
+     * @return the view after the change
+     */
+    public MembershipView add(int port, int status) {
+        return update(v -> v.isMember(port) ? v : v.withStatus(port, status));
+    }
+
+    /**
+     * Set the status of a member
+     *
+     * @param port   port# of the server
+     * @param status new status
+     * @return the view after the change
+     */
+    public MembershipView setStatus(int port, int status) {
+        return update(v -> v.isMember(port) ? v.withStatus(port, status) : v);
+    }
+
+    /**
+     * Set the status of a member only if it still has the expected one
+     *
+     * @param port   port# of the server
+     * @param expect status the server must have
+     * @param status new status
+     * @return true if the status was changed
+     */
+    public boolean compareAndSetStatus(int port, int expect, int status) {
+        while (true) {
+            MembershipView current = view.get();
+            if (current.getStatus(port) != expect || expect == MembershipView.NOT_FOUND) {
+                return false;
+            }
+            MembershipView next = current.withStatus(port, status);
+            if (next == current) {
+                return true;
+            }
+            if (view.compareAndSet(current, next)) {
+                changed();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove a server from the members
+     *
+     * @param port port# of the server
+     * @return the view after the change
+     */
+    public MembershipView remove(int port) {
+        return update(v -> v.without(port));
+    }
+
+    private MembershipView update(UnaryOperator<MembershipView> change) {
+        while (true) {
+            MembershipView current = view.get();
+            MembershipView next = change.apply(current);
+            if (next == current) {
+                return current;
+            }
+            if (view.compareAndSet(current, next)) {
+                changed();
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Be told about every later change
+     *
+     * @param listener subscriber
+     * @return the current view
+     */
+    public MembershipView subscribe(MembershipListener listener) {
+        listeners.add(listener);
+        return view.get();
+    }
+
+    /**
+     * Stop being told about changes
+     *
+     * @param listener subscriber
+     */
+    public void unsubscribe(MembershipListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Hand the newest view to the subscribers. Changes that happen before the
+     * notification thread gets to them go out as one view.
+     */
+    private void changed() {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        notifier.execute(() -> {
+            MembershipView latest = view.get();
+            if (latest.getVersion() <= notifiedVersion) {
+                return;
+            }
+            notifiedVersion = latest.getVersion();
+            for (MembershipListener listener : listeners) {
+                try {
+                    listener.membershipChanged(latest);
+                } catch (Exception e) {
+                    // a remote subscriber that went away
+                    listeners.remove(listener);
+                    Log.debug("Membership subscriber dropped: " + e.getMessage());
+                }
+            }
+        });
+    }
+}
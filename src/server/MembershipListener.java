@@ -0,0 +1,20 @@
+package server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Told about every change of the cluster membership, instead of polling the
+ * status of each server.
+ */
+public interface MembershipListener extends Remote {
+
+    /**
+     * Called with the newest view after the membership changed. Changes made
+     * close together may arrive as one view, but the versions never go back.
+     *
+     * @param view the current membership
+     * @throws RemoteException
+     */
+    public void membershipChanged(MembershipView view) throws RemoteException;
+}
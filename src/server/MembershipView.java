@@ -0,0 +1,135 @@
+package server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One version of the cluster membership: the member servers in the order they
+ * joined and the status of each. A view never changes; every change makes a
+ * new view with the next version, so a reader that holds a view sees one
+ * consistent configuration without locking.
+ */
+public final class MembershipView implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // server status: 0 -> empty and live, 1 -> busy, 2 -> down
+    public static final int LIVE = 0;
+    public static final int BUSY = 1;
+    public static final int DOWN = 2;
+    public static final int NOT_FOUND = -1;
+
+    static final MembershipView EMPTY = new MembershipView(0, new LinkedHashMap<>());
+
+    private final long version;
+    // port# -> status, in member order
+    private final Map<Integer, Integer> statuses;
+
+    private MembershipView(long version, LinkedHashMap<Integer, Integer> statuses) {
+        this.version = version;
+        this.statuses = Collections.unmodifiableMap(statuses);
+    }
+
+    /**
+     * @return version of this view, higher is newer
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param port port# of a server
+     * @return status of the server, NOT_FOUND if it is not a member
+     */
+    public int getStatus(int port) {
+        Integer status = statuses.get(port);
+        return status == null ? NOT_FOUND : status;
+    }
+
+    /**
+     * @param port port# of a server
+     * @return true if the server is a member and up, whether busy or not
+     */
+    public boolean isLive(int port) {
+        int status = getStatus(port);
+        return status != NOT_FOUND && status != DOWN;
+    }
+
+    /**
+     * @param port port# of a server
+     * @return true if the server is a member
+     */
+    public boolean isMember(int port) {
+        return statuses.containsKey(port);
+    }
+
+    /**
+     * @return port numbers of the members, in member order
+     */
+    public List<Integer> getPorts() {
+        return new ArrayList<>(statuses.keySet());
+    }
+
+    /**
+     * @return port numbers of the live members, in member order
+     */
+    public List<Integer> getLivePorts() {
+        List<Integer> live = new ArrayList<>();
+        statuses.forEach((port, status) -> {
+            if (status != DOWN) {
+                live.add(port);
+            }
+        });
+        return live;
+    }
+
+    /**
+     * @return port# -> status of every member
+     */
+    public Map<Integer, Integer> getStatuses() {
+        return statuses;
+    }
+
+    /**
+     * @return number of members, down ones included
+     */
+    public int size() {
+        return statuses.size();
+    }
+
+    /**
+     * @param port   port# of a server
+     * @param status new status
+     * @return the next view with the server at the status, added if it is not a member;
+     * this view if nothing changes
+     */
+    MembershipView withStatus(int port, int status) {
+        if (getStatus(port) == status) {
+            return this;
+        }
+        LinkedHashMap<Integer, Integer> next = new LinkedHashMap<>(statuses);
+        next.put(port, status);
+        return new MembershipView(version + 1, next);
+    }
+
+    /**
+     * @param port port# of a server
+     * @return the next view without the server; this view if it is not a member
+     */
+    MembershipView without(int port) {
+        if (!isMember(port)) {
+            return this;
+        }
+        LinkedHashMap<Integer, Integer> next = new LinkedHashMap<>(statuses);
+        next.remove(port);
+        return new MembershipView(version + 1, next);
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + " " + statuses;
+    }
+}
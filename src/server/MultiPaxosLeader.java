@@ -0,0 +1,138 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.function.LongSupplier;
+
+import model.CommitParams;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Multi-Paxos leader.
+ * The leader runs phase 1 (PREPARE-PROMISE) once to get a ballot promised by a
+ * majority of acceptors, and then keeps that ballot for every following command,
+ * so each command in the steady state only needs phase 2 (PROPOSE-ACCEPT).
+ * If an accept is rejected, another proposer has been promised a higher ballot,
+ * so the leader steps down and the next command runs phase 1 again.
+ * A new leader may first have to finish what an earlier leader left behind: the
+ * recovery step gets the promises of phase 1 and re-proposes the proposals the
+ * acceptors had accepted before the leader starts proposing new commands.
+ */
+public class MultiPaxosLeader {
+
+    // how many times a command is retried with a fresh ballot after being preempted
+    private static final int MAX_ATTEMPTS = 3;
+
+    // hands out the ballots of the group this leader proposes for
+    private final LongSupplier ballots;
+    // re-proposes what the promises report as accepted, true if that succeeded
+    private final BiPredicate<Long, List<Promise>> recovery;
+
+    // the ballot currently held by this leader, only valid when leading is true
+    private long ballot = 0;
+    private boolean leading = false;
+
+    public static Logger Log = LogManager.getLogger(MultiPaxosLeader.class);
+
+    /**
+     * Constructor
+     *
+     * @param ballots source of new, increasing ballots
+     */
+    public MultiPaxosLeader(LongSupplier ballots) {
+        this(ballots, (ballot, promises) -> true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ballots  source of new, increasing ballots
+     * @param recovery runs after phase 1 succeeded with the ballot and the promises
+     *                 of the majority, and returns true if the leader may start
+     */
+    public MultiPaxosLeader(LongSupplier ballots, BiPredicate<Long, List<Promise>> recovery) {
+        this.ballots = ballots;
+        this.recovery = recovery;
+    }
+
+    /**
+     * Get a command chosen by the acceptors.
+     * Phase 1 only runs when the leader does not hold a ballot yet or its ballot
+     * was preempted. Commands for different slots can be in phase 2 at the same
+     * time under the same ballot.
+     *
+     * @param msg       proposal content
+     * @param slot      log slot of the command, 0 if it is not for a log slot
+     * @param commands  commands proposed for the slot, may be null
+     * @param acceptors live acceptors
+     * @return true if a majority accepted the command
+     */
+    public boolean propose(String msg, long slot, List<CommitParams> commands,
+                           List<? extends AcceptorInterface> acceptors) {
+        Log.info("Reqeust Received: " + msg);
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long currentBallot = electIfNeeded(msg, acceptors);
+            if (currentBallot <= 0) {
+                continue;
+            }
+
+            if (Proposer.accept(new Proposal(currentBallot, msg, slot, commands), acceptors)) {
+                Log.info("Proposal: " + msg + " ACCEPTED with ballot " + Ballot.toString(currentBallot));
+                return true;
+            }
+
+            // the ballot was preempted by a higher one
+            stepDown(currentBallot);
+        }
+
+        Log.info("Proposal: " + msg + " NOT ACCEPTED after " + MAX_ATTEMPTS + " attempts");
+        return false;
+    }
+
+    /**
+     * Run phase 1 with a new ballot if this leader does not hold one.
+     *
+     * @return the ballot to use for phase 2, or -1 if the election failed
+     */
+    synchronized long electIfNeeded(String msg, List<? extends AcceptorInterface> acceptors) {
+        if (leading) {
+            return ballot;
+        }
+
+        long newBallot = ballots.getAsLong();
+        List<Promise> promises = new ArrayList<>();
+        if (!Proposer.promise(new Proposal(newBallot, msg), acceptors, promises)) {
+            return -1;
+        }
+        if (!recovery.test(newBallot, promises)) {
+            Log.info("Ballot " + Ballot.toString(newBallot) + " could not recover the accepted slots");
+            return -1;
+        }
+
+        ballot = newBallot;
+        leading = true;
+        Log.info("Leader elected with ballot " + Ballot.toString(ballot));
+        return ballot;
+    }
+
+    /**
+     * Give up the ballot after it was preempted, unless another thread already
+     * replaced it with a newer one.
+     */
+    synchronized void stepDown(long preemptedBallot) {
+        if (leading && ballot == preemptedBallot) {
+            leading = false;
+            Log.info("Ballot " + Ballot.toString(preemptedBallot) + " preempted, leader steps down");
+        }
+    }
+
+    /**
+     * @return true if the leader currently holds a promised ballot
+     */
+    public synchronized boolean isLeading() {
+        return leading;
+    }
+}
@@ -0,0 +1,55 @@
+package server;
+
+import java.rmi.RemoteException;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * The acceptor of a consensus group on another server, reached over RMI.
+ * A server that leads a group runs paxos against these, so no command has to
+ * pass through the coordinator. An unreachable server counts as a rejection.
+ */
+public class PeerAcceptor implements AcceptorInterface {
+
+    private final Server owner;
+    private final int port;
+    private final int group;
+
+    public static Logger Log = LogManager.getLogger(PeerAcceptor.class);
+
+    /**
+     * Constructor
+     *
+     * @param owner server running paxos, used to reach its peers
+     * @param port  port# of the server with the acceptor
+     * @param group consensus group
+     */
+    public PeerAcceptor(Server owner, int port, int group) {
+        this.owner = owner;
+        this.port = port;
+        this.group = group;
+    }
+
+    @Override
+    public Promise onPrepare(Proposal p) {
+        try {
+            return owner.peer(port).onPrepare(group, p);
+        } catch (RemoteException e) {
+            StubCache.invalidate(port);
+            Log.debug("Acceptor " + port + " of group " + group + " is unreachable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public boolean onAccept(Proposal p) {
+        try {
+            return owner.peer(port).onAccept(group, p);
+        } catch (RemoteException e) {
+            StubCache.invalidate(port);
+            Log.debug("Acceptor " + port + " of group " + group + " is unreachable: " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import model.CommitParams;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * A consensus group led by a server instead of the coordinator.
+ * The leading server batches the commands of the group, runs paxos against the
+ * acceptors of the other servers over RMI and pushes the decided slots to them.
+ * The other servers forward their commands to it.
+ *
+ * A server may take over a group that another server led before, so a new
+ * leader first recovers the slots the acceptors report as accepted and
+ * proposes them again under its own ballot, filling the holes with empty
+ * slots. A slot whose proposal failed is not learned as empty here, because
+ * some acceptors may still hold it; it stays a hole until the next election
+ * recovers it. A slot reported without its commands is taken from a server
+ * that still keeps its decision; if none does, the election fails rather than
+ * proposing the slot as empty, since it may have been chosen.
+ */
+public class PeerConsensusGroup extends ConsensusGroup {
+
+    // how many times a slot is retried with a fresh ballot after being preempted
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Server owner;
+    // acceptor of each server, the local one without RMI
+    private final Map<Integer, AcceptorInterface> acceptors = new ConcurrentHashMap<>();
+    // slots being proposed by this server
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    // slots in flight that an election decided in the meantime, with the commands it decided
+    private final ConcurrentSkipListMap<Long, List<CommitParams>> settled = new ConcurrentSkipListMap<>();
+
+    public static Logger Log = LogManager.getLogger(PeerConsensusGroup.class);
+
+    /**
+     * Constructor
+     *
+     * @param id                group id
+     * @param owner             server proposing for the group when it leads it
+     * @param maxBatchSize      max number of commands in one batch
+     * @param windowMs          close a batch if no new command arrives within this time
+     * @param maxDelayMs        close a batch when its first command waited this long
+     * @param maxInFlight       max number of batches being committed at the same time
+     * @param retainedDecisions number of recent decisions kept for servers filling a gap
+     */
+    public PeerConsensusGroup(int id, Server owner, int maxBatchSize, long windowMs, long maxDelayMs,
+                              int maxInFlight, int retainedDecisions) {
+        // ports are unique and fit into the proposer bits of a ballot
+        super(id, owner.port, maxBatchSize, windowMs, maxDelayMs, maxInFlight, retainedDecisions);
+        this.owner = owner;
+    }
+
+    /**
+     * Decide a batch of commands in a new log slot. The slot is taken once this
+     * server holds a ballot, so it comes after every slot its election recovered.
+     *
+     * @param batch commands in commit order
+     * @return the slot of the batch, or -1 if it was aborted
+     */
+    @Override
+    public long decide(List<CommitParams> batch) {
+        long slot = -1;
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                List<AcceptorInterface> live = getAcceptors();
+                long ballot = getLeader().electIfNeeded("Group " + getId() + " election", live);
+                if (ballot <= 0) {
+                    continue;
+                }
+                if (slot < 0) {
+                    slot = nextSlot();
+                    inFlight.add(slot);
+                }
+                List<CommitParams> recovered = settled.get(slot);
+                if (recovered != null) {
+                    // the election re-proposed whatever the acceptors held for it, which is
+                    // this batch if one of its earlier attempts reached a majority
+                    return sameCommands(recovered, batch) ? slot : -1;
+                }
+                if (Proposer.accept(new Proposal(ballot, describe(slot, batch), slot, batch), live)) {
+                    record(slot, batch);
+                    return slot;
+                }
+                getLeader().stepDown(ballot);
+            }
+            Log.info("Group " + getId() + " slot " + slot + " NOT ACCEPTED after " + MAX_ATTEMPTS + " attempts");
+            return -1;
+        } finally {
+            if (slot > 0) {
+                inFlight.remove(slot);
+                settled.remove(slot);
+            }
+        }
+    }
+
+    /**
+     * Propose again, under the new ballot, every slot after the applied ones
+     * that the acceptors accepted from an earlier leader, and fill the holes.
+     * Slots this server is proposing itself are left to their own thread,
+     * unless an acceptor already holds a proposal for them.
+     *
+     * @param ballot   the new ballot
+     * @param promises promises of the majority
+     * @return true if every recovered slot was accepted
+     */
+    @Override
+    protected boolean recover(long ballot, List<Promise> promises) {
+        TreeMap<Long, Proposal> latest = new TreeMap<>();
+        long forgotten = 0;
+        for (Promise promise : promises) {
+            forgotten = Math.max(forgotten, promise.getForgottenSlot());
+            for (Proposal p : promise.getAcceptedSlots().values()) {
+                Proposal known = latest.get(p.getSlot());
+                // a proposal is the same under one ballot, so any acceptor may tell its commands
+                if (known == null || p.getVoteNo() > known.getVoteNo()
+                        || p.getVoteNo() == known.getVoteNo() && known.getCommands() == null) {
+                    latest.put(p.getSlot(), p);
+                }
+            }
+        }
+
+        // slots the acceptors forgot were applied by a majority, this server
+        // gets them from a copy or from the leader that decided them
+        long start = Math.max(owner.getAppliedSlot(getId()), forgotten) + 1;
+        if (!latest.isEmpty()) {
+            seedLastSlot(latest.lastKey());
+        }
+        seedLastSlot(start - 1);
+        long end = getLastSlot();
+
+        List<AcceptorInterface> live = getAcceptors();
+        int recovered = 0;
+        for (long slot = start; slot <= end; slot++) {
+            Proposal accepted = latest.get(slot);
+            if (accepted == null && inFlight.contains(slot)) {
+                continue;
+            }
+            List<CommitParams> commands = accepted == null ? Collections.emptyList() : accepted.getCommands();
+            if (commands == null) {
+                commands = findDecision(slot);
+            }
+            if (commands == null) {
+                Log.info("Group " + getId() + " slot " + slot + " was accepted under ballot "
+                        + Ballot.toString(accepted.getVoteNo()) + " with unknown commands, not recovered");
+                return false;
+            }
+            if (!Proposer.accept(new Proposal(ballot, describe(slot, commands), slot, commands), live)) {
+                return false;
+            }
+            if (inFlight.contains(slot)) {
+                settled.put(slot, commands);
+            }
+            record(slot, commands);
+            recovered++;
+        }
+        // slots this server already applied stay available to servers filling a gap
+        for (Proposal p : latest.headMap(start).values()) {
+            if (p.getCommands() != null) {
+                keep(p.getSlot(), p.getCommands());
+            }
+        }
+        Log.info("Server " + owner.port + " leads group " + getId() + " with ballot " + Ballot.toString(ballot)
+                + ", recovered " + recovered + " slots up to " + end);
+        return true;
+    }
+
+    /**
+     * Find the decision of a slot an acceptor reported without its commands,
+     * among the decisions this server and the other live servers still keep
+     *
+     * @param slot log slot
+     * @return decided commands, or null if no server keeps them
+     */
+    private List<CommitParams> findDecision(long slot) {
+        List<CommitParams> decided = getDecision(slot);
+        for (int port : CentralServer.getLivePorts()) {
+            if (decided != null) {
+                break;
+            }
+            if (port == owner.port) {
+                continue;
+            }
+            try {
+                decided = owner.peer(port).getDecision(getId(), slot);
+            } catch (RemoteException e) {
+                StubCache.invalidate(port);
+                Log.debug("Server " + owner.port + " cannot reach server " + port + ": " + e.getMessage());
+            }
+        }
+        return decided;
+    }
+
+    /**
+     * Compare the commands an election recovered for a slot with the batch
+     * proposed for it. Commands from other servers are deserialized copies, so
+     * they are compared by their serialized form.
+     *
+     * @param recovered commands recovered by the election
+     * @param batch     commands proposed by this server
+     * @return true if both hold the same commands in the same order
+     */
+    private boolean sameCommands(List<CommitParams> recovered, List<CommitParams> batch) {
+        if (recovered == batch) {
+            return true;
+        }
+        if (recovered.size() != batch.size()) {
+            return false;
+        }
+        try {
+            return Arrays.equals(serialize(recovered), serialize(batch));
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Group " + getId() + " cannot compare recovered commands: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static byte[] serialize(List<CommitParams> commands) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(new ArrayList<>(commands));
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the acceptors of this group on the live servers
+     */
+    @Override
+    protected List<AcceptorInterface> getAcceptors() {
+        List<AcceptorInterface> live = new ArrayList<>();
+        for (int port : CentralServer.getLivePorts()) {
+            live.add(acceptors.computeIfAbsent(port, p ->
+                    p == owner.port ? owner.gAcceptor(getId()) : new PeerAcceptor(owner, p, getId())));
+        }
+        return live;
+    }
+}
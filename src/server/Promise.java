@@ -1,13 +1,28 @@
 package server;
 
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.SortedMap;
+
 //// This class is to construct a promise object
-public class Promise {
+public class Promise implements Serializable {
+    private static final long serialVersionUID = 1L;
     protected final boolean ack;
     protected final Proposal proposal;
+    // proposals the acceptor accepted for log slots and still keeps, by slot
+    protected final SortedMap<Long, Proposal> acceptedSlots;
+    // the acceptor no longer knows what it accepted up to this slot
+    protected final long forgottenSlot;
 
     public Promise(boolean ack, Proposal proposal) {
+        this(ack, proposal, Collections.emptySortedMap(), 0);
+    }
+
+    public Promise(boolean ack, Proposal proposal, SortedMap<Long, Proposal> acceptedSlots, long forgottenSlot) {
         this.ack = ack;
         this.proposal = proposal;
+        this.acceptedSlots = acceptedSlots;
+        this.forgottenSlot = forgottenSlot;
     }
 
     public boolean isAck() {
@@ -17,4 +32,12 @@ public class Promise {
     public Proposal getProposal() {
         return proposal;
     }
+
+    public SortedMap<Long, Proposal> getAcceptedSlots() {
+        return acceptedSlots;
+    }
+
+    public long getForgottenSlot() {
+        return forgottenSlot;
+    }
 }
@@ -1,34 +1,66 @@
 package server;
 
+import java.io.Serializable;
+import java.util.List;
+
+import model.CommitParams;
+
 // This class is to construct a proposal object
-public class Proposal {
-    private int voteNo;
+public class Proposal implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // ballot, see Ballot
+    private long voteNo;
     private String content;
+    // log slot this proposal is for, 0 if it is not for a log slot
+    private long slot;
+    // commands proposed for the slot, so a new leader can recover them from the acceptors
+    private List<CommitParams> commands;
 
     // constructor
     public Proposal() {
         this.voteNo = 0;
         this.content = null;
+        this.slot = 0;
+    }
+
+    // constructor
+    public Proposal(long number, String msg) {
+        this(number, msg, 0);
+    }
+
+    // constructor
+    public Proposal(long number, String msg, long slot) {
+        this(number, msg, slot, null);
     }
 
     // constructor
-    public Proposal(int number, String msg) {
+    public Proposal(long number, String msg, long slot, List<CommitParams> commands) {
         this.voteNo = number;
         this.content = msg;
+        this.slot = slot;
+        this.commands = commands;
     }
 
     public String getContent() {
         return this.content;
     }
 
-    public int getVoteNo() {
+    public long getVoteNo() {
         return this.voteNo;
     }
 
+    public long getSlot() {
+        return this.slot;
+    }
+
+    public List<CommitParams> getCommands() {
+        return this.commands;
+    }
+
     /**
      * function to compare if two proposals are equal or not
-     * two proposals are equal only if their vote number and content are both the
-     * same
+     * two proposals are equal only if their vote number, slot and content are
+     * all the same
      * 
      * @param p
      * @return true or false
@@ -37,7 +69,7 @@ public class Proposal {
         if (p == null) {
             return false;
         }
-        return this.voteNo == p.voteNo && this.content.equalsIgnoreCase(p.content);
+        return this.voteNo == p.voteNo && this.slot == p.slot && this.content.equalsIgnoreCase(p.content);
 
     }
 
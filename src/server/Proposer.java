@@ -10,29 +10,100 @@ public class Proposer {
 
     public static Logger Log = LogManager.getLogger(Proposer.class);
 
+    // per-phase timeouts in milliseconds
+    private static final long PREPARE_TIMEOUT_MS = Long.getLong("emr.paxos.prepareTimeoutMs", 2000);
+    private static final long ACCEPT_TIMEOUT_MS = Long.getLong("emr.paxos.acceptTimeoutMs", 2000);
+
+    // sends each phase to all acceptors concurrently
+    private static QuorumFanOut fanOut = QuorumFanOut.createDefault();
+
     /**
-     * Phase 1: PREPARE-PROMISE
+     * Replace the fan-out engine, e.g. to run the acceptor calls on another executor
+     *
+     * @param engine fan-out engine
+     */
+    public static void setFanOut(QuorumFanOut engine) {
+        QuorumFanOut previous = fanOut;
+        fanOut = engine;
+        previous.shutdown();
+    }
+
+    /**
+     * Get how many acceptors make a majority. The majority is taken of all the
+     * member servers, down ones included, not only of the live acceptors, so
+     * two quorums always share an acceptor.
+     *
+     * @param acceptors live acceptors
+     * @return number of acks needed
+     */
+    static int majorityOf(List<? extends AcceptorInterface> acceptors) {
+        return Math.max(acceptors.size(), CentralServer.getMemberCount()) / 2 + 1;
+    }
+
+    /**
+     * Runs both phases of a single paxos round.
      * This function is to check if the proposer receives a PROMISE with true
-     * response from a majority of acceptors, it will return true.
+     * response from a majority of acceptors, and then an ACCEPT from a majority
+     * of acceptors, it will return true.
      * 
      * @param p
      * @param acceptors
      * @return
      */
-    public static boolean prepare(Proposal p, List<Acceptor> acceptors) {
+    public static boolean prepare(Proposal p, List<? extends AcceptorInterface> acceptors) {
 
         Log.info("Reqeust Received: " + p.getContent());
-        int majorityNo = acceptors.size() / 2 + 1;
 
-        // loop through each acceptor to check if it is prepared or not
-        // if it is prepared, add to the count
-        int countOfPrepared = 0;
-        for (Acceptor a : acceptors) {
+        if (!promise(p, acceptors)) {
+            return false;
+        }
+
+        if (!accept(p, acceptors)) {
+            return false;
+        }
+
+        Log.info("Proposal: " + p.getContent() + " SUCCESS PREPARED and ACCEPTED");
+        return true;
+
+    }
+
+    /**
+     * Phase 1: PREPARE-PROMISE
+     * Sends the proposal to every acceptor concurrently and checks if a majority
+     * of them respond with a PROMISE with true before the prepare timeout.
+     *
+     * @param p
+     * @param acceptors
+     * @return true if a majority promised
+     */
+    public static boolean promise(Proposal p, List<? extends AcceptorInterface> acceptors) {
+        return promise(p, acceptors, new ArrayList<>());
+    }
+
+    /**
+     * Phase 1: PREPARE-PROMISE, keeping the acked promises, e.g. for a new leader
+     * that has to recover what the acceptors already accepted.
+     *
+     * @param p
+     * @param acceptors
+     * @param promises  receives the acked promises
+     * @return true if a majority promised
+     */
+    public static boolean promise(Proposal p, List<? extends AcceptorInterface> acceptors, List<Promise> promises) {
+        int majorityNo = majorityOf(acceptors);
+
+        // send the prepare to all acceptors at once and count the promises
+        // until a majority is reached
+        int countOfPrepared = fanOut.collect(acceptors, a -> {
             Promise promise = a.onPrepare(p);
             if (promise != null && promise.isAck()) {
-                countOfPrepared++;
+                synchronized (promises) {
+                    promises.add(promise);
+                }
+                return true;
             }
-        }
+            return false;
+        }, majorityNo, PREPARE_TIMEOUT_MS);
 
         Log.info("Prepared count: " + countOfPrepared);
 
@@ -42,24 +113,29 @@ public class Proposer {
             Log.info("Proposal: " + p.getContent() + " NOT PREPARED");
             return false;
         }
+        return true;
+    }
 
-        // Phase two: check the accept phase
-        int acceptCount = 0;
-        for (Acceptor a : acceptors) {
-            if (a.onAccept(p)) {
-                acceptCount++;
-            }
-        }
+    /**
+     * Phase 2: PROPOSE-ACCEPT
+     * Sends the proposal to every acceptor concurrently and checks if a majority
+     * of them accept it before the accept timeout.
+     *
+     * @param p
+     * @param acceptors
+     * @return true if a majority accepted
+     */
+    public static boolean accept(Proposal p, List<? extends AcceptorInterface> acceptors) {
+        int majorityNo = majorityOf(acceptors);
+
+        int acceptCount = fanOut.collect(acceptors, a -> a.onAccept(p), majorityNo, ACCEPT_TIMEOUT_MS);
         Log.info("Acceptor count: " + acceptCount);
 
         if (acceptCount < majorityNo) {
             Log.info("Proposal: " + p.getContent() + " NOT ACCEPTED");
             return false;
         }
-
-        Log.info("Proposal: " + p.getContent() + " SUCCESS PREPARED and ACCEPTED");
         return true;
-
     }
 
 }
@@ -0,0 +1,147 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Sends one paxos phase to all acceptors at the same time and returns as soon as
+ * enough of them acked, so one slow replica no longer sets the latency of every
+ * commit. Calls that are still running after the quorum is reached, or after the
+ * phase timed out, are cancelled if not started yet and otherwise ignored.
+ */
+public class QuorumFanOut {
+
+    private final ExecutorService executor;
+
+    public static Logger Log = LogManager.getLogger(QuorumFanOut.class);
+
+    /**
+     * Constructor
+     *
+     * @param executor executor running the calls to the acceptors
+     */
+    public QuorumFanOut(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Create a fan-out engine configured by system properties:
+     * emr.paxos.virtualThreads runs each call on a virtual thread when the JVM
+     * supports them, otherwise emr.paxos.fanOutThreads sets a fixed pool size
+     * (0 means a cached pool).
+     */
+    public static QuorumFanOut createDefault() {
+        if (Boolean.getBoolean("emr.paxos.virtualThreads")) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return new QuorumFanOut(virtual);
+            }
+            Log.info("Virtual threads are not supported by this JVM, use platform threads instead");
+        }
+
+        int threads = Integer.getInteger("emr.paxos.fanOutThreads", 0);
+        AtomicInteger count = new AtomicInteger();
+        if (threads > 0) {
+            return new QuorumFanOut(Executors.newFixedThreadPool(threads, r -> daemon(r, count)));
+        }
+        return new QuorumFanOut(Executors.newCachedThreadPool(r -> daemon(r, count)));
+    }
+
+    private static Thread daemon(Runnable r, AtomicInteger count) {
+        Thread t = new Thread(r, "paxos-fanout-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Look up Executors.newVirtualThreadPerTaskExecutor() reflectively so the
+     * code still compiles and runs on JDK 11.
+     *
+     * @return the executor, or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Call every target concurrently and count the acks.
+     * Returns as soon as the quorum is reached, as soon as the quorum can no
+     * longer be reached, or when the timeout expires.
+     *
+     * @param targets   acceptors to call
+     * @param call      the phase to run on one acceptor, true means ack
+     * @param quorum    number of acks needed
+     * @param timeoutMs how long to wait for the quorum
+     * @return number of acks received before returning
+     */
+    public <T> int collect(List<T> targets, Predicate<T> call, int quorum, long timeoutMs) {
+        CompletionService<Boolean> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Boolean>> futures = new ArrayList<>(targets.size());
+        for (T target : targets) {
+            futures.add(completion.submit(() -> call.test(target)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        int acks = 0;
+        int nacks = 0;
+        try {
+            while (acks < quorum && acks + (targets.size() - acks - nacks) >= quorum) {
+                long remaining = deadline - System.nanoTime();
+                Future<Boolean> done = remaining > 0 ? completion.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (done == null) {
+                    Log.debug("Quorum timeout after " + timeoutMs + "ms with " + acks + " acks");
+                    break;
+                }
+                if (isAck(done)) {
+                    acks++;
+                } else {
+                    nacks++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // stragglers: never interrupt a running acceptor, just stop waiting for it
+            for (Future<Boolean> f : futures) {
+                f.cancel(false);
+            }
+        }
+        return acks;
+    }
+
+    private static boolean isAck(Future<Boolean> done) {
+        try {
+            return Boolean.TRUE.equals(done.get());
+        } catch (ExecutionException e) {
+            Log.debug("Acceptor call failed: " + e.getCause());
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop the executor threads.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
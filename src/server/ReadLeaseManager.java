@@ -0,0 +1,82 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read leases handed out by the coordinator.
+ * While a server holds a valid lease, every write waits until that server has
+ * applied it (or until the lease expired) before it is acknowledged. The lease
+ * holder therefore has every acknowledged write and can serve reads from its
+ * local state without a paxos round, and the reads stay linearizable.
+ */
+public class ReadLeaseManager {
+
+    private final long leaseMs;
+    // port# -> lease expiry time in ms
+    private final ConcurrentHashMap<Integer, Long> holders = new ConcurrentHashMap<>();
+
+    /**
+     * A granted lease: the holder may serve local reads until the expiry time,
+     * once it has applied every slot up to the read index of each consensus group.
+     */
+    public static class Lease {
+        private final long expiry;
+        private final long[] readIndex;
+
+        public Lease(long expiry, long[] readIndex) {
+            this.expiry = expiry;
+            this.readIndex = readIndex;
+        }
+
+        public long getExpiry() {
+            return expiry;
+        }
+
+        public long getReadIndex(int group) {
+            return readIndex[group];
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param leaseMs how long a lease is valid
+     */
+    public ReadLeaseManager(long leaseMs) {
+        this.leaseMs = leaseMs;
+    }
+
+    /**
+     * Register a server as lease holder. The holder is registered before the
+     * caller reads the last slot, so every write acknowledged without waiting
+     * for this holder has a slot up to that read index.
+     *
+     * @param port port# of the server
+     * @return lease expiry time in ms
+     */
+    public long register(int port) {
+        long expiry = System.currentTimeMillis() + leaseMs;
+        holders.merge(port, expiry, Math::max);
+        return expiry;
+    }
+
+    /**
+     * Get the servers whose lease has not expired yet
+     *
+     * @return port# -> lease expiry time in ms
+     */
+    public Map<Integer, Long> getActiveHolders() {
+        long now = System.currentTimeMillis();
+        Map<Integer, Long> active = new HashMap<>();
+        for (Map.Entry<Integer, Long> holder : holders.entrySet()) {
+            if (holder.getValue() > now) {
+                active.put(holder.getKey(), holder.getValue());
+            } else {
+                holders.remove(holder.getKey(), holder.getValue());
+            }
+        }
+        return active;
+    }
+}
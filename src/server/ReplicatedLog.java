@@ -0,0 +1,347 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+import model.CommitParams;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Slot-indexed log of decided commands kept by every server.
+ * Several paxos instances can be in flight at the same time, so decisions may
+ * arrive out of order. A decided slot is buffered until every slot before it is
+ * decided too, and the commands are then applied in slot order. A late
+ * decision fills its gap and releases all the buffered slots after it.
+ * Before a slot is applied its commands pass a gate, which may wait for slots of
+ * other logs they depend on. Consecutive slots whose gate is already open are
+ * applied together as one run, so a server working off a backlog hands many
+ * commands to the applier at once. A run is applied and marked applied while
+ * holding the apply lock, so whoever holds the other side of that lock sees a state
+ * that matches the applied slot. If the server keeps a command log, every slot
+ * is appended to it before it is applied.
+ * If a run fails to apply, the log stops before it: the run stays buffered,
+ * the applied slot does not move past it and the log reports itself failed
+ * until the server's state is replaced and the log reset.
+ * One thread at a time applies the log. It does not hold the log's lock while
+ * its gate waits or a run is applied, so decisions keep arriving meanwhile and
+ * another log's gate never waits behind this log's lock.
+ */
+public class ReplicatedLog {
+
+    // decided slots waiting for an earlier gap to be filled
+    private final TreeMap<Long, List<CommitParams>> pending = new TreeMap<>();
+    // max number of slots applied in one run
+    private static final int MAX_RUN_SLOTS = Integer.getInteger("emr.apply.maxRunSlots", 64);
+
+    // true if the commands of one slot may be applied; waits for that if asked to
+    private final BiPredicate<List<CommitParams>, Boolean> gate;
+    // applies the commands of a run of consecutive slots, in slot order
+    private final Consumer<SortedMap<Long, List<CommitParams>>> applier;
+    // held while a slot is applied
+    private final Lock applyLock;
+    // durable copy of the applied slots, null if the server does not keep one
+    private final CommandLog commandLog;
+    // highest slot applied so far, slots start from 1
+    private volatile long appliedSlot = 0;
+    // highest slot decided so far
+    private volatile long decidedSlot = 0;
+    // true while a thread applies slots of this log, guarded by the log's lock
+    private boolean applying = false;
+    // true once a run failed to apply, until the log is reset to a copied state
+    private volatile boolean failed = false;
+    // signalled when slots are applied, so waiting for them needs no lock of the log
+    private final Object appliedSignal = new Object();
+
+    public static Logger Log = LogManager.getLogger(ReplicatedLog.class);
+
+    /**
+     * Constructor
+     *
+     * @param gate       tells if the commands of one slot may be applied, and waits
+     *                   until they may be if the second argument is true
+     * @param applier    applies the commands of a run of consecutive slots in order
+     * @param applyLock  held while a run is applied
+     * @param commandLog log every slot is appended to before it is applied, may be null
+     */
+    public ReplicatedLog(BiPredicate<List<CommitParams>, Boolean> gate,
+                         Consumer<SortedMap<Long, List<CommitParams>>> applier, Lock applyLock,
+                         CommandLog commandLog) {
+        this.gate = gate;
+        this.applier = applier;
+        this.applyLock = applyLock;
+        this.commandLog = commandLog;
+    }
+
+    /**
+     * Record the decision of a slot and apply every slot that is now in order.
+     * Duplicated or already applied decisions are ignored.
+     *
+     * @param slot     decided slot
+     * @param commands commands decided for the slot, empty for a skipped slot
+     */
+    public void decide(long slot, List<CommitParams> commands) {
+        synchronized (this) {
+            if (slot <= appliedSlot || pending.containsKey(slot)) {
+                return;
+            }
+            pending.put(slot, commands);
+            decidedSlot = Math.max(decidedSlot, slot);
+            if (slot != appliedSlot + 1) {
+                Log.debug("Slot " + slot + " buffered, waiting for slot " + (appliedSlot + 1));
+            }
+            if (applying) {
+                // the applying thread picks the slot up
+                return;
+            }
+            applying = true;
+        }
+        applyInOrder();
+    }
+
+    /**
+     * Record the decisions of several slots, e.g. a backlog delivered at once,
+     * and apply every slot that is now in order. Returns once no thread is
+     * applying the log any more, so the slots in order are applied by then.
+     *
+     * @param decisions decided slot -> commands decided for the slot
+     */
+    public void decideAll(SortedMap<Long, List<CommitParams>> decisions) {
+        synchronized (this) {
+            for (Map.Entry<Long, List<CommitParams>> decision : decisions.entrySet()) {
+                if (decision.getKey() > appliedSlot) {
+                    pending.putIfAbsent(decision.getKey(), decision.getValue());
+                    decidedSlot = Math.max(decidedSlot, decision.getKey());
+                }
+            }
+            if (!awaitIdle()) {
+                return;
+            }
+            applying = true;
+        }
+        applyInOrder();
+    }
+
+    /**
+     * Wait until no thread applies the log, holding the log's lock
+     *
+     * @return false if interrupted
+     */
+    private boolean awaitIdle() {
+        while (applying) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply the buffered slots that directly follow the applied slot, as the
+     * thread that set applying. The first slot of a run may wait for its gate;
+     * the slots after it only join the run if their gate is already open.
+     */
+    private void applyInOrder() {
+        Map.Entry<Long, List<CommitParams>> next;
+        try {
+            while ((next = nextInOrder()) != null) {
+                gate.test(next.getValue(), true);
+                if (!applyRun(next)) {
+                    stopApplying();
+                    return;
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            stopApplying();
+            throw e;
+        }
+    }
+
+    private synchronized void stopApplying() {
+        applying = false;
+        notifyAll();
+    }
+
+    /**
+     * @return the slot after the applied slot, or null if it is not decided yet
+     * or the log failed, in which case this thread stops applying the log
+     */
+    private synchronized Map.Entry<Long, List<CommitParams>> nextInOrder() {
+        if (failed || pending.isEmpty() || pending.firstKey() != appliedSlot + 1) {
+            applying = false;
+            notifyAll();
+            return null;
+        }
+        return pending.pollFirstEntry();
+    }
+
+    /**
+     * Apply a run of slots starting with the given one
+     *
+     * @return false if the run failed, in which case the log failed and keeps the run buffered
+     */
+    private boolean applyRun(Map.Entry<Long, List<CommitParams>> first) {
+        TreeMap<Long, List<CommitParams>> run = new TreeMap<>();
+        run.put(first.getKey(), first.getValue());
+        synchronized (this) {
+            while (run.size() < MAX_RUN_SLOTS && !pending.isEmpty() && pending.firstKey() == run.lastKey() + 1
+                    && gate.test(pending.firstEntry().getValue(), false)) {
+                Map.Entry<Long, List<CommitParams>> next = pending.pollFirstEntry();
+                run.put(next.getKey(), next.getValue());
+            }
+        }
+
+        boolean applied = false;
+        applyLock.lock();
+        try {
+            if (commandLog != null) {
+                for (Map.Entry<Long, List<CommitParams>> slot : run.entrySet()) {
+                    commandLog.append(slot.getKey(), slot.getValue());
+                }
+                commandLog.commit();
+            }
+            applier.accept(run);
+            applied = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.error("Failed to apply slots " + run.firstKey() + "-" + run.lastKey()
+                    + ", the log stops until the server is recovered: " + e.getMessage());
+        } finally {
+            if (applied) {
+                appliedSlot = run.lastKey();
+            }
+            applyLock.unlock();
+        }
+        if (!applied) {
+            // part of the run may be applied, so it is not applied again on this state
+            synchronized (this) {
+                pending.putAll(run);
+                failed = true;
+            }
+            return false;
+        }
+        // before the next gate may wait, since another log may wait for this run
+        signalApplied();
+        return true;
+    }
+
+    private void signalApplied() {
+        synchronized (appliedSignal) {
+            appliedSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the given slot has been applied.
+     *
+     * @param slot      slot to wait for
+     * @param timeoutMs max time to wait
+     * @return true if the slot is applied
+     */
+    public boolean awaitApplied(long slot, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (appliedSignal) {
+            while (appliedSlot < slot) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    appliedSignal.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop applying the log: wait until the run being applied is done, and keep
+     * decisions buffered from then on until resetTo. The server's state may be
+     * replaced in between, since no run lands on it any more.
+     *
+     * @return false if interrupted, in which case the log is not paused
+     */
+    public synchronized boolean pause() {
+        if (!awaitIdle()) {
+            return false;
+        }
+        applying = true;
+        return true;
+    }
+
+    /**
+     * Move the log to the given slot after this server copied its state from
+     * another server that had applied every slot up to it, and apply it again.
+     * The log must have been paused before the state was replaced. The log
+     * goes back if the copy is older than what this server had applied, and
+     * the slots in between have to be decided here again, see
+     * Server.catchUp(). Buffered slots up to the given one are dropped and the
+     * ones after it are applied if they are in order.
+     *
+     * @param slot highest slot included in the copied state
+     */
+    public void resetTo(long slot) {
+        synchronized (this) {
+            if (slot < appliedSlot) {
+                Log.info("Log goes back from slot " + appliedSlot + " to the copied slot " + slot);
+            }
+            pending.headMap(slot, true).clear();
+            appliedSlot = slot;
+            failed = false;
+        }
+        signalApplied();
+        applyInOrder();
+    }
+
+    /**
+     * Get the slots that are not decided here although a later slot is. Their
+     * decision is either still in flight or was lost on the way to this server.
+     *
+     * @return missing slots in order
+     */
+    public synchronized List<Long> getMissingSlots() {
+        List<Long> missing = new ArrayList<>();
+        if (pending.isEmpty()) {
+            return missing;
+        }
+        for (long slot = appliedSlot + 1; slot < pending.lastKey(); slot++) {
+            if (!pending.containsKey(slot)) {
+                missing.add(slot);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return true if a run failed to apply and the log waits for the server to be recovered
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return highest slot applied so far
+     */
+    public long getAppliedSlot() {
+        return appliedSlot;
+    }
+
+    /**
+     * @return number of slots decided here but not applied yet, gaps included
+     */
+    public long getBacklog() {
+        return Math.max(0, decidedSlot - appliedSlot);
+    }
+}
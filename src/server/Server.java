@@ -1,7 +1,9 @@
 package server;
 
 
+import com.healthmarketscience.rmiio.GZIPRemoteInputStream;
 import com.healthmarketscience.rmiio.RemoteInputStream;
+import com.healthmarketscience.rmiio.RemoteInputStreamServer;
 import com.healthmarketscience.rmiio.SimpleRemoteInputStream;
 import doctor_database.ActiveDoctorData;
 import doctor_database.Doctor;
@@ -12,6 +14,14 @@ import document_database.Section;
 import message_database.MessageManager;
 import model.*;
 import back_up_database.BackUpData;
+import compression.Codecs;
+import storage.BinaryCodec;
+import storage.DoctorDataCodec;
+import storage.DocumentDataCodec;
+import storage.FileSectionStore;
+import storage.SectionHistory;
+import storage.SectionStore;
+import storage.SegmentSectionStore;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.LogManager;
@@ -21,12 +31,21 @@ import java.io.*;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Implements the server class that contains methods for doctor/PatientFile administration.
@@ -37,11 +56,73 @@ public class Server implements ServerInterface {
     public int port;
     // for paxos
     private Proposer proposer;
-    private Acceptor acceptor;
+    // one acceptor and one log per consensus group
+    private Acceptor[] acceptors;
+    // decided slots, applied in slot order
+    private ReplicatedLog[] logs;
+    // the groups this server proposes for while it leads them, null unless decentralized
+    private PeerConsensusGroup[] proposerGroups;
+    // slots are applied under the read lock; the write lock stops every group
+    // to copy a state that matches the applied slots
+    private final ReentrantReadWriteLock applyLock = new ReentrantReadWriteLock();
+    // how long a request waits for this server to apply the slot it was committed in
+    private static final long APPLY_TIMEOUT_MS = Long.getLong("emr.log.applyTimeoutMs", 5000);
+    // reads are served locally until this time, see readBarrier()
+    private volatile long readLeaseExpiry = 0;
+    // stop using a lease a little before the coordinator stops waiting for this server
+    private static final long LEASE_MARGIN_MS = 50;
 
     private String DATA_DIR;
     private final String USER_DB_NAME = "DoctorDB.dat";
     private final String DOC_DB_NAME = "DocDB.dat";
+    // deflate the binary database files
+    private static final boolean DB_COMPRESS = Boolean.parseBoolean(System.getProperty("emr.db.compress", "false"));
+    // start from an index of the patient files and decode each one when it is first used
+    private static final boolean DB_LAZY = Boolean.parseBoolean(System.getProperty("emr.db.lazy", "false"));
+    private final String ACCEPTOR_NAME = "Acceptor.dat";
+    // keep the acceptor state in a memory-mapped file so it survives a restart
+    private static final boolean DURABLE_ACCEPTOR = Boolean.parseBoolean(System.getProperty("emr.acceptor.durable", "true"));
+    private final String SECTION_DIR = "sections/";
+    // where section contents are kept: files -> a file per section, segments -> packed in segment files
+    private static final String SECTION_STORE = System.getProperty("emr.sections.store", "files");
+    private static final long SECTION_SEGMENT_BYTES = Long.getLong("emr.sections.segmentBytes", 64L * 1024 * 1024);
+    private static final long SECTION_COMPACT_INTERVAL_MS = Long.getLong("emr.sections.compactIntervalMs", 30000);
+    private SectionStore sectionStore;
+    // every saved version of the sections, as deltas with a keyframe every few versions
+    private static final int SECTION_KEYFRAME_EVERY = Integer.getInteger("emr.sections.keyframeEvery", 16);
+    private static final int SECTION_HISTORY_CACHE = Integer.getInteger("emr.sections.historyCache", 1024);
+    private SectionHistory sectionHistory;
+    private final String SNAPSHOT_NAME = "Snapshot.dat";
+    private final String COMMAND_LOG_DIR = "commands/";
+    // log every applied slot and snapshot the databases, so a restart only replays recent slots
+    private static final boolean COMMAND_LOG = Boolean.parseBoolean(System.getProperty("emr.commandLog.enabled", "true"));
+    private static final int SNAPSHOT_EVERY_SLOTS = Integer.getInteger("emr.snapshot.everySlots", 1000);
+    // when logged slots are forced to the disk: commit, batch or interval
+    private static final CommandLog.FsyncPolicy FSYNC_POLICY = CommandLog.FsyncPolicy.valueOf(
+            System.getProperty("emr.commandLog.fsync", "batch").toUpperCase(Locale.ROOT));
+    private static final long FSYNC_INTERVAL_MS = Long.getLong("emr.commandLog.fsyncIntervalMs", 100);
+    // one command log per consensus group, null if disabled
+    private CommandLog[] commandLogs;
+    private final AtomicLong slotsSinceSnapshot = new AtomicLong(0);
+    private ScheduledExecutorService snapshotter;
+    // also take a snapshot this often if any slot was applied since the last one
+    private static final long SNAPSHOT_INTERVAL_MS = Long.getLong("emr.snapshot.intervalMs", 60000);
+    // odd while a snapshot is being taken, so a request can tell if it overlapped one
+    private final AtomicLong snapshotEpoch = new AtomicLong(0);
+    // latencies of recent client requests, and of those that overlapped a snapshot
+    private final LatencyRecorder requestLatency = new LatencyRecorder(4096);
+    private final LatencyRecorder snapshotRequestLatency = new LatencyRecorder(4096);
+    // applies the commands of decided slots, in parallel where they do not conflict
+    private static final int APPLY_THREADS = Integer.getInteger("emr.apply.threads",
+            Runtime.getRuntime().availableProcessors());
+    private ApplyScheduler applyScheduler;
+
+    // how often the load is reported to the coordinator, which places clients by it
+    static final long LOAD_REPORT_MS = Long.getLong("emr.load.reportMs", 500);
+    private final AtomicInteger inFlightRequests = new AtomicInteger(0);
+    // sections opened for editing through this server, until their edit end is applied
+    private final Set<String> openEditSections = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService loadReporter;
 
     private int centralPort;
     private DocumentData documentData;
@@ -67,6 +148,10 @@ public class Server implements ServerInterface {
             this.DATA_DIR = "./server_data_" + port + "/";
 
             createDataDirectory();
+            sectionStore = "segments".equals(SECTION_STORE)
+                    ? new SegmentSectionStore(DATA_DIR + SECTION_DIR, SECTION_SEGMENT_BYTES, SECTION_COMPACT_INTERVAL_MS)
+                    : new FileSectionStore();
+            sectionHistory = new SectionHistory(sectionStore, SECTION_KEYFRAME_EVERY, SECTION_HISTORY_CACHE);
 
             doctorData = initDoctorDB();
             documentData = initDocumentDB();
@@ -80,28 +165,442 @@ public class Server implements ServerInterface {
 
             System.setProperty("java.net.preferIPv4Stack", "true");
             // store memory database when shutting down with shutdown hook
-            doctorData = initDoctorDB();
-            documentData = initDocumentDB();
-
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 Log.info("Server " + port + " is shutting down...");
+                sectionStore.close();
+                if (commandLogs != null) {
+                    // the snapshot and the command log already hold every applied slot
+                    for (CommandLog commandLog : commandLogs) {
+                        commandLog.close();
+                    }
+                    return;
+                }
                 storeDoctorDB();
                 storeDocumentsDB();
             }));
 
 
             proposer = new Proposer();
-            acceptor = new Acceptor(port);
+            applyScheduler = new ApplyScheduler("apply-" + port, APPLY_THREADS, this::executeCommit);
+            int groups = CentralServer.getGroupCount();
+            acceptors = new Acceptor[groups];
+            logs = new ReplicatedLog[groups];
+            if (COMMAND_LOG) {
+                commandLogs = new CommandLog[groups];
+                snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "snapshot-" + port);
+                    t.setDaemon(true);
+                    return t;
+                });
+                snapshotter.scheduleWithFixedDelay(() -> {
+                    if (slotsSinceSnapshot.get() > 0) {
+                        takeSnapshot();
+                    }
+                }, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            for (int group = 0; group < groups; group++) {
+                int g = group;
+                // group 0 keeps the file name it had before there were several groups
+                String acceptorPath = DATA_DIR + (group == 0 ? ACCEPTOR_NAME : "Acceptor" + group + ".dat");
+                acceptors[group] = DURABLE_ACCEPTOR ? new Acceptor(port, acceptorPath) : new Acceptor(port);
+                if (COMMAND_LOG) {
+                    commandLogs[group] = new CommandLog(DATA_DIR + COMMAND_LOG_DIR, group, FSYNC_POLICY, FSYNC_INTERVAL_MS);
+                }
+                logs[group] = new ReplicatedLog((batch, wait) -> awaitDependencies(g, batch, wait),
+                        this::applySlots, applyLock.readLock(),
+                        COMMAND_LOG ? commandLogs[group] : null);
+            }
+            if (COMMAND_LOG) {
+                restoreFromCommandLog();
+            }
+            loadReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "load-" + port);
+                t.setDaemon(true);
+                return t;
+            });
+            loadReporter.scheduleWithFixedDelay(this::reportLoad, LOAD_REPORT_MS, LOAD_REPORT_MS, TimeUnit.MILLISECONDS);
+            if (CentralServer.isDecentralized()) {
+                proposerGroups = CentralServer.createPeerGroups(this);
+                for (PeerConsensusGroup group : proposerGroups) {
+                    group.seedVoteNo(acceptors[group.getId()].getPromisedVoteNo());
+                }
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
 
     }
 
-    public Acceptor gAcceptor() {
-        return this.acceptor;
+    public Acceptor gAcceptor(int group) {
+        return this.acceptors[group];
+    }
+
+
+    /**
+     * Stop writing to the data directory, e.g. before another server object is
+     * started on the same port
+     */
+    public void shutdown() {
+        applyScheduler.shutdown();
+        loadReporter.shutdown();
+        sectionStore.close();
+        for (Acceptor acceptor : acceptors) {
+            acceptor.close();
+        }
+        if (commandLogs == null) {
+            return;
+        }
+        snapshotter.shutdown();
+        for (CommandLog commandLog : commandLogs) {
+            commandLog.close();
+        }
+    }
+
+    /**
+     * @param group consensus group
+     * @return highest slot of the group applied by this server
+     */
+    public long getAppliedSlot(int group) {
+        return logs[group].getAppliedSlot();
+    }
+
+    /**
+     * @return current load of this server
+     */
+    public ServerLoad getLoad() {
+        long queueDepth = 0;
+        boolean needsRecovery = false;
+        for (ReplicatedLog log : logs) {
+            queueDepth += log.getBacklog();
+            needsRecovery |= log.isFailed();
+        }
+        return new ServerLoad(inFlightRequests.get(), openEditSections.size(), queueDepth, needsRecovery);
+    }
+
+    /**
+     * Send the current load to the coordinator
+     */
+    private void reportLoad() {
+        try {
+            StubCache.central("localhost", centralPort).reportLoad(port, getLoad());
+        } catch (Exception e) {
+            StubCache.invalidate(centralPort);
+            Log.debug("Server " + port + " cannot report its load: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get another server, or this one without RMI
+     *
+     * @param port port# of the server
+     * @return the server
+     * @throws RemoteException if the server cannot be looked up
+     */
+    ServerInterface peer(int port) throws RemoteException {
+        if (port == this.port) {
+            return this;
+        }
+        return StubCache.server(port);
+    }
+
+    /**
+     * Get how many slots decided by this server each replica has not received yet
+     *
+     * @return port# -> lag in slots
+     */
+    Map<Integer, Long> getLearnerLag() {
+        Map<Integer, Long> lag = new HashMap<>();
+        if (proposerGroups != null) {
+            for (PeerConsensusGroup group : proposerGroups) {
+                group.getDispatcher().getLag().forEach((port, behind) -> lag.merge(port, behind, Long::sum));
+            }
+        }
+        return lag;
     }
 
+    /**
+     * Stop delivering the slots decided by this server to a server that left
+     * the cluster
+     *
+     * @param port port# of the removed server
+     */
+    void removeLearner(int port) {
+        if (proposerGroups != null) {
+            for (PeerConsensusGroup group : proposerGroups) {
+                group.getDispatcher().remove(port);
+            }
+        }
+    }
+
+    /**
+     * Get the decided commands of a slot from whoever decides the group: the
+     * coordinator, or the server leading the group
+     *
+     * @param group consensus group
+     * @param slot  log slot
+     * @return decided commands, or null if they are not available
+     */
+    private List<CommitParams> fetchDecision(int group, long slot) {
+        if (!CentralServer.isDecentralized()) {
+            return CentralServer.getDecision(group, slot);
+        }
+        int leader = CentralServer.leaderOf(group);
+        try {
+            return leader < 0 ? null : peer(leader).getDecision(group, slot);
+        } catch (RemoteException e) {
+            StubCache.invalidate(leader);
+            Log.debug("Server " + port + " cannot reach leader " + leader + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Load the latest snapshot and replay the slots logged after it. Without a
+     * snapshot the databases loaded from the data directory are the starting
+     * point, and a first snapshot of them is taken.
+     */
+    private void restoreFromCommandLog() {
+        BackUpData snapshot = loadSnapshot();
+        if (snapshot == null) {
+            for (int group = 0; group < commandLogs.length; group++) {
+                if (!commandLogs[group].isEmpty()) {
+                    Log.info("Server " + port + " has no snapshot, group " + group + " command log is dropped");
+                }
+                commandLogs[group].reset(1);
+            }
+            takeSnapshot();
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        pauseLogs();
+        this.documentData = snapshot.getDocumentDatabase();
+        this.doctorData = snapshot.getDoctorDatabase();
+        this.activeDoctorData = snapshot.getActiveDoctorDatabase();
+        this.messageManager = snapshot.getMessageManager();
+        long[] snapshotSlots = snapshot.getAppliedSlots();
+
+        // every group is replayed on its own thread, so an operation waiting for
+        // a slot of another group it depends on does not block that group
+        List<Thread> replays = new ArrayList<>();
+        AtomicLong replayed = new AtomicLong(0);
+        for (int group = 0; group < logs.length; group++) {
+            ReplicatedLog log = logs[group];
+            long snapshotSlot = group < snapshotSlots.length ? snapshotSlots[group] : 0;
+            log.resetTo(snapshotSlot);
+            SortedMap<Long, List<CommitParams>> tail = commandLogs[group].readAfter(snapshotSlot);
+            Thread replay = new Thread(() -> {
+                log.decideAll(tail);
+                replayed.addAndGet(tail.size());
+            }, "replay-" + port + "-" + group);
+            replay.start();
+            replays.add(replay);
+        }
+        for (Thread replay : replays) {
+            try {
+                replay.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Log.info("Server " + port + " restored snapshot at slots " + Arrays.toString(snapshotSlots)
+                + " and replayed " + replayed.get() + " slots in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * load the latest snapshot
+     *
+     * @return snapshot, or null if there is none
+     */
+    private BackUpData loadSnapshot() {
+        try (ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(DATA_DIR + SNAPSHOT_NAME)))) {
+            return (BackUpData) input.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Copy the databases while no slot is being applied. The copy shares
+     * nothing mutable with the live databases, so it can be serialized while
+     * slots are applied again.
+     *
+     * @return point-in-time copy of the databases, without section files
+     */
+    private BackUpData copyDatabases() {
+        Map<Doctor, Doctor> copies = new IdentityHashMap<>();
+        return new BackUpData(documentData.copy(copies), doctorData.copy(copies), activeDoctorData.copy(copies),
+                messageManager.copy(), new HashMap<>());
+    }
+
+    /**
+     * Write a snapshot of the databases and drop the command log segments it
+     * covers. Slots are only held back while the databases are copied; the
+     * copy is serialized and written afterwards, on this background thread.
+     * The file is written to a temporary name and then moved over the old
+     * snapshot, so a crash leaves either the old or the new snapshot.
+     */
+    private synchronized void takeSnapshot() {
+        snapshotEpoch.incrementAndGet();
+        try {
+            writeSnapshot();
+        } finally {
+            snapshotEpoch.incrementAndGet();
+        }
+    }
+
+    private void writeSnapshot() {
+        long start = System.currentTimeMillis();
+        long[] slots;
+        BackUpData snapshot;
+        applyLock.writeLock().lock();
+        try {
+            slots = getAppliedSlots();
+            snapshot = copyDatabases();
+            snapshot.setAppliedSlots(slots);
+            for (int group = 0; group < commandLogs.length; group++) {
+                commandLogs[group].roll(slots[group] + 1);
+            }
+            slotsSinceSnapshot.set(0);
+        } finally {
+            applyLock.writeLock().unlock();
+        }
+        long pausedMs = System.currentTimeMillis() - start;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            if (DB_LAZY) {
+                // restored lazily too, and patient files never used are copied without decoding them
+                snapshot.encodeDocumentDatabase();
+            }
+            output.writeObject(snapshot);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Server " + port + " snapshot failed: " + e.getMessage());
+            return;
+        }
+
+        File tmp = new File(DATA_DIR + SNAPSHOT_NAME + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(tmp)) {
+            bytes.writeTo(output);
+            output.getFD().sync();
+            Files.move(tmp.toPath(), Paths.get(DATA_DIR + SNAPSHOT_NAME),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Server " + port + " snapshot not written: " + e.getMessage());
+            return;
+        }
+
+        for (int group = 0; group < commandLogs.length; group++) {
+            commandLogs[group].truncateBefore(slots[group] + 1);
+        }
+        Log.info("Server " + port + " snapshot at slots " + Arrays.toString(slots) + ", " + bytes.size()
+                + " bytes in " + (System.currentTimeMillis() - start) + " ms, slots held back " + pausedMs
+                + " ms; p99 request latency " + snapshotRequestLatency.percentile(99) / 1000.0
+                + " ms during snapshots, " + requestLatency.percentile(99) / 1000.0 + " ms overall");
+    }
+
+    /**
+     * Apply the commands of a run of slots and take a snapshot in the background
+     * every SNAPSHOT_EVERY_SLOTS slots
+     *
+     * @param run slot -> commands of the slot, in slot order
+     */
+    private void applySlots(SortedMap<Long, List<CommitParams>> run) {
+        List<CommitParams> commands = new ArrayList<>();
+        for (List<CommitParams> batch : run.values()) {
+            commands.addAll(batch);
+        }
+        executeBatch(commands);
+        long before = slotsSinceSnapshot.getAndAdd(run.size());
+        if (commandLogs != null && before < SNAPSHOT_EVERY_SLOTS && before + run.size() >= SNAPSHOT_EVERY_SLOTS) {
+            try {
+                snapshotter.execute(this::takeSnapshot);
+            } catch (RejectedExecutionException e) {
+                // the server is shutting down, the command log still holds these slots
+            }
+        }
+    }
+
+    /**
+     * Get the slots of a group this server logged and applied after a given
+     * one, e.g. for the coordinator to hand them to servers that restored an
+     * older state
+     *
+     * @param group     consensus group
+     * @param afterSlot highest slot not wanted
+     * @return slot -> commands, in slot order, empty if this server keeps no command log
+     */
+    SortedMap<Long, List<CommitParams>> getLoggedSlots(int group, long afterSlot) {
+        if (commandLogs == null || afterSlot >= logs[group].getAppliedSlot()) {
+            return new TreeMap<>();
+        }
+        return commandLogs[group].readAfter(afterSlot).headMap(logs[group].getAppliedSlot() + 1);
+    }
+
+    /**
+     * Take the recent decisions of the coordinator that this server missed, e.g.
+     * after it restored its state from its command log. Nothing is taken
+     * unless the missed slots of every group are still kept, and every group
+     * takes its slots on its own thread, like a replay of the command log.
+     *
+     * @return false if some missed slot is no longer kept by the coordinator
+     */
+    boolean catchUp() {
+        List<SortedMap<Long, List<CommitParams>>> missedSlots = new ArrayList<>();
+        for (int group = 0; group < logs.length; group++) {
+            long applied = logs[group].getAppliedSlot();
+            long last;
+            long oldest;
+            if (CentralServer.isDecentralized()) {
+                int leader = CentralServer.leaderOf(group);
+                try {
+                    last = leader < 0 ? applied : peer(leader).getLastSlot(group);
+                    oldest = leader < 0 ? applied + 1 : peer(leader).getOldestRetainedSlot(group);
+                } catch (RemoteException e) {
+                    StubCache.invalidate(leader);
+                    Log.debug("Server " + port + " cannot reach leader " + leader + ": " + e.getMessage());
+                    return false;
+                }
+            } else {
+                last = CentralServer.getLastSlot(group);
+                oldest = CentralServer.getOldestRetainedSlot(group);
+            }
+            if (applied < last && applied + 1 < oldest) {
+                return false;
+            }
+            SortedMap<Long, List<CommitParams>> missed = new TreeMap<>();
+            for (long slot = applied + 1; slot <= last; slot++) {
+                List<CommitParams> decided = fetchDecision(group, slot);
+                // slots still in paxos are learned as soon as they are decided
+                if (decided != null) {
+                    missed.put(slot, decided);
+                }
+            }
+            missedSlots.add(missed);
+        }
+
+        List<Thread> catchUps = new ArrayList<>();
+        for (int group = 0; group < logs.length; group++) {
+            ReplicatedLog log = logs[group];
+            SortedMap<Long, List<CommitParams>> missed = missedSlots.get(group);
+            if (missed.isEmpty()) {
+                continue;
+            }
+            Thread catchUp = new Thread(() -> log.decideAll(missed), "catch-up-" + port + "-" + group);
+            catchUp.start();
+            catchUps.add(catchUp);
+        }
+        for (Thread catchUp : catchUps) {
+            try {
+                catchUp.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
 
     /**
      * Create data directory according to current server DATA_DIR
@@ -123,12 +622,26 @@ public class Server implements ServerInterface {
     }
 
     /**
-     * load doctor database
+     * load doctor database, from the binary format or from a serialized file
+     * written before it
      *
      * @return userDB
      */
     private DoctorData loadDoctorDB() {
-        try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(DATA_DIR + USER_DB_NAME))) {
+        File file = new File(DATA_DIR + USER_DB_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        if (BinaryCodec.isBinary(file)) {
+            try {
+                return DoctorDataCodec.read(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.debug("Server " + port + " cannot load " + file + ": " + e.getMessage());
+                return null;
+            }
+        }
+        try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(file))) {
             return (DoctorData) input.readObject();
         } catch (IOException | ClassNotFoundException e) {
             return null;
@@ -146,12 +659,26 @@ public class Server implements ServerInterface {
     }
 
     /**
-     * load document database
+     * load document database, from the binary format or from a serialized file
+     * written before it
      *
      * @return documentDB
      */
     private DocumentData loadDocumentDB() {
-        try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(DATA_DIR + DOC_DB_NAME))) {
+        File file = new File(DATA_DIR + DOC_DB_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        if (BinaryCodec.isBinary(file)) {
+            try {
+                return DB_LAZY ? DocumentDataCodec.readLazily(file) : DocumentDataCodec.read(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.debug("Server " + port + " cannot load " + file + ": " + e.getMessage());
+                return null;
+            }
+        }
+        try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(file))) {
             return (DocumentData) input.readObject();
         } catch (IOException | ClassNotFoundException e) {
             return null;
@@ -160,11 +687,11 @@ public class Server implements ServerInterface {
 
 
     /**
-     * Stores DoctorDB object through serialization.
+     * Stores DoctorDB object in the binary format.
      */
     private boolean storeDoctorDB() {
-        try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(DATA_DIR + USER_DB_NAME))) {
-            output.writeObject(doctorData);
+        try {
+            DoctorDataCodec.write(doctorData, new File(DATA_DIR + USER_DB_NAME), DB_COMPRESS);
             return true;
         } catch (IOException ex) {
             return false;
@@ -172,11 +699,11 @@ public class Server implements ServerInterface {
     }
 
     /**
-     * Stores DocumentsDatabase object through serialization.
+     * Stores DocumentsDatabase object in the binary format.
      */
     private boolean storeDocumentsDB() {
-        try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(DATA_DIR + DOC_DB_NAME))) {
-            output.writeObject(documentData);
+        try {
+            DocumentDataCodec.write(documentData, new File(DATA_DIR + DOC_DB_NAME), DB_COMPRESS);
             return true;
         } catch (IOException ex) {
             return false;
@@ -199,7 +726,6 @@ public class Server implements ServerInterface {
             commitParams.setDoctor(doctor);
             commitParams.setCommitEnum(CommitEnum.CREATE_USER);
             commitParams.setSectionNum(-1);
-            commitParams.setDoctorDatabase(doctorData);
 
             commitParams.setProposalMsg("CreateUser: " + username);
 
@@ -238,10 +764,7 @@ public class Server implements ServerInterface {
                 commitParams.setDoctor(user);
                 commitParams.setCommitEnum(CommitEnum.LOGIN);
                 commitParams.setSectionNum(-1);
-                commitParams.setActiveDoctorDatabase(activeDoctorData);
-
 
-                commitParams = updateCommitParamsDatabase(commitParams);
                 commitParams.setProposalMsg("login" + user.getDoctorName());
 
                 Result result = paxos(commitParams);
@@ -250,9 +773,7 @@ public class Server implements ServerInterface {
                 if (result.getStatus() == 0) {
                     return new Result(0, "Request aborted.");
                 }
-                String token = activeDoctorData.getTokenByDoctor(user.getDoctorName());
-                executeCommit(commitParams);
-                CentralServer.learn(commitParams, port);
+                String token = commitParams.getToken();
 
                 if (token != null) {
                     Log.info("Server " + port + CommitEnum.LOGIN + ": SUCCESS");
@@ -281,7 +802,6 @@ public class Server implements ServerInterface {
         commitParams.setDoctor(user);
         commitParams.setCommitEnum(CommitEnum.LOGOUT);
         commitParams.setSectionNum(-1);
-        commitParams.setActiveDoctorDatabase(activeDoctorData);
 
         commitParams.setProposalMsg("Logout: " + user.getDoctorName());
         Result result = paxos(commitParams);
@@ -307,6 +827,10 @@ public class Server implements ServerInterface {
      */
     @Override
     public Result edit(Doctor user, Request request) throws RemoteException {
+        if (!readBarrier()) {
+            return new Result(0, "Request aborted.");
+        }
+
         if (!activeDoctorData.isLoggedIn(user.getDoctorName())) {
             return new Result(0, "Not logged in.");
         }
@@ -339,8 +863,6 @@ public class Server implements ServerInterface {
         commitParams.setCommitEnum(CommitEnum.EDIT);
         commitParams.setDocName(request.getDocName());
         commitParams.setSectionNum(request.getSectionNum());
-        commitParams.setDocumentDatabase(documentData);
-        commitParams.setMessageManager(messageManager);
         long nextAvailableAddress = messageManager.getNextAvailableAddress();
         commitParams.setMulticastAddress(nextAvailableAddress);
 
@@ -353,11 +875,13 @@ public class Server implements ServerInterface {
         if (result.getStatus() == 0) {
             return new Result(0, "Request aborted.");
         }
+        openEditSections.add(editKey(request.getDocName(), request.getSectionNum()));
 
         try {
-            FileChannel fileChannel = FileChannel.open(Paths.get(section.getPath()), StandardOpenOption.READ);
-            InputStream stream = Channels.newInputStream(fileChannel);
-            SimpleRemoteInputStream remoteInputStream = new SimpleRemoteInputStream(stream);
+            InputStream stream = section.getFileInputStream(sectionHistory);
+            // the section goes to the client compressed unless compression is off
+            RemoteInputStreamServer remoteInputStream = Codecs.getConfigured() != null
+                    ? new GZIPRemoteInputStream(stream) : new SimpleRemoteInputStream(stream);
             result.setRemoteInputStream(remoteInputStream);
             Log.info("Server " + port + CommitEnum.EDIT + ": SUCCESS");
             return new Result(1, String.valueOf(messageManager.getResultAddress(document.getPatientName())), remoteInputStream);
@@ -366,6 +890,13 @@ public class Server implements ServerInterface {
         }
     }
 
+    /**
+     * @return key of a section in the open edit sessions
+     */
+    private static String editKey(String docName, int sectionNum) {
+        return docName + "/" + sectionNum;
+    }
+
     /**
      * Complete editing a document. Need to commit the document update. Start the 2PC process to sync
      * with other servers.
@@ -413,9 +944,6 @@ public class Server implements ServerInterface {
             RemoteInputStream remoteInputStream = request.getRemoteInputStream();
             commitParams.setBytes(RemoteInputStreamUtils.toBytes(remoteInputStream));
 
-            commitParams.setDocumentDatabase(documentData);
-            commitParams.setMessageManager(messageManager);
-
             commitParams.setProposalMsg("Edit_end: " + user.getDoctorName());
 
             Result result = paxos(commitParams);
@@ -492,6 +1020,10 @@ public class Server implements ServerInterface {
      */
     @Override
     public Result listOwnedDocs(Doctor user, Request request) throws RemoteException {
+        if (!readBarrier()) {
+            return new Result(0, "Request aborted.");
+        }
+
         if (!activeDoctorData.isLoggedIn(user.getDoctorName())) {
             return new Result(0, "Not logged in.");
         }
@@ -512,6 +1044,117 @@ public class Server implements ServerInterface {
         return new Result(1, names);
     }
 
+    /**
+     * Get the newest version of a section
+     *
+     * @param user    the user who reads the section
+     * @param request document name and section number
+     * @return result: status 0-> fail, 1-> success, and the version number as message
+     * @throws RemoteException
+     */
+    @Override
+    public Result getSectionVersion(Doctor user, Request request) throws RemoteException {
+        Result denied = checkSectionAccess(user, request);
+        if (denied != null) {
+            return denied;
+        }
+        Section section = documentData.getDocumentByName(request.getDocName()).getSectionByIndex(request.getSectionNum());
+        return new Result(1, String.valueOf(section.getVersion()));
+    }
+
+    /**
+     * Read a saved version of a section
+     *
+     * @param user    the user who reads the section
+     * @param request document name, section number and the version as toVersion
+     * @return result: status 0-> fail, 1-> success, and the content of the version as message
+     * @throws RemoteException
+     */
+    @Override
+    public Result readSectionVersion(Doctor user, Request request) throws RemoteException {
+        Result denied = checkSectionAccess(user, request);
+        if (denied != null) {
+            return denied;
+        }
+        Section section = documentData.getDocumentByName(request.getDocName()).getSectionByIndex(request.getSectionNum());
+        if (request.getToVersion() < 0 || request.getToVersion() > section.getVersion()) {
+            return new Result(0, "Section has versions 0 to " + section.getVersion() + ".");
+        }
+        try {
+            byte[] content = sectionHistory.read(section.getPath(), request.getToVersion());
+            return new Result(1, new String(content, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Server " + port + e.getMessage());
+            return new Result(0, "Exception while accessing the section");
+        }
+    }
+
+    /**
+     * Compare two saved versions of a section line by line
+     *
+     * @param user    the user who reads the section
+     * @param request document name, section number, fromVersion and toVersion
+     * @return result: status 0-> fail, 1-> success, and the diff as message
+     * @throws RemoteException
+     */
+    @Override
+    public Result diffSectionVersions(Doctor user, Request request) throws RemoteException {
+        Result denied = checkSectionAccess(user, request);
+        if (denied != null) {
+            return denied;
+        }
+        Section section = documentData.getDocumentByName(request.getDocName()).getSectionByIndex(request.getSectionNum());
+        int newest = section.getVersion();
+        if (request.getFromVersion() < 0 || request.getFromVersion() > newest
+                || request.getToVersion() < 0 || request.getToVersion() > newest) {
+            return new Result(0, "Section has versions 0 to " + newest + ".");
+        }
+        try {
+            List<String> diff = sectionHistory.diff(section.getPath(), request.getFromVersion(), request.getToVersion());
+            return new Result(1, String.join("\n", diff));
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Server " + port + e.getMessage());
+            return new Result(0, "Exception while accessing the section");
+        }
+    }
+
+    /**
+     * Check that a user may read a section of a document
+     *
+     * @param user    the user who reads the section
+     * @param request document name and section number
+     * @return the failed result, null if the user may read the section
+     */
+    private Result checkSectionAccess(Doctor user, Request request) {
+        if (!readBarrier()) {
+            return new Result(0, "Request aborted.");
+        }
+
+        if (!activeDoctorData.isLoggedIn(user.getDoctorName())) {
+            return new Result(0, "Not logged in.");
+        }
+
+        if (!user.equals(activeDoctorData.getDoctorByToken(request.getToken()))) {
+            return new Result(0, "User does not match token.");
+        }
+
+        PatientFile document = documentData.getDocumentByName(request.getDocName());
+        if (document == null) {
+            return new Result(0, "Document does not exist.");
+        }
+
+        if (!document.hasPermit(user)) {
+            return new Result(0, "You do not have access.");
+        }
+
+        if (document.getSectionByIndex(request.getSectionNum()) == null) {
+            return new Result(0, "Section does not exist.");
+        }
+        return null;
+    }
+
     /**
      * Share doc to another user to let him/her have the access to edit the doc. Only the doc creator
      * has the access to share.
@@ -551,8 +1194,6 @@ public class Server implements ServerInterface {
         commitParams.setCommitEnum(CommitEnum.SHARE);
         commitParams.setDocName(request.getDocName());
         commitParams.setSectionNum(request.getSectionNum());
-        commitParams.setDocumentDatabase(documentData);
-        commitParams.setDoctorDatabase(doctorData);
         commitParams.setTargetUser(request.getTargetUser().getDoctorName());
 
         commitParams.setProposalMsg("ShareDoc: " + user.getDoctorName());
@@ -569,83 +1210,300 @@ public class Server implements ServerInterface {
 
 
     /**
-     * Paxos steps: Phase 1 prepare, if it is successfully prepared, the server
-     * *      will execute this request and trigger learner for other servers to update accordingly.
+     * Paxos steps: the command is decided in a log slot, either alone or in a batch
+     * *      with other commands. Every server, including this one, learns the slot and
+     * *      executes it in slot order, so this waits until this server has applied it.
      *
      * @param commitParams commit parameters
      * @return 2pc result: status 0-> abort, 1-> commit, and message
      */
     private Result paxos(CommitParams commitParams) throws RemoteException {
-        // update database stored in commitParams
-        commitParams = updateCommitParamsDatabase(commitParams);
-        boolean isPrepare = CentralServer.paxosPrepare(commitParams.getProposalMsg());
-        if (!isPrepare) {
-            return new Result(0, "Request Aborted.");
+        inFlightRequests.incrementAndGet();
+        long epoch = snapshotEpoch.get();
+        long start = System.nanoTime();
+        try {
+            return commit(commitParams);
+        } finally {
+            inFlightRequests.decrementAndGet();
+            long micros = (System.nanoTime() - start) / 1000;
+            requestLatency.record(micros);
+            if (epoch % 2 == 1 || snapshotEpoch.get() != epoch) {
+                snapshotRequestLatency.record(micros);
+            }
+        }
+    }
+
+    private Result commit(CommitParams commitParams) throws RemoteException {
+        // compute the non-deterministic parts of the operation once, here
+        commitParams = prepareCommitParams(commitParams);
+        // whatever this server has seen must be applied before the operation everywhere
+        commitParams.setDependencies(getAppliedSlots());
+        int group = CentralServer.groupOf(commitParams);
+        long slot;
+        if (CentralServer.isDecentralized()) {
+            slot = submitToLeader(group, commitParams);
         } else {
-            // current server execute
-            executeCommit(commitParams);
-            // other servers learned
-            CentralServer.learn(commitParams, port);
-            return new Result(1, "Request Committed.");
+            slot = CentralServer.isBatching()
+                    ? CentralServer.submit(group, commitParams)
+                    : CentralServer.decide(group, Collections.singletonList(commitParams));
+        }
+        if (slot < 0) {
+            return new Result(0, "Request Aborted.");
+        }
+        if (!logs[group].awaitApplied(slot, APPLY_TIMEOUT_MS)) {
+            Log.info("Server " + port + " group " + group + " slot " + slot + " is committed but not applied yet");
+        }
+        // servers reading under a lease must see this write before it is acknowledged
+        CentralServer.awaitReadLeaseHolders(group, slot, port);
+        return new Result(1, "Request Committed.");
+    }
+
+    /**
+     * Make sure the local state contains every write acknowledged before this
+     * read started. With a valid read lease this is free. Otherwise the server
+     * asks for a new lease and catches up to its read index, and only if that
+     * is not possible it orders the read through a paxos round.
+     *
+     * @return true if the local state can be read
+     */
+    private boolean readBarrier() {
+        if (System.currentTimeMillis() < readLeaseExpiry - LEASE_MARGIN_MS) {
+            return true;
+        }
+        inFlightRequests.incrementAndGet();
+        try {
+            return awaitReadable();
+        } finally {
+            inFlightRequests.decrementAndGet();
+        }
+    }
+
+    private boolean awaitReadable() {
+        if (CentralServer.isReadLeaseEnabled()) {
+            ReadLeaseManager.Lease lease = CentralServer.grantReadLease(port);
+            boolean caughtUp = true;
+            for (int group = 0; group < logs.length && caughtUp; group++) {
+                long remaining = lease.getExpiry() - LEASE_MARGIN_MS - System.currentTimeMillis();
+                caughtUp = remaining > 0 && logs[group].awaitApplied(lease.getReadIndex(group), remaining);
+            }
+            if (caughtUp) {
+                readLeaseExpiry = lease.getExpiry();
+                return true;
+            }
+        }
+
+        long[] slots = CentralServer.isDecentralized() ? readBarrierAtLeaders() : CentralServer.readBarrier();
+        if (slots == null) {
+            return false;
+        }
+        for (int group = 0; group < logs.length; group++) {
+            if (!logs[group].awaitApplied(slots[group], APPLY_TIMEOUT_MS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Order a read through a paxos round with no commands at the leader of
+     * every group
+     *
+     * @return the slot of the round in each group, or null if one was aborted
+     */
+    private long[] readBarrierAtLeaders() {
+        long[] slots = new long[logs.length];
+        for (int group = 0; group < logs.length; group++) {
+            int leader = CentralServer.leaderOf(group);
+            try {
+                slots[group] = leader < 0 ? -1 : peer(leader).readBarrier(group);
+            } catch (RemoteException e) {
+                StubCache.invalidate(leader);
+                Log.debug("Server " + port + " cannot reach leader " + leader + ": " + e.getMessage());
+                return null;
+            }
+            if (slots[group] < 0) {
+                return null;
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Send a command to the server leading its group
+     *
+     * @param group        consensus group of the command
+     * @param commitParams commit parameters
+     * @return the slot of the command, or -1 if it was aborted
+     */
+    private long submitToLeader(int group, CommitParams commitParams) {
+        int leader = CentralServer.leaderOf(group);
+        try {
+            return leader < 0 ? -1 : peer(leader).submit(group, commitParams);
+        } catch (RemoteException e) {
+            StubCache.invalidate(leader);
+            Log.debug("Server " + port + " cannot reach leader " + leader + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Propose a command forwarded by another server in a group this server leads
+     *
+     * @param group        consensus group of the command
+     * @param commitParams commit parameters
+     * @return the slot of the command, or -1 if it was aborted
+     */
+    @Override
+    public long submit(int group, CommitParams commitParams) {
+        if (proposerGroups == null) {
+            return -1;
+        }
+        return CentralServer.isBatching()
+                ? proposerGroups[group].submit(commitParams)
+                : proposerGroups[group].decide(Collections.singletonList(commitParams));
+    }
+
+    /**
+     * Decide an empty slot in a group this server leads, to order a read
+     *
+     * @param group consensus group
+     * @return the slot, or -1 if it was aborted
+     */
+    @Override
+    public long readBarrier(int group) {
+        return proposerGroups == null ? -1 : proposerGroups[group].decide(Collections.emptyList());
+    }
+
+    /**
+     * @param group consensus group
+     * @param slot  log slot
+     * @return commands this server decided for the slot, or null if it does not have them
+     */
+    @Override
+    public List<CommitParams> getDecision(int group, long slot) {
+        return proposerGroups == null ? null : proposerGroups[group].getDecision(slot);
+    }
+
+    /**
+     * @param group consensus group
+     * @return last slot this server handed out in the group
+     */
+    @Override
+    public long getLastSlot(int group) {
+        return proposerGroups == null ? 0 : proposerGroups[group].getLastSlot();
+    }
+
+    /**
+     * @param group consensus group
+     * @return oldest slot of the group whose decision this server still keeps
+     */
+    @Override
+    public long getOldestRetainedSlot(int group) {
+        return proposerGroups == null ? 1 : proposerGroups[group].getOldestRetainedSlot();
+    }
+
+    @Override
+    public Promise onPrepare(int group, Proposal p) {
+        return acceptors[group].onPrepare(p);
+    }
+
+    @Override
+    public boolean onAccept(int group, Proposal p) {
+        return acceptors[group].onAccept(p);
+    }
+
+    /**
+     * Wait until this server applied a slot
+     *
+     * @param group     group of the slot
+     * @param slot      slot to wait for
+     * @param timeoutMs max time to wait
+     * @return true if the slot is applied
+     */
+    boolean awaitApplied(int group, long slot, long timeoutMs) {
+        return logs[group].awaitApplied(slot, timeoutMs);
+    }
+
+    /**
+     * @return highest applied slot of each consensus group
+     */
+    private long[] getAppliedSlots() {
+        long[] slots = new long[logs.length];
+        for (int group = 0; group < logs.length; group++) {
+            slots[group] = logs[group].getAppliedSlot();
         }
+        return slots;
     }
 
     /**
-     * This function is paxos Phase one : prepare commitparams database for commit
-     * Update commitparams database with doctor DB or activeDoctorDB (not documentDB)
+     * Wait until the slots a batch depends on are applied in the other groups.
+     * An operation of one group can rely on the effects of another group, e.g.
+     * sharing a document notifies a doctor created in the doctor group, so it
+     * is applied after everything its origin server had applied. Its own group
+     * is already ordered by the log.
+     *
+     * @param ownGroup group of the batch
+     * @param batch    commands of one slot
+     * @param wait     false to only check if the dependencies are applied
+     * @return true if the batch may be applied now
+     */
+    private boolean awaitDependencies(int ownGroup, List<CommitParams> batch, boolean wait) {
+        for (CommitParams commitParams : batch) {
+            long[] dependencies = commitParams.getDependencies();
+            if (dependencies == null) {
+                continue;
+            }
+            for (int group = 0; group < dependencies.length && group < logs.length; group++) {
+                if (group == ownGroup || logs[group].getAppliedSlot() >= dependencies[group]) {
+                    continue;
+                }
+                if (!wait) {
+                    return false;
+                }
+                if (!logs[group].awaitApplied(dependencies[group], APPLY_TIMEOUT_MS)) {
+                    Log.info("Server " + port + " applies " + commitParams.getProposalMsg()
+                            + " before group " + group + " slot " + dependencies[group]);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This function is paxos Phase one : prepare commitparams for commit
+     * Fill in the parts of the operation that must be the same on every replica but
+     * cannot be computed there: the login token and the stored password hash.
+     * The local databases are not changed in this step, only executeCommit changes them.
      *
      * @param commitParams
      * @return commitParams
      */
-    CommitParams updateCommitParamsDatabase(CommitParams commitParams) {
-        // documentDB should not update in this step
-        switch (commitParams.getCommitEnum()) {
-            // create user: add new user to userDatabase
-            case CREATE_USER:
-                commitParams.getDoctorDatabase().addNewDoctor(commitParams.getDoctor().getDoctorName(), commitParams.getDoctor().getPassword());
-                break;
-            // login: create new OnlineUserRecord (generate token) and put into aliveUserDatabase
-            case LOGIN:
-                commitParams.getActiveDoctorDatabase().login(commitParams.getDoctor());
-                break;
-            // logout: set token to null
-            case LOGOUT:
-                String username = commitParams.getDoctor().getDoctorName();
-                commitParams.getActiveDoctorDatabase().getActiveDoctorInfo(username).setToken(null);
-                break;
-            // edit: set occupant of the section in documentDatabase
-            // cannot update db here because section path are different in different servers
-            case EDIT:
-                String docName = commitParams.getDocName();
-                commitParams.getMessageManager().getMessageDatabase().put(docName, commitParams.getMulticastAddress());
-                break;
-            // edit end: write input stream into section path
-            // set occupant to null in documentDatabase
-            // cannot update db here because section path are different in different servers
-            case EDIT_END:
-                docName = commitParams.getDocName();
-                commitParams.getMessageManager().getMessageDatabase().remove(docName);
-                break;
-            // create document: create a new document in documentDatabase
-            case CREATE_DOCUMENT:
-
-                break;
-            // share doc: add user to authors of a document in documentDatabase
-            case SHARE:
-                Doctor sharedUser = commitParams.getDoctorDatabase().getDoctorByDoctorName(commitParams.getTargetUser());
-                sharedUser.pushNewNotification(commitParams.getDocName());
-                break;
-            case GET_NOTIFICATIONS:
-                commitParams.getDoctorDatabase().getDoctorByDoctorName(commitParams.getDoctor().getDoctorName())
-                        .getNotifications().clear();
-                break;
+    CommitParams prepareCommitParams(CommitParams commitParams) {
+        try {
+            switch (commitParams.getCommitEnum()) {
+                // create user: hash the password the way addNewDoctor stores it
+                case CREATE_USER:
+                    Doctor doctor = commitParams.getDoctor();
+                    commitParams.setPasswordHash(doctor.getEncrypted(doctor.getPassword()));
+                    break;
+                // login: generate the token of this login
+                case LOGIN:
+                    commitParams.setToken(commitParams.getDoctor().generateToken());
+                    break;
+                default:
+                    break;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.debug("Server " + port + e.getMessage());
         }
         return commitParams;
     }
 
     /**
      * paxos phase two:  executeCommit().
-     * The function is the second phase of paxos to ask a server to execute a commit
+     * The function is the second phase of paxos to ask a server to execute a commit.
+     * Every replica applies the same operation to its own databases.
      * The requests include: CREATE_USER /LOGIN /LOGOUT EDIT/ SHARE /CREATE_DOCUMENT /EDIT_END GET_NOTIFICATIONS
      *
      * @param commitParams
@@ -653,12 +1511,17 @@ public class Server implements ServerInterface {
     @Override
     public void executeCommit(CommitParams commitParams) {
         switch (commitParams.getCommitEnum()) {
+            // create user: add new user to userDatabase
             case CREATE_USER:
-                this.doctorData = commitParams.getDoctorDatabase();
+                this.doctorData.addRegisteredDoctor(commitParams.getDoctor().getDoctorName(), commitParams.getPasswordHash());
                 break;
+            // login: put the new token into aliveUserDatabase
             case LOGIN:
+                this.activeDoctorData.login(commitParams.getDoctor(), commitParams.getToken());
+                break;
+            // logout: set token to null
             case LOGOUT:
-                this.activeDoctorData = commitParams.getActiveDoctorDatabase();
+                this.activeDoctorData.logout(commitParams.getDoctor().getDoctorName());
                 break;
             case EDIT:
                 // set occupant
@@ -666,19 +1529,23 @@ public class Server implements ServerInterface {
                 int sectionNum = commitParams.getSectionNum();
                 this.documentData.getDocumentByName(docName).
                         getSectionByIndex(sectionNum).occupy(commitParams.getDoctor());
-                this.messageManager = commitParams.getMessageManager();
+                this.messageManager.getMessageDatabase().put(docName, commitParams.getMulticastAddress());
                 break;
             case SHARE:
                 // add author
                 this.documentData.getDocumentByName(commitParams.getDocName()).
                         addAuthor(new Doctor(commitParams.getTargetUser()));
-                this.doctorData = commitParams.getDoctorDatabase();
+                Doctor sharedUser = this.doctorData.getDoctorByDoctorName(commitParams.getTargetUser());
+                if (sharedUser != null) {
+                    sharedUser.pushNewNotification(commitParams.getDocName());
+                }
                 break;
             case CREATE_DOCUMENT:
                 this.documentData.createNewPatientFile(DATA_DIR,
                         commitParams.getSectionNum(),
                         commitParams.getDocName(),
-                        commitParams.getDoctor());
+                        commitParams.getDoctor(),
+                        sectionStore);
                 break;
             case EDIT_END:
                 // set occupant to null
@@ -686,45 +1553,70 @@ public class Server implements ServerInterface {
                 sectionNum = commitParams.getSectionNum();
                 this.documentData.getDocumentByName(docName).
                         getSectionByIndex(sectionNum).occupy(null);
+                // the session ends on the server that opened it, whichever server ended it
+                openEditSections.remove(editKey(docName, sectionNum));
 
-                OutputStream fileStream = null;
                 try {
                     Section editingSection = documentData.
                             getDocumentByName(commitParams.getDocName()).
                             getSectionByIndex(commitParams.getSectionNum());
-                    fileStream = this.getWriteStream(editingSection.getPath());
-
-                    byte[] bytes = commitParams.getBytes();
-                    String str = new String(bytes, StandardCharsets.UTF_8);
-
-                    fileStream.write(bytes);
+                    editingSection.write(sectionHistory, commitParams.getBytes());
                 } catch (IOException e) {
                     e.printStackTrace();
                     Log.debug("Server " + port + e.getMessage());
                 }
-                if (fileStream != null) {
-                    try {
-                        fileStream.close();
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                        Log.debug("Server " + port + ex.getMessage());
-                    }
-                }
 
+                // the chat group is closed when nobody edits the document any more
                 PatientFile doc = documentData.getDocumentByName(commitParams.getDocName());
                 if (doc.getOccupiedSections().size() == 0) {
-                    messageManager = commitParams.getMessageManager();
+                    messageManager.remove(docName);
                 }
                 break;
             case GET_NOTIFICATIONS:
-                doctorData = commitParams.getDoctorDatabase();
+                Doctor reader = this.doctorData.getDoctorByDoctorName(commitParams.getDoctor().getDoctorName());
+                if (reader != null) {
+                    reader.removeReadNotifications(commitParams.getNewestReadNotification());
+                }
                 break;
         }
     }
 
-    public OutputStream getWriteStream(String path) throws IOException {
-        FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-        return Channels.newOutputStream(fileChannel);
+    /**
+     * Execute a committed batch. Commands on different patient files or doctors
+     * run in parallel, the ones on the same file or doctor in commit order.
+     *
+     * @param batch commands in commit order
+     */
+    @Override
+    public void executeBatch(List<CommitParams> batch) {
+        if (!batch.isEmpty()) {
+            applyScheduler.apply(batch);
+        }
+    }
+
+    /**
+     * Learn decided slots of a consensus group. Each one is applied once every
+     * slot before it in the group is applied.
+     *
+     * @param group     consensus group of the slots
+     * @param decisions decided slot -> commands decided for the slot
+     */
+    @Override
+    public void learn(int group, SortedMap<Long, List<CommitParams>> decisions) {
+        ReplicatedLog log = logs[group];
+        log.decideAll(decisions);
+
+        // a gap means an earlier decision is still in flight or was lost on the way
+        // here, so fill it with the decisions the coordinator already has
+        for (long missing : log.getMissingSlots()) {
+            List<CommitParams> decided = fetchDecision(group, missing);
+            if (decided != null) {
+                log.decide(missing, decided);
+            }
+        }
+        // a server taking over a group recovers the recent slots from the acceptors
+        long retained = CentralServer.isDecentralized() ? CentralServer.getRetainedSlots() : 0;
+        acceptors[group].forgetUpTo(log.getAppliedSlot() - retained);
     }
 
 
@@ -738,19 +1630,26 @@ public class Server implements ServerInterface {
     @Override
     public Result getNotifications(Doctor user) throws RemoteException {
         Result ret = new Result();
+        if (!readBarrier()) {
+            ret.setUnreadNotifications(new ArrayList<>());
+            return ret;
+        }
         Doctor userDB = doctorData.getDoctorByDoctorName(user.getDoctorName());
-        List<String> curNoti = userDB.getNotifications();
+        List<String> curNoti = new ArrayList<>();
+        long newestRead = userDB.peekNotifications(curNoti);
         if (curNoti.size() != 0) {
+            // the notifications read here are removed on every replica, by number,
+            // so a concurrent read of the same ones does not remove newer ones
             CommitParams commitParams = new CommitParams();
             commitParams.setDoctor(user);
             commitParams.setCommitEnum(CommitEnum.GET_NOTIFICATIONS);
-            commitParams.setDoctorDatabase(doctorData);
-            ret.setUnreadNotifications(new ArrayList<>(curNoti));
-            commitParams.setProposalMsg(curNoti.toString());
-            boolean result = CentralServer.paxosPrepare(commitParams.getProposalMsg());
+            commitParams.setNewestReadNotification(newestRead);
+            ret.setUnreadNotifications(curNoti);
+            commitParams.setProposalMsg("Get_notifications: " + user.getDoctorName());
+            Result result = paxos(commitParams);
 
 
-            if (!result) {
+            if (result.getStatus() == 0) {
                 ret.setUnreadNotifications(new ArrayList<>());
             }
         } else {
@@ -767,30 +1666,82 @@ public class Server implements ServerInterface {
      */
     @Override
     public boolean recoverData(BackUpData backupData) {
+        // a run still being applied would land on the copied state, which already contains it
+        pauseLogs();
+        long[] appliedSlots = backupData.getAppliedSlots();
+        boolean recovered;
+        try {
+            recovered = installBackUpData(backupData);
+        } finally {
+            // the copied state already contains every slot up to the helper's applied slots
+            for (int group = 0; group < logs.length; group++) {
+                logs[group].resetTo(group < appliedSlots.length ? appliedSlots[group] : 0);
+            }
+        }
+        if (recovered && commandLogs != null) {
+            takeSnapshot();
+        }
+        return recovered;
+    }
+
+    /**
+     * Replace the databases and the data directory by the copied ones, while
+     * every log is paused
+     *
+     * @param backupData copied state
+     * @return true-> success, false-> fail
+     */
+    private boolean installBackUpData(BackUpData backupData) {
         this.documentData = backupData.getDocumentDatabase();
         this.doctorData = backupData.getDoctorDatabase();
         this.activeDoctorData = backupData.getActiveDoctorDatabase();
         this.messageManager = backupData.getMessageManager();
+        long[] appliedSlots = backupData.getAppliedSlots();
 
         // clear previous data
         try {
             FileUtils.deleteDirectory(new File(DATA_DIR));
             createDataDirectory();
+            sectionStore.clear();
+            sectionHistory.clear();
+            // the acceptor state files were deleted with the directory
+            for (Acceptor acceptor : acceptors) {
+                acceptor.reopenStore();
+            }
         } catch (IOException e) {
             e.printStackTrace();
             Log.debug(e.getMessage());
         }
 
+        // the section contents go to the section store, the rest of the files as they are
+        Map<String, byte[]> fileStreamMap = new HashMap<>(backupData.getFileStreamMap());
         for (PatientFile doc : documentData.getDocuments()) {
             for (Section section : doc.getSections()) {
                 String previousPath = section.getPath();
                 String pattern = "(.*data_)([0-9]+)(/.*)";
                 String currPath = previousPath.replaceAll(pattern, "$1" + port + "$3");
                 section.setPath(currPath);
+                byte[] content = fileStreamMap.remove(currPath);
+                try {
+                    if (content != null) {
+                        sectionStore.write(currPath, content);
+                    } else {
+                        sectionStore.create(currPath);
+                    }
+                    for (int version = 1; version <= section.getVersion(); version++) {
+                        String versionPath = SectionHistory.versionPath(currPath, version);
+                        byte[] record = fileStreamMap.remove(versionPath);
+                        if (record != null) {
+                            sectionStore.write(versionPath, record);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
             }
         }
 
-        Map<String, byte[]> fileStreamMap = backupData.getFileStreamMap();
         for (String path : fileStreamMap.keySet()) {
             try {
 //        System.out.println(path);
@@ -802,9 +1753,32 @@ public class Server implements ServerInterface {
                 return false;
             }
         }
+
+        // the command log was deleted with the directory, start it again from the copied state
+        if (commandLogs != null) {
+            for (int group = 0; group < commandLogs.length && group < appliedSlots.length; group++) {
+                commandLogs[group].reset(appliedSlots[group] + 1);
+            }
+        }
         return true;
     }
 
+    /**
+     * Pause every log before the state is replaced; each is resumed by its resetTo
+     */
+    private void pauseLogs() {
+        boolean interrupted = false;
+        for (ReplicatedLog log : logs) {
+            // the log must not apply on top of the new state, so keep waiting
+            while (!log.pause()) {
+                interrupted |= Thread.interrupted();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Help target server recover the data from a live server
      *
@@ -813,10 +1787,68 @@ public class Server implements ServerInterface {
      */
     @Override
     public boolean helpRecoverData(int targetPort) {
-        DocumentData documentDatabase = this.documentData;
-        DoctorData userDatabase = this.doctorData;
-        ActiveDoctorData activeDoctorData = this.activeDoctorData;
-        MessageManager chatManager = this.messageManager;
+        // copy the state while no slot is being applied, so it matches the applied slots
+        BackUpData backupData;
+        applyLock.writeLock().lock();
+        try {
+            backupData = createBackUpData(targetPort);
+            backupData.setAppliedSlots(getAppliedSlots());
+        } finally {
+            applyLock.writeLock().unlock();
+        }
+
+        try {
+            StubCache.server(targetPort).recoverData(backupData);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.debug("Server " + port + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Seed a new server from the latest snapshot of this server rather than a
+     * copy of the live state, so no slot waits while the copy is made. The
+     * section files are the current ones; replaying the slots after the
+     * snapshot writes them again. The new server takes those slots from the
+     * retained decisions.
+     *
+     * @param targetPort port# of the new server
+     * @return true-> success, false-> there is no snapshot or it was not installed
+     */
+    @Override
+    public boolean seedFromSnapshot(int targetPort) {
+        BackUpData snapshot = commandLogs == null ? null : loadSnapshot();
+        if (snapshot == null) {
+            return false;
+        }
+        Map<String, byte[]> fileStreamMap = new HashMap<>();
+        collectSectionFiles(snapshot.getDocumentDatabase(), targetPort, fileStreamMap);
+        snapshot.setFileStreamMap(fileStreamMap);
+
+        try {
+            ServerInterface stub = StubCache.server(targetPort);
+            Log.info("Server " + port + " seeds server " + targetPort + " from its snapshot at slots "
+                    + Arrays.toString(snapshot.getAppliedSlots()));
+            return stub.recoverData(snapshot);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.debug("Server " + port + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Collect the databases and section files of this server for the target server
+     *
+     * @param targetPort port# of the target server
+     * @return backup data
+     */
+    private BackUpData createBackUpData(int targetPort) {
+        // a copy, because the backup is sent after slots are applied again
+        BackUpData copy = copyDatabases();
+        DocumentData documentDatabase = copy.getDocumentDatabase();
         Map<String, byte[]> fileStreamMap = new HashMap<>();
 
         // user file
@@ -833,6 +1865,19 @@ public class Server implements ServerInterface {
             fileStreamMap.put(targetDataDir + DOC_DB_NAME, getBytes(DATA_DIR + DOC_DB_NAME));
         }
 
+        collectSectionFiles(documentDatabase, targetPort, fileStreamMap);
+        copy.setFileStreamMap(fileStreamMap);
+        return copy;
+    }
+
+    /**
+     * Collect the section files of the documents, under their path on the target server
+     *
+     * @param documentDatabase documents
+     * @param targetPort       port# of the target server
+     * @param fileStreamMap    target path -> file content
+     */
+    private void collectSectionFiles(DocumentData documentDatabase, int targetPort, Map<String, byte[]> fileStreamMap) {
         // put section files
         for (PatientFile doc : documentDatabase.getDocuments()) {
             for (Section section : doc.getSections()) {
@@ -843,25 +1888,24 @@ public class Server implements ServerInterface {
                 String targetPath = currPath.replaceAll(pattern, "$1" + targetPort + "$3");
                 // change path stored in database
 //        System.out.println("target path " + currPath);
-                file = new File(currPath);
-                if (file.isFile()) {
+                try {
+                    byte[] content = sectionStore.readBytes(currPath);
+                    if (content != null) {
 //          System.out.println("put path " + currPath);
-                    fileStreamMap.put(targetPath, getBytes(currPath));
+                        fileStreamMap.put(targetPath, content);
+                    }
+                    // the saved versions, as they are stored
+                    for (int version = 1; version <= section.getVersion(); version++) {
+                        byte[] record = sectionStore.readBytes(SectionHistory.versionPath(currPath, version));
+                        if (record != null) {
+                            fileStreamMap.put(SectionHistory.versionPath(targetPath, version), record);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.debug("Exception: " + e.getMessage());
                 }
             }
         }
-        BackUpData backupData = new BackUpData(documentDatabase, userDatabase, activeDoctorData, messageManager, fileStreamMap);
-
-        try {
-            Registry registry = LocateRegistry.getRegistry(targetPort);
-            ServerInterface stub = (ServerInterface) registry.lookup(Server.class.getSimpleName() + targetPort);
-            stub.recoverData(backupData);
-            return true;
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.debug("Server " + port + e.getMessage());
-        }
-        return false;
     }
 
     /**
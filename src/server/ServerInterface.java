@@ -7,6 +7,8 @@ import model.Result;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.SortedMap;
 import java.util.UUID;
 
 public interface ServerInterface extends Remote{
@@ -14,6 +16,10 @@ public interface ServerInterface extends Remote{
 
     void executeCommit(CommitParams commitParams) throws RemoteException;
 
+    void executeBatch(List<CommitParams> batch) throws RemoteException;
+
+    void learn(int group, SortedMap<Long, List<CommitParams>> decisions) throws RemoteException;
+
     Result createUser(Doctor doctor) throws RemoteException;
 
     Result login(Doctor doctor) throws RemoteException;
@@ -33,8 +39,30 @@ public interface ServerInterface extends Remote{
 
     Result getNotifications(Doctor doctor) throws RemoteException;
 
+    Result getSectionVersion(Doctor doctor, Request request) throws RemoteException;
+
+    Result readSectionVersion(Doctor doctor, Request request) throws RemoteException;
+
+    Result diffSectionVersions(Doctor doctor, Request request) throws RemoteException;
+
     boolean recoverData(BackUpData backupData) throws RemoteException;
 
     boolean helpRecoverData(int targetPort) throws RemoteException;
 
+    boolean seedFromSnapshot(int targetPort) throws RemoteException;
+
+    Promise onPrepare(int group, Proposal p) throws RemoteException;
+
+    boolean onAccept(int group, Proposal p) throws RemoteException;
+
+    long submit(int group, CommitParams commitParams) throws RemoteException;
+
+    long readBarrier(int group) throws RemoteException;
+
+    List<CommitParams> getDecision(int group, long slot) throws RemoteException;
+
+    long getLastSlot(int group) throws RemoteException;
+
+    long getOldestRetainedSlot(int group) throws RemoteException;
+
 }
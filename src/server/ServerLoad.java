@@ -0,0 +1,68 @@
+package server;
+
+import java.io.Serializable;
+
+/**
+ * Load of a server as reported to the coordinator.
+ */
+public class ServerLoad implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // client requests waiting for a paxos round or a read barrier
+    private final int inFlightRequests;
+    // sections opened for editing through this server and not closed yet
+    private final int openEditSessions;
+    // decided slots this server has not applied yet, over all groups
+    private final long queueDepth;
+    // a command failed to apply here, so the state must be copied from another server
+    private final boolean needsRecovery;
+    private final long reportedAt;
+
+    /**
+     * Constructor
+     *
+     * @param inFlightRequests client requests in progress
+     * @param openEditSessions open edit sessions
+     * @param queueDepth       decided slots not applied yet
+     * @param needsRecovery    true if the server stopped applying after a failed command
+     */
+    public ServerLoad(int inFlightRequests, int openEditSessions, long queueDepth, boolean needsRecovery) {
+        this.inFlightRequests = inFlightRequests;
+        this.openEditSessions = openEditSessions;
+        this.queueDepth = queueDepth;
+        this.needsRecovery = needsRecovery;
+        this.reportedAt = System.currentTimeMillis();
+    }
+
+    public int getInFlightRequests() {
+        return inFlightRequests;
+    }
+
+    public int getOpenEditSessions() {
+        return openEditSessions;
+    }
+
+    public long getQueueDepth() {
+        return queueDepth;
+    }
+
+    public boolean needsRecovery() {
+        return needsRecovery;
+    }
+
+    public long getReportedAt() {
+        return reportedAt;
+    }
+
+    /**
+     * @return one number to compare servers by, lower is less loaded
+     */
+    public long getScore() {
+        return inFlightRequests + openEditSessions + queueDepth;
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + inFlightRequests + " edits=" + openEditSessions + " queue=" + queueDepth;
+    }
+}
@@ -0,0 +1,130 @@
+package server;
+
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * RMI stubs shared by everything in this JVM that talks to a server or to the
+ * coordinator. A stub is looked up in the registry once and reused for every
+ * call, so the hot paths (learning a slot, forwarding a command, running
+ * paxos against a peer) do not pay a registry round trip per call. A stub is
+ * dropped when a call through it fails or the coordinator sees its server go
+ * down, restart or leave, and is looked up again on the next call.
+ */
+public final class StubCache {
+
+    private static final String LOCAL_HOST = "localhost";
+
+    // host:port/name -> stub
+    private static final Map<String, Remote> stubs = new ConcurrentHashMap<>();
+
+    // lookups served from the cache and the ones that went to the registry
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong lookups = new AtomicLong(0);
+
+    public static Logger Log = LogManager.getLogger(StubCache.class);
+
+    private StubCache() {
+    }
+
+    /**
+     * Get a server on this host
+     *
+     * @param port port# of the server
+     * @return the stub of the server
+     * @throws RemoteException if the server cannot be looked up
+     */
+    public static ServerInterface server(int port) throws RemoteException {
+        return get(LOCAL_HOST, port, Server.class.getSimpleName() + port);
+    }
+
+    /**
+     * Get the coordinator
+     *
+     * @param host host of the coordinator
+     * @param port port# of the coordinator
+     * @return the stub of the coordinator
+     * @throws RemoteException if the coordinator cannot be looked up
+     */
+    public static CentralServerInterface central(String host, int port) throws RemoteException {
+        return get(host, port, "CentralServer");
+    }
+
+    /**
+     * Get a remote object, looking it up in the registry if it is not cached
+     *
+     * @param host host of the registry
+     * @param port port# of the registry
+     * @param name name the object is bound under
+     * @return the stub
+     * @throws RemoteException if the object cannot be looked up
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Remote> T get(String host, int port, String name) throws RemoteException {
+        String key = key(host, port, name);
+        Remote stub = stubs.get(key);
+        if (stub != null) {
+            hits.incrementAndGet();
+            return (T) stub;
+        }
+        try {
+            Registry registry = LocateRegistry.getRegistry(host, port);
+            stub = registry.lookup(name);
+        } catch (NotBoundException e) {
+            throw new RemoteException(name + " is not bound at " + host + ":" + port, e);
+        }
+        lookups.incrementAndGet();
+        stubs.put(key, stub);
+        return (T) stub;
+    }
+
+    /**
+     * Drop every stub of a port on this host, e.g. after a call through one failed
+     * or its server was restarted and bound again
+     *
+     * @param port port# of the registry
+     */
+    public static void invalidate(int port) {
+        invalidate(LOCAL_HOST, port);
+    }
+
+    /**
+     * Drop every stub of a registry
+     *
+     * @param host host of the registry
+     * @param port port# of the registry
+     */
+    public static void invalidate(String host, int port) {
+        String prefix = host + ":" + port + "/";
+        if (stubs.keySet().removeIf(key -> key.startsWith(prefix))) {
+            Log.debug("Dropped the cached stubs of " + host + ":" + port);
+        }
+    }
+
+    /**
+     * @return number of lookups served from the cache
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups that went to a registry
+     */
+    public static long getLookups() {
+        return lookups.get();
+    }
+
+    private static String key(String host, int port, String name) {
+        return host + ":" + port + "/" + name;
+    }
+}
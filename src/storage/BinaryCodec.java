@@ -0,0 +1,345 @@
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Versioned binary file of length-prefixed records.
+ *
+ * Layout, big endian:
+ * magic "EMRB" (4), format version (2), record type (1), flags (1),
+ * record count (4), body length before compression (8), body.
+ * The body is a sequence of records, each an int length followed by the
+ * record; with FLAG_DEFLATE the whole body is deflated. A reader gets each
+ * record as its own buffer, so fields a later version appends to a record
+ * are skipped by older readers.
+ *
+ * Files are read through a memory-mapped buffer and written to a temporary
+ * file that is moved over the old one, so a crash leaves either file whole.
+ */
+public final class BinaryCodec {
+
+    public static final int MAGIC = 0x454D5242;
+    public static final short FORMAT_VERSION = 1;
+    public static final byte TYPE_DOCTORS = 1;
+    public static final byte TYPE_DOCUMENTS = 2;
+    public static final byte FLAG_DEFLATE = 1;
+
+    private static final int HEADER_SIZE = 20;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encodes one record
+     */
+    public interface RecordWriter<T> {
+        void write(T record, DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Decodes one record
+     */
+    public interface RecordReader<T> {
+        /**
+         * @param in      the record, positioned at its first byte and limited to its length
+         * @param version format version the file was written with
+         * @return the record
+         */
+        T read(ByteBuffer in, int version) throws IOException;
+    }
+
+    /**
+     * Check if a file is in this format rather than a serialized object
+     *
+     * @param file the file
+     * @return true if the file starts with the magic number
+     */
+    public static boolean isBinary(File file) {
+        try (FileInputStream input = new FileInputStream(file)) {
+            byte[] magic = new byte[4];
+            return input.read(magic) == 4 && ByteBuffer.wrap(magic).getInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write records to a file
+     *
+     * @param file     target file
+     * @param type     record type
+     * @param compress true to deflate the body
+     * @param records  records in order
+     * @param writer   record encoder
+     */
+    public static <T> void write(File file, byte type, boolean compress, List<T> records,
+                                 RecordWriter<T> writer) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            write(fileOut, type, compress, records, writer);
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Encode records in the file format, e.g. to keep them inside another file
+     *
+     * @param type     record type
+     * @param compress true to deflate the body
+     * @param records  records in order
+     * @param writer   record encoder
+     * @return header and body
+     */
+    public static <T> byte[] toBytes(byte type, boolean compress, List<T> records,
+                                     RecordWriter<T> writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes, type, compress, records, writer);
+        return bytes.toByteArray();
+    }
+
+    private static <T> void write(OutputStream fileOut, byte type, boolean compress, List<T> records,
+                                  RecordWriter<T> writer) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(recordBytes);
+        for (T record : records) {
+            recordBytes.reset();
+            writer.write(record, recordOut);
+            recordOut.flush();
+            bodyOut.writeInt(recordBytes.size());
+            recordBytes.writeTo(bodyOut);
+        }
+        bodyOut.flush();
+
+        DataOutputStream header = new DataOutputStream(fileOut);
+        header.writeInt(MAGIC);
+        header.writeShort(FORMAT_VERSION);
+        header.writeByte(type);
+        header.writeByte(compress ? FLAG_DEFLATE : 0);
+        header.writeInt(records.size());
+        header.writeLong(body.size());
+        header.flush();
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream deflated = new DeflaterOutputStream(fileOut, deflater, 64 * 1024);
+                body.writeTo(deflated);
+                deflated.finish();
+            } finally {
+                deflater.end();
+            }
+        } else {
+            body.writeTo(fileOut);
+        }
+    }
+
+    /**
+     * Read the records of a file
+     *
+     * @param file   source file
+     * @param type   expected record type
+     * @param reader record decoder
+     * @return records in order
+     * @throws IOException if the file is not in this format, has another record
+     *                     type, a newer version or is cut short
+     */
+    public static <T> List<T> read(File file, byte type, RecordReader<T> reader) throws IOException {
+        Records records = records(map(file), type, file.toString());
+        List<T> decoded = new ArrayList<>(records.getRecords().size());
+        try {
+            for (ByteBuffer record : records.getRecords()) {
+                decoded.add(reader.read(record, records.getVersion()));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(file + " is corrupt: " + e, e);
+        }
+        return decoded;
+    }
+
+    /**
+     * Map a whole file read-only. The buffer stays valid after the file is
+     * replaced by a newer one.
+     *
+     * @param file the file
+     * @return the file contents
+     */
+    public static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Split encoded records without decoding them
+     *
+     * @param encoded header and body, e.g. a mapped file
+     * @param type    expected record type
+     * @param source  name of where the records come from, for the errors
+     * @return format version and one buffer per record
+     * @throws IOException if the records are not in this format, have another
+     *                     record type, a newer version or are cut short
+     */
+    public static Records records(ByteBuffer encoded, byte type, String source) throws IOException {
+        try {
+            ByteBuffer in = encoded.duplicate();
+            if (in.remaining() < HEADER_SIZE) {
+                throw new IOException(source + " is too short");
+            }
+            if (in.getInt() != MAGIC) {
+                throw new IOException(source + " is not a binary database file");
+            }
+            int version = in.getShort();
+            if (version > FORMAT_VERSION) {
+                throw new IOException(source + " has format version " + version + ", newer than " + FORMAT_VERSION);
+            }
+            byte fileType = in.get();
+            if (fileType != type) {
+                throw new IOException(source + " holds record type " + fileType + ", not " + type);
+            }
+            byte flags = in.get();
+            int count = in.getInt();
+            long bodyLength = in.getLong();
+
+            ByteBuffer body = in.slice();
+            if ((flags & FLAG_DEFLATE) != 0) {
+                body = inflate(body, bodyLength);
+            }
+            List<ByteBuffer> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = body.getInt();
+                ByteBuffer record = body.slice();
+                record.limit(length);
+                records.add(record);
+                body.position(body.position() + length);
+            }
+            return new Records(version, records);
+        } catch (RuntimeException e) {
+            // a short or corrupt body
+            throw new IOException(source + " is corrupt: " + e, e);
+        }
+    }
+
+    /**
+     * Records split from their file, not decoded yet
+     */
+    public static final class Records {
+        private final int version;
+        private final List<ByteBuffer> records;
+
+        Records(int version, List<ByteBuffer> records) {
+            this.version = version;
+            this.records = records;
+        }
+
+        /**
+         * @return format version the records were written with
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * @return one buffer per record, positioned at its first byte and limited to its length
+         */
+        public List<ByteBuffer> getRecords() {
+            return records;
+        }
+    }
+
+    private static ByteBuffer inflate(ByteBuffer compressed, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Body of " + length + " bytes is too large");
+        }
+        ByteBuffer body = ByteBuffer.allocate((int) length);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            while (body.hasRemaining()) {
+                if (inflater.inflate(body) == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Body is cut short");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Body is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        body.flip();
+        return body;
+    }
+
+    /**
+     * Write a string that may be null as its UTF-8 length and bytes
+     */
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString
+     */
+    public static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a list of strings that may be null
+     */
+    public static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Read a list of strings written by writeStrings
+     */
+    public static List<String> readStrings(ByteBuffer in) {
+        int size = in.getInt();
+        if (size < 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+}
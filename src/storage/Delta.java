@@ -0,0 +1,194 @@
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary delta between two versions of a content, as copies of ranges of the
+ * old version and inserted bytes. Its size grows with the change, not with
+ * the content.
+ *
+ * Layout: length of the new version (varint), then operations until the end:
+ * COPY (byte 0), offset (varint), length (varint); or
+ * INSERT (byte 1), length (varint), bytes.
+ *
+ * Matches are found on blocks of the old version: every aligned block is
+ * indexed by its hash, and a rolling hash over the new version looks them up
+ * and extends each hit in both directions.
+ */
+public final class Delta {
+
+    private static final int COPY = 0;
+    private static final int INSERT = 1;
+    private static final int BLOCK = 16;
+    private static final int BASE = 31;
+    // BASE^(BLOCK - 1), to roll the oldest byte out of the hash
+    private static final int TOP_POWER = power(BASE, BLOCK - 1);
+
+    private Delta() {
+    }
+
+    /**
+     * @param from old version
+     * @param to   new version
+     * @return delta that turns the old version into the new one
+     */
+    public static byte[] encode(byte[] from, byte[] to) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, to.length);
+
+        int prefix = 0;
+        int maxPrefix = Math.min(from.length, to.length);
+        while (prefix < maxPrefix && from[prefix] == to[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        int maxSuffix = Math.min(from.length, to.length) - prefix;
+        while (suffix < maxSuffix && from[from.length - 1 - suffix] == to[to.length - 1 - suffix]) {
+            suffix++;
+        }
+        if (prefix > 0) {
+            writeCopy(out, 0, prefix);
+        }
+
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int offset = 0; offset + BLOCK <= from.length; offset += BLOCK) {
+            blocks.putIfAbsent(hash(from, offset), offset);
+        }
+        int end = to.length - suffix;
+        int pos = prefix;
+        int literal = pos;
+        int h = pos + BLOCK <= end ? hash(to, pos) : 0;
+        while (pos + BLOCK <= end) {
+            Integer candidate = blocks.get(h);
+            if (candidate != null && matches(from, candidate, to, pos, BLOCK)) {
+                int source = candidate;
+                int target = pos;
+                while (target > literal && source > 0 && from[source - 1] == to[target - 1]) {
+                    source--;
+                    target--;
+                }
+                int length = pos - target + BLOCK;
+                while (source + length < from.length && target + length < end
+                        && from[source + length] == to[target + length]) {
+                    length++;
+                }
+                writeInsert(out, to, literal, target - literal);
+                writeCopy(out, source, length);
+                pos = target + length;
+                literal = pos;
+                if (pos + BLOCK <= end) {
+                    h = hash(to, pos);
+                }
+                continue;
+            }
+            if (pos + BLOCK < end) {
+                h = (h - (to[pos] & 0xFF) * TOP_POWER) * BASE + (to[pos + BLOCK] & 0xFF);
+            }
+            pos++;
+        }
+        writeInsert(out, to, literal, end - literal);
+        if (suffix > 0) {
+            writeCopy(out, from.length - suffix, suffix);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param from  old version
+     * @param delta delta made by encode
+     * @return the new version
+     * @throws IOException if the delta is damaged or does not fit the old version
+     */
+    public static byte[] apply(byte[] from, byte[] delta) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(delta);
+            byte[] to = new byte[readVarint(in)];
+            int pos = 0;
+            while (in.hasRemaining()) {
+                int op = in.get();
+                if (op == COPY) {
+                    int offset = readVarint(in);
+                    int length = readVarint(in);
+                    System.arraycopy(from, offset, to, pos, length);
+                    pos += length;
+                } else if (op == INSERT) {
+                    int length = readVarint(in);
+                    in.get(to, pos, length);
+                    pos += length;
+                } else {
+                    throw new IOException("Unknown delta operation " + op);
+                }
+            }
+            if (pos != to.length) {
+                throw new IOException("Delta is cut short");
+            }
+            return to;
+        } catch (RuntimeException e) {
+            throw new IOException("Delta is damaged: " + e, e);
+        }
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, int offset, int length) {
+        out.write(COPY);
+        writeVarint(out, offset);
+        writeVarint(out, length);
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        out.write(INSERT);
+        writeVarint(out, length);
+        out.write(bytes, offset, length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            h = h * BASE + (bytes[i] & 0xFF);
+        }
+        return h;
+    }
+
+    private static boolean matches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+}
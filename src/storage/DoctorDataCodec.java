@@ -0,0 +1,78 @@
+package storage;
+
+import doctor_database.Doctor;
+import doctor_database.DoctorData;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary codec of the doctor database.
+ *
+ * Doctor record, version 1: name, password hash, notifications, then the number
+ * of notifications pushed so far. Records written before that number end after
+ * the notifications and count only the unread ones as pushed.
+ */
+public final class DoctorDataCodec {
+
+    private DoctorDataCodec() {
+    }
+
+    /**
+     * Write the doctor database to a file
+     *
+     * @param doctorData doctor database
+     * @param file       target file
+     * @param compress   true to deflate the records
+     */
+    public static void write(DoctorData doctorData, File file, boolean compress) throws IOException {
+        List<Doctor> doctors = new ArrayList<>(doctorData.getDoctors());
+        BinaryCodec.write(file, BinaryCodec.TYPE_DOCTORS, compress, doctors, DoctorDataCodec::writeDoctor);
+    }
+
+    /**
+     * Read the doctor database from a file
+     *
+     * @param file source file
+     * @return doctor database
+     */
+    public static DoctorData read(File file) throws IOException {
+        DoctorData doctorData = new DoctorData();
+        doctorData.setDoctors(BinaryCodec.read(file, BinaryCodec.TYPE_DOCTORS, (in, version) -> readDoctor(in)));
+        return doctorData;
+    }
+
+    /**
+     * Encode a doctor
+     */
+    static void writeDoctor(Doctor doctor, DataOutputStream out) throws IOException {
+        BinaryCodec.writeString(out, doctor.getDoctorName());
+        BinaryCodec.writeString(out, doctor.getPassword());
+        List<String> notifications = doctor.getNotifications();
+        if (notifications == null) {
+            BinaryCodec.writeStrings(out, null);
+            out.writeLong(doctor.getPushedNotifications());
+        } else {
+            synchronized (notifications) {
+                BinaryCodec.writeStrings(out, notifications);
+                out.writeLong(doctor.getPushedNotifications());
+            }
+        }
+    }
+
+    /**
+     * Decode a doctor written by writeDoctor
+     */
+    static Doctor readDoctor(ByteBuffer in) {
+        Doctor doctor = new Doctor(BinaryCodec.readString(in));
+        doctor.setPassword(BinaryCodec.readString(in));
+        List<String> notifications = BinaryCodec.readStrings(in);
+        doctor.setNotifications(notifications == null ? new ArrayList<>() : notifications);
+        doctor.setPushedNotifications(in.remaining() >= 8 ? in.getLong() : doctor.getNotifications().size());
+        return doctor;
+    }
+}
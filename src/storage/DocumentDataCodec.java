@@ -0,0 +1,203 @@
+package storage;
+
+import doctor_database.Doctor;
+import document_database.DocumentData;
+import document_database.PatientFile;
+import document_database.Section;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary codec of the document database.
+ *
+ * Patient file record, version 1: patient name, creator, authors, sections,
+ * then the newest version of each section. Records written before the
+ * section versions end after the sections, and their sections are at
+ * version 0. A doctor is stored by name only, since patient files compare
+ * doctors by name and the doctor database holds the rest; a section as its
+ * path and its occupant. The doctors of one file are read back as one object per name, as
+ * the serialized graph shared them.
+ *
+ * A database read lazily only reads the patient name at the start of each
+ * record and decodes the rest of a record when its file is first used.
+ */
+public final class DocumentDataCodec {
+
+    private DocumentDataCodec() {
+    }
+
+    /**
+     * Write the document database to a file
+     *
+     * @param documentData document database
+     * @param file         target file
+     * @param compress     true to deflate the records
+     */
+    public static void write(DocumentData documentData, File file, boolean compress) throws IOException {
+        BinaryCodec.write(file, BinaryCodec.TYPE_DOCUMENTS, compress, records(documentData),
+                DocumentDataCodec::writeRecord);
+    }
+
+    /**
+     * Encode the document database, e.g. to keep it inside a snapshot
+     *
+     * @param documentData document database
+     * @param compress     true to deflate the records
+     * @return encoded database
+     */
+    public static byte[] toBytes(DocumentData documentData, boolean compress) throws IOException {
+        return BinaryCodec.toBytes(BinaryCodec.TYPE_DOCUMENTS, compress, records(documentData),
+                DocumentDataCodec::writeRecord);
+    }
+
+    // decoded patient files, then the records of the ones never decoded, copied as they are
+    private static List<Object> records(DocumentData documentData) {
+        List<Object> records;
+        synchronized (documentData.getLoadedDocuments()) {
+            records = new ArrayList<>(documentData.getLoadedDocuments());
+            records.addAll(documentData.getUnloaded().values());
+        }
+        return records;
+    }
+
+    private static void writeRecord(Object record, DataOutputStream out) throws IOException {
+        if (record instanceof PatientFile) {
+            writePatientFile((PatientFile) record, out);
+        } else {
+            ByteBuffer encoded = ((ByteBuffer) record).duplicate();
+            byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read the document database from a file
+     *
+     * @param file source file
+     * @return document database
+     */
+    public static DocumentData read(File file) throws IOException {
+        Map<String, Doctor> doctors = new HashMap<>();
+        DocumentData documentData = new DocumentData();
+        documentData.setDocuments(BinaryCodec.read(file, BinaryCodec.TYPE_DOCUMENTS,
+                (in, version) -> readPatientFile(in, doctors)));
+        return documentData;
+    }
+
+    /**
+     * Read the document database from a file, decoding each patient file on
+     * first use. The file is mapped, so it may be replaced but not changed
+     * in place while the database is in use.
+     *
+     * @param file source file
+     * @return document database
+     */
+    public static DocumentData readLazily(File file) throws IOException {
+        return readLazily(BinaryCodec.map(file), file.toString());
+    }
+
+    /**
+     * Read an encoded document database, decoding each patient file on first use
+     *
+     * @param encoded encoded database, not changed afterwards
+     * @param source  name of where the database comes from, for the errors
+     * @return document database
+     */
+    public static DocumentData readLazily(ByteBuffer encoded, String source) throws IOException {
+        BinaryCodec.Records records = BinaryCodec.records(encoded, BinaryCodec.TYPE_DOCUMENTS, source);
+        Map<String, ByteBuffer> index = new LinkedHashMap<>(records.getRecords().size() * 4 / 3 + 1);
+        try {
+            for (ByteBuffer record : records.getRecords()) {
+                index.put(BinaryCodec.readString(record.duplicate()), record);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(source + " is corrupt: " + e, e);
+        }
+        // shared by copies of the database, which decode on their own
+        Map<String, Doctor> doctors = new ConcurrentHashMap<>();
+        DocumentData documentData = new DocumentData();
+        documentData.setUnloaded(index, record -> {
+            try {
+                return readPatientFile(record, doctors);
+            } catch (RuntimeException e) {
+                throw new IOException(source + " is corrupt: " + e, e);
+            }
+        });
+        return documentData;
+    }
+
+    private static void writePatientFile(PatientFile patientFile, DataOutputStream out) throws IOException {
+        BinaryCodec.writeString(out, patientFile.getPatientName());
+        writeDoctor(patientFile.getCreator(), out);
+
+        List<Doctor> authors;
+        synchronized (patientFile.getAuthors()) {
+            authors = new ArrayList<>(patientFile.getAuthors());
+        }
+        out.writeInt(authors.size());
+        for (Doctor author : authors) {
+            writeDoctor(author, out);
+        }
+
+        List<Section> sections = patientFile.getSections();
+        out.writeInt(sections.size());
+        for (Section section : sections) {
+            BinaryCodec.writeString(out, section.getPath());
+            writeDoctor(section.getOccupant(), out);
+        }
+        for (Section section : sections) {
+            out.writeInt(section.getVersion());
+        }
+    }
+
+    private static PatientFile readPatientFile(ByteBuffer in, Map<String, Doctor> doctors) {
+        String patientName = BinaryCodec.readString(in);
+        Doctor creator = readDoctor(in, doctors);
+
+        int authorCount = in.getInt();
+        List<Doctor> authors = new ArrayList<>(authorCount);
+        for (int i = 0; i < authorCount; i++) {
+            authors.add(readDoctor(in, doctors));
+        }
+
+        int sectionCount = in.getInt();
+        List<Section> sections = new ArrayList<>(sectionCount);
+        for (int i = 0; i < sectionCount; i++) {
+            Section section = new Section("", "");
+            section.setPath(BinaryCodec.readString(in));
+            Doctor occupant = readDoctor(in, doctors);
+            if (occupant != null) {
+                section.occupy(occupant);
+            }
+            sections.add(section);
+        }
+        if (in.remaining() >= 4 * sectionCount) {
+            for (Section section : sections) {
+                section.setVersion(in.getInt());
+            }
+        }
+
+        PatientFile patientFile = new PatientFile(patientName, creator, sections);
+        patientFile.setAuthors(authors);
+        return patientFile;
+    }
+
+    private static void writeDoctor(Doctor doctor, DataOutputStream out) throws IOException {
+        BinaryCodec.writeString(out, doctor == null ? null : doctor.getDoctorName());
+    }
+
+    private static Doctor readDoctor(ByteBuffer in, Map<String, Doctor> doctors) {
+        String name = BinaryCodec.readString(in);
+        return name == null ? null : doctors.computeIfAbsent(name, Doctor::new);
+    }
+}
@@ -0,0 +1,66 @@
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One file per section in a directory per patient file, the layout the
+ * servers always had.
+ */
+public class FileSectionStore implements SectionStore {
+
+    @Override
+    public void create(String path) throws IOException {
+        File file = new File(path);
+        File document = file.getParentFile();
+        if (document != null && !document.isDirectory() && !document.mkdirs()) {
+            throw new IOException("Unable to create document " + document);
+        }
+        file.createNewFile();
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return new File(path).isFile();
+    }
+
+    @Override
+    public InputStream read(String path) throws IOException {
+        if (!exists(path)) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        return Channels.newInputStream(fileChannel);
+    }
+
+    @Override
+    public byte[] readBytes(String path) throws IOException {
+        return exists(path) ? Files.readAllBytes(Paths.get(path)) : null;
+    }
+
+    @Override
+    public void write(String path, byte[] content) throws IOException {
+        create(path);
+        FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try (OutputStream stream = Channels.newOutputStream(fileChannel)) {
+            stream.write(content);
+        }
+    }
+
+    @Override
+    public void clear() {
+        // the files go with the data directory
+    }
+
+    @Override
+    public void close() {
+    }
+}
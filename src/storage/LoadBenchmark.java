@@ -0,0 +1,111 @@
+package storage;
+
+import doctor_database.Doctor;
+import doctor_database.DoctorData;
+import document_database.DocumentData;
+import document_database.PatientFile;
+import document_database.Section;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the size and load time of the database files written with Java
+ * serialization and with the binary codec, plain and deflated.
+ *
+ * Usage: LoadBenchmark [doctors] [patients] [sectionsPerFile] [rounds]
+ */
+public class LoadBenchmark {
+
+    public static Logger Log = LogManager.getLogger(LoadBenchmark.class);
+
+    private interface Loader {
+        Object load(File file) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int doctorCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int patientCount = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        int sectionsPerFile = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        DoctorData doctorData = new DoctorData();
+        List<Doctor> doctors = new ArrayList<>();
+        for (int i = 0; i < doctorCount; i++) {
+            Doctor doctor = doctorData.addNewDoctor("doctor" + i, "password" + i);
+            doctor.pushNewNotification("patient" + i);
+            doctors.add(doctor);
+        }
+        DocumentData documentData = new DocumentData();
+        for (int i = 0; i < patientCount; i++) {
+            String dir = "./server_data_19001/patient" + i;
+            List<Section> sections = new ArrayList<>();
+            for (int j = 0; j < sectionsPerFile; j++) {
+                sections.add(new Section(dir, String.valueOf(j)));
+            }
+            PatientFile patientFile = new PatientFile("patient" + i, doctors.get(i % doctorCount), sections);
+            patientFile.addAuthor(doctors.get((i + 1) % doctorCount));
+            documentData.getDocuments().add(patientFile);
+        }
+
+        File dir = Files.createTempDirectory("emr-load-benchmark").toFile();
+        File serializedDoctors = new File(dir, "DoctorDB.ser");
+        File serializedDocuments = new File(dir, "DocDB.ser");
+        File binaryDoctors = new File(dir, "DoctorDB.dat");
+        File binaryDocuments = new File(dir, "DocDB.dat");
+        File deflatedDoctors = new File(dir, "DoctorDB.deflate.dat");
+        File deflatedDocuments = new File(dir, "DocDB.deflate.dat");
+        serialize(doctorData, serializedDoctors);
+        serialize(documentData, serializedDocuments);
+        DoctorDataCodec.write(doctorData, binaryDoctors, false);
+        DocumentDataCodec.write(documentData, binaryDocuments, false);
+        DoctorDataCodec.write(doctorData, deflatedDoctors, true);
+        DocumentDataCodec.write(documentData, deflatedDocuments, true);
+
+        Loader deserialize = file -> {
+            try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(file))) {
+                return input.readObject();
+            }
+        };
+        Log.info(doctorCount + " doctors, " + patientCount + " patient files with " + sectionsPerFile + " sections");
+        report("serialized", serializedDoctors, serializedDocuments, deserialize, deserialize, rounds);
+        report("binary", binaryDoctors, binaryDocuments, DoctorDataCodec::read, DocumentDataCodec::read, rounds);
+        report("binary+deflate", deflatedDoctors, deflatedDocuments, DoctorDataCodec::read, DocumentDataCodec::read, rounds);
+
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static void serialize(Object database, File file) throws IOException {
+        try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(file))) {
+            output.writeObject(database);
+        }
+    }
+
+    /**
+     * Load both files a few times and log the best time
+     */
+    private static void report(String name, File doctors, File documents, Loader doctorLoader,
+                               Loader documentLoader, int rounds) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            doctorLoader.load(doctors);
+            documentLoader.load(documents);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        Log.info(String.format("%-15s %,12d bytes, load %,8.1f ms", name, doctors.length() + documents.length(),
+                best / 1e6));
+    }
+}
@@ -0,0 +1,97 @@
+package storage;
+
+import doctor_database.DoctorData;
+import document_database.DocumentData;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts the serialized DoctorDB.dat and DocDB.dat of server data
+ * directories to the binary format. The old file is kept next to the new one
+ * with the suffix ".ser". Files already in the binary format are left alone.
+ *
+ * Usage: MigrateDatabase [-compress] [dataDir ...]
+ * Without directories every ./server_data_* directory is converted.
+ */
+public class MigrateDatabase {
+
+    private static final String USER_DB_NAME = "DoctorDB.dat";
+    private static final String DOC_DB_NAME = "DocDB.dat";
+
+    public static Logger Log = LogManager.getLogger(MigrateDatabase.class);
+
+    public static void main(String[] args) {
+        boolean compress = false;
+        List<File> dirs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("-compress")) {
+                compress = true;
+            } else {
+                dirs.add(new File(arg));
+            }
+        }
+        if (dirs.isEmpty()) {
+            File[] found = new File(".").listFiles(f -> f.isDirectory() && f.getName().startsWith("server_data_"));
+            if (found != null) {
+                for (File dir : found) {
+                    dirs.add(dir);
+                }
+            }
+        }
+
+        int failed = 0;
+        for (File dir : dirs) {
+            try {
+                migrate(new File(dir, USER_DB_NAME), compress);
+                migrate(new File(dir, DOC_DB_NAME), compress);
+            } catch (IOException | ClassNotFoundException e) {
+                e.printStackTrace();
+                Log.error("Migration of " + dir + " failed: " + e.getMessage());
+                failed++;
+            }
+        }
+        Log.info("Migrated " + (dirs.size() - failed) + " of " + dirs.size() + " data directories.");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Convert one serialized database file
+     *
+     * @param file     the file
+     * @param compress true to deflate the records
+     */
+    private static void migrate(File file, boolean compress) throws IOException, ClassNotFoundException {
+        if (!file.exists()) {
+            return;
+        }
+        if (BinaryCodec.isBinary(file)) {
+            Log.info(file + " is already in the binary format.");
+            return;
+        }
+        long before = file.length();
+        Object database;
+        try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(file))) {
+            database = input.readObject();
+        }
+        Files.copy(file.toPath(), new File(file.getPath() + ".ser").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (database instanceof DoctorData) {
+            DoctorDataCodec.write((DoctorData) database, file, compress);
+        } else if (database instanceof DocumentData) {
+            DocumentDataCodec.write((DocumentData) database, file, compress);
+        } else {
+            throw new IOException(file + " holds an unknown " + database.getClass().getName());
+        }
+        Log.info(file + ": " + before + " -> " + file.length() + " bytes");
+    }
+}
@@ -0,0 +1,265 @@
+package storage;
+
+import compression.Codecs;
+import compression.CompressedBytes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every version of the sections, kept in a section store. Version 0 is the
+ * content a section was created with, under the path of the section. Each
+ * later version is a record under versionPath: every keyframeEvery versions,
+ * or when a delta would not be smaller, a keyframe with the whole content;
+ * otherwise a delta against the version before it. Reading a version applies
+ * the deltas since the keyframe at or before it.
+ *
+ * Record layout: kind (byte), payload. With the COMPRESSED bit in the kind,
+ * the payload is the codec id (byte), its length before compression (int)
+ * and the compressed payload, so each record names its own codec and
+ * records written with different codecs can follow each other.
+ *
+ * The newest version of recently used sections is kept in memory, so a save
+ * encodes its delta without reading the chain, and what it writes grows with
+ * the change rather than the section.
+ */
+public class SectionHistory {
+
+    private static final byte KEYFRAME = 0;
+    private static final byte DELTA = 1;
+    private static final byte COMPRESSED = 0x10;
+    // larger line diffs only list the removed and the added lines
+    private static final long MAX_DIFF_CELLS = 4_000_000;
+
+    private final SectionStore store;
+    private final int keyframeEvery;
+    // path -> newest version read or written, least recently used first
+    private final Map<String, Version> latest;
+
+    /**
+     * Constructor
+     *
+     * @param store          where the versions are kept
+     * @param keyframeEvery  every how many versions the whole content is stored
+     * @param cachedSections number of sections whose newest version is kept in memory
+     */
+    public SectionHistory(SectionStore store, int keyframeEvery, int cachedSections) {
+        this.store = store;
+        this.keyframeEvery = Math.max(1, keyframeEvery);
+        this.latest = new LinkedHashMap<String, Version>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Version> eldest) {
+                return size() > cachedSections;
+            }
+        };
+    }
+
+    /**
+     * @param path    path of a section
+     * @param version version of the section, from 1
+     * @return key of the version record in the section store
+     */
+    public static String versionPath(String path, int version) {
+        return path + ".v" + version;
+    }
+
+    /**
+     * Read a version of a section
+     *
+     * @param path    path of the section
+     * @param version version, 0 for the content it was created with
+     * @return content of the version
+     * @throws IOException if the version or one it is based on is missing or damaged
+     */
+    public byte[] read(String path, int version) throws IOException {
+        if (version < 0) {
+            throw new IOException("No version " + version + " of " + path);
+        }
+        Version cached;
+        synchronized (latest) {
+            cached = latest.get(path);
+        }
+        Deque<byte[]> deltas = new ArrayDeque<>();
+        byte[] content = null;
+        for (int v = version; v > 0 && content == null; v--) {
+            if (cached != null && cached.number == v) {
+                content = cached.content;
+                break;
+            }
+            byte[] record = store.readBytes(versionPath(path, v));
+            if (record == null || record.length == 0) {
+                throw new IOException("Version " + v + " of " + path + " is missing");
+            }
+            byte[] payload = payload(record);
+            if ((record[0] & ~COMPRESSED) == KEYFRAME) {
+                content = payload;
+            } else {
+                deltas.push(payload);
+            }
+        }
+        if (content == null) {
+            byte[] base = store.readBytes(path);
+            content = base == null ? new byte[0] : base;
+        }
+        while (!deltas.isEmpty()) {
+            content = Delta.apply(content, deltas.pop());
+        }
+        return content;
+    }
+
+    /**
+     * Store the next version of a section
+     *
+     * @param path    path of the section
+     * @param version the new version, one after the newest stored
+     * @param content content of the new version
+     */
+    public void write(String path, int version, byte[] content) throws IOException {
+        byte[] record = null;
+        if (version % keyframeEvery != 0) {
+            byte[] delta = Delta.encode(read(path, version - 1), content);
+            if (delta.length < content.length) {
+                record = frame(DELTA, delta);
+            }
+        }
+        if (record == null) {
+            record = frame(KEYFRAME, content);
+        }
+        store.write(versionPath(path, version), record);
+        synchronized (latest) {
+            latest.put(path, new Version(version, content));
+        }
+    }
+
+    /**
+     * Compare two versions of a section line by line
+     *
+     * @param path path of the section
+     * @param from older version
+     * @param to   newer version
+     * @return the lines of the newer version, unchanged ones prefixed with "  ",
+     * with the removed lines prefixed with "- " and the added ones with "+ "
+     */
+    public List<String> diff(String path, int from, int to) throws IOException {
+        return diffLines(lines(read(path, from)), lines(read(path, to)));
+    }
+
+    /**
+     * Forget the cached versions, e.g. after the store was cleared
+     */
+    public void clear() {
+        synchronized (latest) {
+            latest.clear();
+        }
+    }
+
+    private static byte[] frame(byte kind, byte[] payload) {
+        CompressedBytes compressed = Codecs.compress(payload);
+        if (compressed.getCodec() == Codecs.NONE) {
+            byte[] record = new byte[payload.length + 1];
+            record[0] = kind;
+            System.arraycopy(payload, 0, record, 1, payload.length);
+            return record;
+        }
+        byte[] data = compressed.getData();
+        return ByteBuffer.allocate(data.length + 6).put((byte) (kind | COMPRESSED)).put(compressed.getCodec())
+                .putInt(payload.length).put(data).array();
+    }
+
+    private static byte[] payload(byte[] record) throws IOException {
+        if ((record[0] & COMPRESSED) == 0) {
+            return Arrays.copyOfRange(record, 1, record.length);
+        }
+        if (record.length < 6) {
+            throw new IOException("Compressed section record is cut short");
+        }
+        ByteBuffer in = ByteBuffer.wrap(record);
+        in.get();
+        byte codec = in.get();
+        int rawLength = in.getInt();
+        return Codecs.decompress(codec, Arrays.copyOfRange(record, 6, record.length), rawLength);
+    }
+
+    private static String[] lines(byte[] content) {
+        if (content.length == 0) {
+            return new String[0];
+        }
+        return new String(content, StandardCharsets.UTF_8).split("\r?\n", -1);
+    }
+
+    private static List<String> diffLines(String[] a, String[] b) {
+        int prefix = 0;
+        while (prefix < a.length && prefix < b.length && a[prefix].equals(b[prefix])) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < a.length - prefix && suffix < b.length - prefix
+                && a[a.length - 1 - suffix].equals(b[b.length - 1 - suffix])) {
+            suffix++;
+        }
+        List<String> diff = new ArrayList<>();
+        for (int i = 0; i < prefix; i++) {
+            diff.add("  " + a[i]);
+        }
+        int n = a.length - prefix - suffix;
+        int m = b.length - prefix - suffix;
+        if ((long) n * m > MAX_DIFF_CELLS) {
+            for (int i = 0; i < n; i++) {
+                diff.add("- " + a[prefix + i]);
+            }
+            for (int j = 0; j < m; j++) {
+                diff.add("+ " + b[prefix + j]);
+            }
+        } else {
+            // longest common subsequence of the changed middle, from the end
+            int[][] common = new int[n + 1][m + 1];
+            for (int i = n - 1; i >= 0; i--) {
+                for (int j = m - 1; j >= 0; j--) {
+                    common[i][j] = a[prefix + i].equals(b[prefix + j])
+                            ? common[i + 1][j + 1] + 1
+                            : Math.max(common[i + 1][j], common[i][j + 1]);
+                }
+            }
+            int i = 0;
+            int j = 0;
+            while (i < n || j < m) {
+                if (i < n && j < m && a[prefix + i].equals(b[prefix + j])) {
+                    diff.add("  " + a[prefix + i]);
+                    i++;
+                    j++;
+                } else if (i < n && (j == m || common[i + 1][j] >= common[i][j + 1])) {
+                    diff.add("- " + a[prefix + i]);
+                    i++;
+                } else {
+                    diff.add("+ " + b[prefix + j]);
+                    j++;
+                }
+            }
+        }
+        for (int i = a.length - suffix; i < a.length; i++) {
+            diff.add("  " + a[i]);
+        }
+        return diff;
+    }
+
+    /**
+     * One version of a section
+     */
+    private static final class Version {
+        final int number;
+        final byte[] content;
+
+        Version(int number, byte[] content) {
+            this.number = number;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where the content of the sections of the patient files is kept. A section
+ * is identified by its path under the data directory of the server, whether
+ * the store keeps it in a file of that name or not.
+ */
+public interface SectionStore {
+
+    /**
+     * Create an empty section
+     *
+     * @param path path of the section
+     */
+    void create(String path) throws IOException;
+
+    /**
+     * @param path path of the section
+     * @return true if the section was created or written
+     */
+    boolean exists(String path);
+
+    /**
+     * @param path path of the section
+     * @return stream over the content of the section, empty if it has none
+     */
+    InputStream read(String path) throws IOException;
+
+    /**
+     * @param path path of the section
+     * @return content of the section, null if it does not exist
+     */
+    byte[] readBytes(String path) throws IOException;
+
+    /**
+     * Replace the content of a section
+     *
+     * @param path    path of the section
+     * @param content new content
+     */
+    void write(String path, byte[] content) throws IOException;
+
+    /**
+     * Drop every section, e.g. after the data directory was deleted
+     */
+    void clear() throws IOException;
+
+    /**
+     * Write out what is buffered and release the files
+     */
+    void close();
+}
@@ -0,0 +1,497 @@
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Log-structured store that packs the sections into a few large append-only
+ * segment files instead of a file per section. Every write appends a record
+ * to the newest segment and points an in-memory index at it; the record it
+ * replaces becomes garbage. A full segment is sealed and from then on read
+ * through a memory-mapped buffer. In the background, a sealed segment that is
+ * mostly garbage is compacted: its live records are appended again and the
+ * file is deleted.
+ *
+ * Segment layout: magic "EMRS" (int), version (int), then records of
+ * path length (int), content length (int), CRC32C of path and content (int),
+ * UTF-8 path, content. The index is rebuilt on open by reading the segments
+ * oldest first, so the newest record of a path wins. Reading stops at the
+ * first record that is cut short or fails its checksum, and the newest
+ * segment is truncated there.
+ *
+ * Sections that are not in the store yet are read from their file, so a data
+ * directory written with one file per section can be opened with this store.
+ */
+public class SegmentSectionStore implements SectionStore {
+
+    private static final int MAGIC = 0x454D5253;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // path length, content length, checksum
+    private static final int RECORD_HEADER_SIZE = 12;
+    // a sealed segment is compacted once this share of it is garbage
+    private static final double COMPACT_GARBAGE_RATIO = 0.5;
+
+    // compacts the stores of every server in the background
+    private static final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "section-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final File dir;
+    private final long segmentBytes;
+    private final long compactIntervalMs;
+    // path -> newest record of the section
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    // sealed segments, oldest first
+    private final List<Segment> sealed = new CopyOnWriteArrayList<>();
+    // segment appended to, guarded by this
+    private Segment active;
+    private boolean closed = false;
+    private ScheduledFuture<?> compaction;
+
+    public static Logger Log = LogManager.getLogger(SegmentSectionStore.class);
+
+    /**
+     * Open the store in a directory, creating it if needed
+     *
+     * @param dir               directory of the segment files
+     * @param segmentBytes      size at which a segment is sealed
+     * @param compactIntervalMs how often sealed segments are checked for compaction
+     */
+    public SegmentSectionStore(String dir, long segmentBytes, long compactIntervalMs) throws IOException {
+        this.dir = new File(dir);
+        this.segmentBytes = Math.min(segmentBytes, Integer.MAX_VALUE);
+        this.compactIntervalMs = compactIntervalMs;
+        open();
+    }
+
+    @Override
+    public void create(String path) throws IOException {
+        write(path, new byte[0]);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return index.containsKey(path) || new File(path).isFile();
+    }
+
+    @Override
+    public InputStream read(String path) throws IOException {
+        ByteBuffer content = find(path);
+        if (content != null) {
+            return new ByteBufferInputStream(content);
+        }
+        File file = new File(path);
+        return file.isFile() ? new FileInputStream(file) : new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public byte[] readBytes(String path) throws IOException {
+        ByteBuffer content = find(path);
+        if (content != null) {
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            return bytes;
+        }
+        File file = new File(path);
+        return file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+    }
+
+    private ByteBuffer find(String path) throws IOException {
+        Location location = index.get(path);
+        return location == null ? null : location.segment.read(location.offset, location.length);
+    }
+
+    @Override
+    public void write(String path, byte[] content) throws IOException {
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Section store " + dir + " is closed");
+            }
+            supersede(index.put(path, append(key, content)));
+        }
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        close();
+        for (File segment : getSegmentFiles()) {
+            if (!segment.delete()) {
+                Log.debug("Failed to delete section segment " + segment);
+            }
+        }
+        index.clear();
+        sealed.clear();
+        active = null;
+        open();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        compaction.cancel(false);
+        try {
+            active.channel.force(false);
+            active.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.debug("Section segment " + active.file + " not closed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return number of segment files
+     */
+    public int getSegmentCount() {
+        return sealed.size() + 1;
+    }
+
+    private synchronized void open() throws IOException {
+        dir.mkdirs();
+        List<File> files = getSegmentFiles();
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            Segment segment = new Segment(idOf(file), file,
+                    FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+            long length = segment.channel.size();
+            long valid = length < HEADER_SIZE ? 0
+                    : scan(segment, segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+            if (i < files.size() - 1) {
+                if (valid == 0) {
+                    segment.channel.close();
+                    continue;
+                }
+                // records after a damaged one are never read again
+                segment.size = valid;
+                segment.seal();
+                sealed.add(segment);
+                continue;
+            }
+            if (length > valid) {
+                Log.info("Section segment " + file.getName() + " has a damaged tail of " + (length - valid)
+                        + " bytes, truncated");
+                segment.channel.truncate(valid);
+            }
+            segment.size = valid;
+            if (valid == 0) {
+                writeHeader(segment);
+            }
+            active = segment;
+        }
+        if (active == null) {
+            active = newSegment(1);
+        }
+        closed = false;
+        compaction = compactor.scheduleWithFixedDelay(this::compact, compactIntervalMs, compactIntervalMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Index the records of a segment up to the first damaged one
+     *
+     * @param segment segment file
+     * @param buffer  the whole segment
+     * @return length of the segment up to the end of its last valid record, 0 if it has no valid header
+     */
+    private long scan(Segment segment, ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() > VERSION) {
+            Log.info("Section segment " + segment.file + " has no valid header");
+            return 0;
+        }
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int recordOffset = buffer.position();
+            int keyLength = buffer.getInt();
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (keyLength < 0 || length < 0 || (long) keyLength + length > buffer.remaining()) {
+                buffer.position(recordOffset);
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            buffer.get(key);
+            int contentOffset = buffer.position();
+            ByteBuffer content = buffer.duplicate();
+            content.limit(contentOffset + length);
+            if (checksum(key, content) != crc) {
+                Log.info("Section segment " + segment.file + " record at " + recordOffset + " fails its checksum");
+                buffer.position(recordOffset);
+                break;
+            }
+            buffer.position(contentOffset + length);
+            String path = new String(key, StandardCharsets.UTF_8);
+            supersede(index.put(path, new Location(segment, contentOffset, length, RECORD_HEADER_SIZE + keyLength + length)));
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Append a record to the active segment, sealing it first if the record does not fit
+     *
+     * @return where the content was written
+     */
+    private synchronized Location append(byte[] key, byte[] content) throws IOException {
+        int recordLength = RECORD_HEADER_SIZE + key.length + content.length;
+        if (active.size > HEADER_SIZE && active.size + recordLength > segmentBytes) {
+            active.seal();
+            sealed.add(active);
+            active = newSegment(active.id + 1);
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(key.length).putInt(content.length).putInt(checksum(key, ByteBuffer.wrap(content)));
+        record.put(key).put(content).flip();
+        long offset = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.size += recordLength;
+        return new Location(active, offset + RECORD_HEADER_SIZE + key.length, content.length, recordLength);
+    }
+
+    private void supersede(Location previous) {
+        if (previous != null) {
+            previous.segment.garbage.addAndGet(previous.recordLength);
+        }
+    }
+
+    /**
+     * Compact the sealed segments that are mostly garbage
+     */
+    private void compact() {
+        for (Segment segment : sealed) {
+            if (segment.garbage.get() < (segment.size - HEADER_SIZE) * COMPACT_GARBAGE_RATIO) {
+                continue;
+            }
+            try {
+                compact(segment);
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.debug("Section segment " + segment.file + " not compacted: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Append the live records of a sealed segment again and delete it. A
+     * record is only moved while the index still points at it, so a section
+     * written during the compaction keeps its new content.
+     */
+    private void compact(Segment segment) throws IOException {
+        long start = System.currentTimeMillis();
+        ByteBuffer records = segment.mapped.duplicate();
+        records.position(HEADER_SIZE);
+        int moved = 0;
+        while (records.position() + RECORD_HEADER_SIZE <= segment.size) {
+            int keyLength = records.getInt();
+            int length = records.getInt();
+            records.getInt();
+            byte[] key = new byte[keyLength];
+            records.get(key);
+            int contentOffset = records.position();
+            records.position(contentOffset + length);
+            String path = new String(key, StandardCharsets.UTF_8);
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                Location location = index.get(path);
+                if (location == null || location.segment != segment || location.offset != contentOffset) {
+                    continue;
+                }
+                byte[] content = new byte[length];
+                ByteBuffer source = records.duplicate();
+                source.position(contentOffset);
+                source.get(content);
+                index.put(path, append(key, content));
+                moved++;
+            }
+        }
+        // the moved records must be on the disk before their only other copy is
+        // deleted; segments sealed in the meantime were forced when sealed
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            active.channel.force(false);
+        }
+        sealed.remove(segment);
+        if (!segment.file.delete()) {
+            Log.debug("Failed to delete section segment " + segment.file);
+        }
+        Log.info("Section segment " + segment.file.getName() + " compacted, " + moved + " sections moved in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private Segment newSegment(long id) throws IOException {
+        File file = new File(dir, "segment-" + id + ".dat");
+        Segment segment = new Segment(id, file, FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segment.channel.truncate(0);
+        writeHeader(segment);
+        return segment;
+    }
+
+    private void writeHeader(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            segment.channel.write(header, header.position());
+        }
+        segment.size = HEADER_SIZE;
+    }
+
+    private static int checksum(byte[] key, ByteBuffer content) {
+        CRC32C crc = new CRC32C();
+        crc.update(key, 0, key.length);
+        crc.update(content.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static long idOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring("segment-".length(), name.length() - ".dat".length()));
+    }
+
+    /**
+     * @return segment files, oldest first
+     */
+    private List<File> getSegmentFiles() {
+        List<File> segments = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".dat"));
+        if (files != null) {
+            for (File file : files) {
+                segments.add(file);
+            }
+        }
+        segments.sort((a, b) -> Long.compare(idOf(a), idOf(b)));
+        return segments;
+    }
+
+    /**
+     * Where the newest content of a section is
+     */
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        // bytes of the whole record, counted as garbage once it is replaced
+        final int recordLength;
+
+        Location(Segment segment, long offset, int length, int recordLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    /**
+     * One segment file. The active segment is read with positional reads; once
+     * sealed it is mapped and its channel closed.
+     */
+    private static final class Segment {
+        final long id;
+        final File file;
+        final AtomicLong garbage = new AtomicLong(0);
+        FileChannel channel;
+        volatile MappedByteBuffer mapped;
+        long size;
+
+        Segment(long id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        ByteBuffer read(long offset, int length) throws IOException {
+            MappedByteBuffer buffer = mapped;
+            if (buffer == null) {
+                synchronized (this) {
+                    buffer = mapped;
+                    if (buffer == null) {
+                        ByteBuffer content = ByteBuffer.allocate(length);
+                        while (content.hasRemaining()) {
+                            if (channel.read(content, offset + content.position()) < 0) {
+                                throw new EOFException("Section record in " + file + " is cut short");
+                            }
+                        }
+                        content.flip();
+                        return content;
+                    }
+                }
+            }
+            ByteBuffer content = buffer.duplicate();
+            content.limit((int) offset + length).position((int) offset);
+            return content.slice();
+        }
+
+        synchronized void seal() throws IOException {
+            channel.force(false);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Stream over a buffer, e.g. a section in a mapped segment
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package storage;
+
+import doctor_database.Doctor;
+import document_database.DocumentData;
+import document_database.PatientFile;
+import document_database.Section;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the time from opening the document database to answering the
+ * first request, a lookup of one patient file, as the database grows:
+ * serialized, binary read in full and binary read lazily.
+ *
+ * Usage: StartupBenchmark [maxPatients] [sectionsPerFile] [rounds]
+ */
+public class StartupBenchmark {
+
+    public static Logger Log = LogManager.getLogger(StartupBenchmark.class);
+
+    private interface Loader {
+        DocumentData load(File file) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxPatients = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int sectionsPerFile = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Loader deserialize = file -> {
+            try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(file))) {
+                return (DocumentData) input.readObject();
+            }
+        };
+        File dir = Files.createTempDirectory("emr-startup-benchmark").toFile();
+        for (int patientCount = 1000; patientCount <= maxPatients; patientCount *= 10) {
+            DocumentData documentData = generate(patientCount, sectionsPerFile);
+            File serialized = new File(dir, "DocDB.ser");
+            File binary = new File(dir, "DocDB.dat");
+            try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(serialized))) {
+                output.writeObject(documentData);
+            }
+            DocumentDataCodec.write(documentData, binary, false);
+
+            // the last file in the database, the worst case of a lookup
+            String patient = "patient" + (patientCount - 1);
+            Log.info(patientCount + " patient files with " + sectionsPerFile + " sections");
+            report("serialized", serialized, deserialize, patient, rounds);
+            report("binary", binary, DocumentDataCodec::read, patient, rounds);
+            report("binary lazy", binary, DocumentDataCodec::readLazily, patient, rounds);
+            serialized.delete();
+            binary.delete();
+        }
+        dir.delete();
+    }
+
+    private static DocumentData generate(int patientCount, int sectionsPerFile) {
+        List<Doctor> doctors = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            doctors.add(new Doctor("doctor" + i));
+        }
+        DocumentData documentData = new DocumentData();
+        for (int i = 0; i < patientCount; i++) {
+            String dir = "./server_data_19001/patient" + i;
+            List<Section> sections = new ArrayList<>();
+            for (int j = 0; j < sectionsPerFile; j++) {
+                sections.add(new Section(dir, String.valueOf(j)));
+            }
+            PatientFile patientFile = new PatientFile("patient" + i, doctors.get(i % doctors.size()), sections);
+            patientFile.addAuthor(doctors.get((i + 1) % doctors.size()));
+            documentData.getDocuments().add(patientFile);
+        }
+        return documentData;
+    }
+
+    /**
+     * Open the database and look up one patient file a few times, log the best time
+     */
+    private static void report(String name, File file, Loader loader, String patient, int rounds) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            DocumentData documentData = loader.load(file);
+            if (documentData.getDocumentByName(patient) == null) {
+                throw new IOException(patient + " is missing from " + file);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        Log.info(String.format("%-12s %,12d bytes, first request %,8.1f ms", name, file.length(), best / 1e6));
+    }
+}